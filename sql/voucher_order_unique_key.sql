@@ -0,0 +1,18 @@
+-- 秒杀订单幂等落库（dianping.seckill.consumer.idempotent-insert=true）依赖的唯一索引
+-- 同一用户同一优惠券只能有一个有效订单，消费者 INSERT IGNORE 冲突即视为已处理
+-- 已取消（status=4）的订单 active 为 NULL，不参与唯一约束，取消后可以再次下单
+
+-- 1.检查是否存在重复的有效订单，存在时需先人工处理
+SELECT user_id, voucher_id, COUNT(*) AS cnt
+FROM tb_voucher_order
+WHERE status <> 4
+GROUP BY user_id, voucher_id
+HAVING cnt > 1;
+
+-- 2.已添加旧版唯一索引 (user_id, voucher_id) 时先删除
+-- ALTER TABLE tb_voucher_order DROP INDEX uk_user_voucher;
+
+-- 3.添加有效订单标记列与唯一索引
+ALTER TABLE tb_voucher_order
+    ADD COLUMN active TINYINT AS (IF(status = 4, NULL, 1)) VIRTUAL COMMENT '有效订单标记，已取消为NULL',
+    ADD UNIQUE KEY uk_user_voucher (user_id, voucher_id, active);
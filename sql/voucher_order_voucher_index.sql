@@ -0,0 +1,5 @@
+-- 秒杀对账（dianping.seckill.reconcile）按优惠券、主键分页读取订单依赖的索引
+-- SELECT id, user_id FROM tb_voucher_order WHERE voucher_id = ? AND status <> 4 AND id > ? ORDER BY id LIMIT n
+-- 二级索引隐含主键，等价于 (voucher_id, id)，每页只扫描该优惠券的一段索引
+ALTER TABLE tb_voucher_order
+    ADD KEY idx_voucher (voucher_id);
@@ -0,0 +1,24 @@
+package com.dianping.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @Description: 管理接口配置
+ * @Author: zhao
+ * Created: 2025/5/24 - 10:20
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "dianping.admin")
+public class AdminProperties {
+
+    /**
+     * 管理员用户id，只有这些用户可以调用 /admin/** 接口（补充库存、重放死信、对账）；为空时管理接口全部拒绝
+     */
+    private Set<Long> userIds = new HashSet<>();
+}
@@ -0,0 +1,26 @@
+package com.dianping.config;
+
+import com.dianping.utils.BinaryCacheCodec;
+import com.dianping.utils.CacheCodec;
+import com.dianping.utils.JsonCacheCodec;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * @Description: 缓存值编解码配置，按 dianping.cache.codec 选择实现；自定义 CacheCodec bean 时使用自定义的实现
+ * @Author: zhao
+ * Created: 2025/5/22 - 21:00
+ */
+@Configuration
+public class CacheCodecConfig {
+
+    @Bean
+    @ConditionalOnMissingBean
+    public CacheCodec cacheCodec(CacheProperties cacheProperties) {
+        if ("binary".equalsIgnoreCase(cacheProperties.getCodec())) {
+            return new BinaryCacheCodec((int) cacheProperties.getCompressThreshold().toBytes());
+        }
+        return new JsonCacheCodec();
+    }
+}
@@ -0,0 +1,93 @@
+package com.dianping.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @Description: 缓存配置
+ * @Author: zhao
+ * Created: 2025/5/19 - 20:10
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "dianping.cache")
+public class CacheProperties {
+
+    /**
+     * 是否开启进程内的一级缓存：CacheClient 查询先读本地，未命中再读Redis；删除缓存时通过Redis发布订阅通知所有节点
+     */
+    private boolean localEnabled = false;
+
+    /**
+     * 一级缓存最多缓存的条目数
+     */
+    private long localMaximumSize = 10000;
+
+    /**
+     * 一级缓存的总权重上限，按JSON长度估算
+     */
+    private DataSize localMaximumWeight = DataSize.ofMegabytes(64);
+
+    /**
+     * 一级缓存的有效期，也是其他节点未收到失效通知时的最长不一致时间
+     */
+    private Duration localTtl = Duration.ofSeconds(10);
+
+    /**
+     * 互斥锁重建缓存时，等待其他节点重建完成的最长时间，超时后直接查询数据库
+     */
+    private Duration rebuildLockWait = Duration.ofSeconds(3);
+
+    /**
+     * 缓存值的编解码：json（默认，与原有缓存兼容）或 binary（紧凑的二进制格式，可以读取原有的JSON缓存）
+     */
+    private String codec = "json";
+
+    /**
+     * 二进制编解码时，缓存值不小于该大小才用LZ4压缩，0表示不压缩
+     */
+    private DataSize compressThreshold = DataSize.ofKilobytes(1);
+
+    /**
+     * 布隆过滤器配置，CacheClient 查询前先判断id是否可能存在
+     */
+    private Bloom bloom = new Bloom();
+
+    @Data
+    public static class Bloom {
+        /**
+         * 是否开启布隆过滤器：不存在的id直接返回，不访问Redis和数据库
+         */
+        private boolean enabled = false;
+        /**
+         * 各过滤器的容量和误判率，key为过滤器名称（shop、blog），对应一个缓存key前缀；没有配置的过滤器不生效
+         */
+        private Map<String, Filter> filters = new HashMap<>();
+        /**
+         * 从Redis合并最新位图的间隔，补偿丢失的新增通知
+         */
+        private Duration syncInterval = Duration.ofMinutes(1);
+        /**
+         * 全量重建的间隔，清除已删除的id，并按最新配置调整容量
+         */
+        private Duration rebuildInterval = Duration.ofDays(1);
+    }
+
+    @Data
+    public static class Filter {
+        /**
+         * 预计的id数量，超过后误判率上升
+         */
+        private long expectedInsertions = 1000000;
+        /**
+         * 误判率
+         */
+        private double fpp = 0.01;
+    }
+}
@@ -0,0 +1,43 @@
+package com.dianping.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * @Description: 全局ID生成器配置
+ * @Author: zhao
+ * Created: 2025/5/10 - 15:30
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "dianping.id-worker")
+public class IdWorkerProperties {
+
+    /**
+     * 是否开启号段模式：INCRBY 一次预留一段序列号，在本地发放，用完前异步预取下一段
+     */
+    private boolean segmentEnabled = false;
+
+    /**
+     * 号段最小长度
+     */
+    private int minStep = 100;
+
+    /**
+     * 号段最大长度
+     */
+    private int maxStep = 100000;
+
+    /**
+     * 号段期望的消耗时长：消耗快于该时长则号段翻倍，慢于两倍则减半
+     */
+    private Duration segmentDuration = Duration.ofSeconds(15);
+
+    /**
+     * 当前号段剩余比例低于该值时，异步预取下一段
+     */
+    private double prefetchRatio = 0.2;
+}
@@ -1,5 +1,6 @@
 package com.dianping.config;
 
+import com.dianping.interceptor.AdminInterceptor;
 import com.dianping.interceptor.LoginInterceptor;
 import com.dianping.interceptor.RefreshTokenInterceptor;
 import jakarta.annotation.Resource;
@@ -13,6 +14,8 @@ public class MvcConfig implements WebMvcConfigurer {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private AdminProperties adminProperties;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -22,6 +25,10 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/shop/**", "/voucher/**", "/shop-type/**", "/upload/**", "/blog/hot",
                         "/user/code", "/user/login")
                 .order(1);
+        // 管理接口拦截器，只放行管理员
+        registry.addInterceptor(new AdminInterceptor(adminProperties))
+                .addPathPatterns("/admin/**")
+                .order(2);
         // token刷新的拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
                 .addPathPatterns("/**")
@@ -0,0 +1,275 @@
+package com.dianping.config;
+
+import jakarta.annotation.PostConstruct;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+/**
+ * @Description: 秒杀相关配置
+ * @Author: zhao
+ * Created: 2025/5/6 - 20:15
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "dianping.seckill")
+public class SeckillProperties {
+
+    /**
+     * 是否为 Redis Cluster 部署：开启后秒杀key按优惠券（分片）加hash tag，订单写入各自slot的stream
+     */
+    private boolean clusterEnabled = false;
+
+    /**
+     * 新建秒杀券的库存分片数，大于1时库存拆分到多个子key，分散热点
+     */
+    private int stockShards = 1;
+
+    /**
+     * 下单用户是否使用分块位图保存（一人一单判断），关闭时使用集合 seckill:order:{voucherId}；
+     * 两种方式的数据不互通，只能在没有进行中的秒杀时切换
+     */
+    private boolean buyerBitmapEnabled = false;
+
+    /**
+     * 分块位图中，每块的整数集合超过该数量后转为位图；不超过Redis的 set-max-intset-entries(默认512)，保证整数集合编码
+     */
+    private int buyerBitmapThreshold = 512;
+
+    /**
+     * 提前多久把秒杀券信息和库存预热到Redis
+     */
+    private Duration preheatLead = Duration.ofMinutes(10);
+
+    /**
+     * 预热、清理任务的执行间隔
+     */
+    private Duration preheatInterval = Duration.ofSeconds(30);
+
+    /**
+     * 秒杀结束多久后清理Redis中的库存、下单用户和秒杀券信息
+     */
+    private Duration evictDelay = Duration.ofMinutes(10);
+
+    /**
+     * 订单处理状态的保留时间，超过后查询不到状态，需查询订单
+     */
+    private Duration orderStatusTtl = Duration.ofMinutes(30);
+
+    /**
+     * 实时库存推送（SSE）的合并间隔，间隔内的多次变化只推送一次
+     */
+    private Duration stockStreamInterval = Duration.ofSeconds(1);
+
+    /**
+     * 实时库存推送连接的超时时间，超时后客户端需重新连接
+     */
+    private Duration stockStreamTimeout = Duration.ofMinutes(30);
+
+    /**
+     * 实时库存推送的线程数，慢客户端每个最多占用一个线程
+     */
+    private int stockStreamSenderThreads = 4;
+
+    /**
+     * 实时库存单次发送的超时时间，超时的客户端被断开
+     */
+    private Duration stockStreamSendTimeout = Duration.ofSeconds(5);
+
+    /**
+     * 库存租约：每个节点从Redis库存中租一段库存到本地，下单时在本地CAS扣减，库存key不再是每次下单的热点；
+     * 秒杀结束或节点关闭时归还未售出的库存
+     */
+    private boolean stockLeaseEnabled = false;
+
+    /**
+     * 单次最多租用的库存数，实际租用该分片剩余库存的一半，库存越少租得越少
+     */
+    private int stockLeaseSize = 50;
+
+    /**
+     * 本地剩余库存低于 stockLeaseSize * stockLeaseRefillRatio 时异步续租
+     */
+    private double stockLeaseRefillRatio = 0.2;
+
+    /**
+     * 是否开启订单支付超时取消：超时未支付的订单取消，库存退回Redis和数据库，用户可以重新下单
+     */
+    private boolean payTimeoutEnabled = false;
+
+    /**
+     * 下单后的支付时限
+     */
+    private Duration payTimeout = Duration.ofMinutes(15);
+
+    /**
+     * 各节点认领即将到期订单的间隔
+     */
+    private Duration payTimeoutPollInterval = Duration.ofSeconds(1);
+
+    /**
+     * 认领后多久内其他节点不再认领，节点宕机时，其认领的订单在此之后由其他节点取消
+     */
+    private Duration payTimeoutClaimLease = Duration.ofMinutes(1);
+
+    /**
+     * 每批取消的订单数
+     */
+    private int payTimeoutBatchSize = 100;
+
+    /**
+     * 订单消息消费者配置
+     */
+    private Consumer consumer = new Consumer();
+
+    /**
+     * 秒杀准入控制配置
+     */
+    private Admission admission = new Admission();
+
+    @Data
+    public static class Admission {
+        /**
+         * 是否开启准入控制，超出放行速率或订单积压时直接返回系统繁忙
+         */
+        private boolean enabled = false;
+        /**
+         * 每单位剩余库存每秒放行的请求数
+         */
+        private double stockFactor = 10;
+        /**
+         * 每秒最少放行的请求数，库存为0时仍放行少量请求，以便及时发现售罄或退回的库存
+         */
+        private double minRate = 20;
+        /**
+         * 每次从Redis全局令牌桶领取的令牌数
+         */
+        private int permitBatch = 10;
+        /**
+         * 订单消息积压（已投递未确认 + 未投递）超过该值时降载
+         */
+        private long maxLag = 10000;
+        /**
+         * 刷新剩余库存和订单积压的间隔
+         */
+        private Duration refreshInterval = Duration.ofSeconds(1);
+    }
+
+    /**
+     * Redis与数据库对账配置
+     */
+    private Reconcile reconcile = new Reconcile();
+
+    @Data
+    public static class Reconcile {
+        /**
+         * 是否定时核对Redis与数据库的库存和下单用户
+         */
+        private boolean enabled = false;
+        /**
+         * 是否修复差异；只修复连续两次核对都存在的差异，排除处理中的订单
+         */
+        private boolean repair = false;
+        /**
+         * 核对间隔，需大于订单消息的最大处理延迟
+         */
+        private Duration interval = Duration.ofMinutes(10);
+        /**
+         * 每批核对的下单用户数（数据库游标读取、Redis SSCAN 和管道的批大小）
+         */
+        private int batchSize = 1000;
+    }
+
+    /**
+     * 订单stream保留与归档配置
+     */
+    private Retention retention = new Retention();
+
+    @Data
+    public static class Retention {
+        /**
+         * 是否定时归档并删除已被全部消费者组确认的订单消息；归档写入本地磁盘，只需在一个节点（或共享存储）开启
+         */
+        private boolean enabled = false;
+        /**
+         * 归档间隔
+         */
+        private Duration interval = Duration.ofMinutes(1);
+        /**
+         * 归档目录，每个stream一个子目录
+         */
+        private String archiveDir = "data/stream-archive";
+        /**
+         * 单个分段文件的大小上限，超过后新建分段
+         */
+        private DataSize segmentSize = DataSize.ofMegabytes(64);
+        /**
+         * 每批读取、写入和删除的消息数
+         */
+        private int batchSize = 1000;
+    }
+
+    /**
+     * 启动时校验配置：认领空闲时间不大于最大退避时间时，存活消费者退避中的消息会被当作宕机消息认领
+     */
+    @PostConstruct
+    public void validate() {
+        if (consumer.getClaimMinIdle().compareTo(consumer.getMaxRetryBackoff()) <= 0) {
+            throw new IllegalStateException("dianping.seckill.consumer.claim-min-idle("
+                    + consumer.getClaimMinIdle() + ")必须大于max-retry-backoff(" + consumer.getMaxRetryBackoff() + ")");
+        }
+    }
+
+    @Data
+    public static class Consumer {
+        /**
+         * 当前节点的消费者数量（消费线程数）
+         */
+        private int count = 2;
+        /**
+         * 实例id，作为消费者名称前缀；为空时使用 主机名-进程号
+         */
+        private String instanceId;
+        /**
+         * pending消息空闲超过该时间后，视为原消费者已宕机，可被其他消费者认领；
+         * 必须大于 maxRetryBackoff，否则正在退避等待重试的消息会被其他消费者抢走
+         */
+        private Duration claimMinIdle = Duration.ofMinutes(5);
+        /**
+         * 认领空闲消息的检查间隔
+         */
+        private Duration claimInterval = Duration.ofSeconds(30);
+        /**
+         * 是否开启批量消费，关闭时逐条处理
+         */
+        private boolean batchEnabled = true;
+        /**
+         * 每批最多拉取的消息数（XREADGROUP COUNT）
+         */
+        private int batchSize = 100;
+        /**
+         * 攒批的最长等待时间，拉到第一条消息后最多再等这么久凑满一批
+         */
+        private Duration maxLinger = Duration.ofMillis(200);
+        /**
+         * 幂等落库：依赖 tb_voucher_order 的 (user_id, voucher_id) 唯一索引（见 sql/voucher_order_unique_key.sql），
+         * INSERT IGNORE 冲突即视为已处理，不再加分布式锁、不再先查询订单
+         */
+        private boolean idempotentInsert = false;
+        /**
+         * 单条消息的最大投递次数，超过后转入死信队列 stream.orders.dlq
+         */
+        private int maxAttempts = 5;
+        /**
+         * 失败重试的初始退避时间，第n次失败后等待 retryBackoff * 2^(n-1)，同时也是检查pending消息的间隔
+         */
+        private Duration retryBackoff = Duration.ofSeconds(1);
+        /**
+         * 失败重试的最大退避时间
+         */
+        private Duration maxRetryBackoff = Duration.ofMinutes(1);
+    }
+}
@@ -0,0 +1,67 @@
+package com.dianping.controller;
+
+import com.dianping.dto.Result;
+import com.dianping.service.IVoucherOrderService;
+import com.dianping.service.IVoucherService;
+import jakarta.annotation.Resource;
+import org.springframework.web.bind.annotation.*;
+
+import static com.dianping.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+
+/**
+ * @Description: 管理接口，需登录且为配置的管理员（见 dianping.admin.user-ids）
+ * @Author: zhao
+ * Created: 2025/5/24 - 10:30
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * 补充秒杀券库存
+     * @param voucherId 优惠券id
+     * @param count     补充数量
+     * @return 无
+     */
+    @PutMapping("voucher/seckill/{id}/stock")
+    public Result addSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        return voucherService.addSeckillStock(voucherId, count);
+    }
+
+    /**
+     * 重放死信队列中的订单消息
+     * @param count 最多重放的消息数，为空时全部重放
+     * @return {@link Result } 重放的消息数
+     */
+    @PostMapping("voucher-order/dlq/replay")
+    public Result replayDeadLetters(@RequestParam(value = "count", required = false) Integer count) {
+        return voucherOrderService.replayDeadLetters(count);
+    }
+
+    /**
+     * 重放本节点归档的订单消息，需在开启归档的节点调用
+     * @param stream 订单stream，默认 stream.orders
+     * @return {@link Result } 在后台重放，完成后记录日志
+     */
+    @PostMapping("voucher-order/archive/replay")
+    public Result replayArchivedOrders(@RequestParam(value = "stream", defaultValue = SECKILL_ORDER_STREAM_KEY) String stream) {
+        return voucherOrderService.replayArchivedOrders(stream);
+    }
+
+    /**
+     * 核对秒杀券Redis与数据库的库存和下单用户
+     * @param voucherId 优惠券 ID，为空时核对全部已预热的秒杀券
+     * @param repair    是否修复连续两次核对都存在的差异
+     * @return {@link Result } 各秒杀券的对账结果
+     */
+    @PostMapping("voucher-order/reconcile")
+    public Result reconcileSeckill(@RequestParam(value = "voucherId", required = false) Long voucherId,
+                                   @RequestParam(value = "repair", defaultValue = "false") boolean repair) {
+        return voucherOrderService.reconcileSeckill(voucherId, repair);
+    }
+}
@@ -5,7 +5,9 @@ import com.dianping.dto.Result;
 import com.dianping.entity.Voucher;
 import com.dianping.service.IVoucherService;
 import jakarta.annotation.Resource;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 
 /**
@@ -29,7 +31,7 @@ public class VoucherController {
      */
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
-        voucherService.save(voucher);
+        voucherService.addVoucher(voucher);
         return Result.ok(voucher.getId());
     }
 
@@ -53,4 +55,24 @@ public class VoucherController {
     public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
         return voucherService.queryVoucherOfShop(shopId);
     }
+
+    /**
+     * 订阅店铺秒杀券的实时库存（SSE），库存变化时推送 stock 事件 {"voucherId":1,"stock":10}
+     * @param shopId 店铺id
+     * @return 事件流
+     */
+    @GetMapping(value = "/list/{shopId}/stock", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamStockOfShop(@PathVariable("shopId") Long shopId) {
+        return voucherService.streamStockOfShop(shopId);
+    }
+
+    /**
+     * 订阅秒杀券的实时库存（SSE）
+     * @param voucherId 优惠券id
+     * @return 事件流
+     */
+    @GetMapping(value = "seckill/{id}/stock", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamStock(@PathVariable("id") Long voucherId) {
+        return voucherService.streamStock(voucherId);
+    }
 }
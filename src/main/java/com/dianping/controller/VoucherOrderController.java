@@ -4,11 +4,15 @@ package com.dianping.controller;
 import com.dianping.dto.Result;
 import com.dianping.service.IVoucherOrderService;
 import jakarta.annotation.Resource;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.List;
+
 /**
  * <p>
  * 前端控制器
@@ -32,4 +36,24 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucherV3(voucherId);
     }
+
+    /**
+     * 批量秒杀：一次抢购多张秒杀券，全部有资格才下单
+     * @param voucherIds 优惠券 ID 列表
+     * @return {@link Result } 与优惠券顺序一致的订单 ID 列表
+     */
+    @PostMapping("seckill/batch")
+    public Result seckillVouchers(@RequestBody List<Long> voucherIds) {
+        return voucherOrderService.seckillVouchers(voucherIds);
+    }
+
+    /**
+     * 查询当前用户的秒杀订单处理状态：queued 排队中、persisted 已落库、failed 下单失败、unknown 状态已过期或不是自己的订单
+     * @param orderId 订单 ID
+     * @return {@link Result }
+     */
+    @GetMapping("status/{id}")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
 }
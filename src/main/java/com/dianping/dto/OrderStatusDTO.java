@@ -0,0 +1,28 @@
+package com.dianping.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * @Description: 秒杀订单处理状态
+ * @Author: zhao
+ * Created: 2025/5/11 - 10:20
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderStatusDTO {
+    /** 排队中，订单消息尚未处理 */
+    public static final String QUEUED = "queued";
+    /** 订单已落库 */
+    public static final String PERSISTED = "persisted";
+    /** 下单失败，见 reason */
+    public static final String FAILED = "failed";
+    /** 状态已过期、订单不存在或不属于当前用户，需查询订单 */
+    public static final String UNKNOWN = "unknown";
+
+    private Long orderId;
+    private String status;
+    private String reason;
+}
@@ -0,0 +1,30 @@
+package com.dianping.dto;
+
+import lombok.Data;
+
+/**
+ * @Description: 秒杀券Redis与数据库的对账结果
+ * 正常情况下两侧各自满足 库存 + 下单用户数 = 总库存，drift 为两侧之差，与处理中的订单无关
+ * @Author: zhao
+ * Created: 2025/5/17 - 20:30
+ */
+@Data
+public class ReconcileReport {
+    private Long voucherId;
+    /** Redis各分片库存之和 */
+    private long redisStock;
+    /** Redis下单用户数 */
+    private long redisBuyers;
+    /** 数据库库存 */
+    private long dbStock;
+    /** 数据库未取消的订单数 */
+    private long dbOrders;
+    /** (redisStock + redisBuyers) - (dbStock + dbOrders)，租约模式下还包含各节点租走的库存 */
+    private long drift;
+    /** 数据库有订单、Redis没有下单记录的用户数 */
+    private long missingInRedis;
+    /** Redis有下单记录、数据库没有订单的用户数（含处理中的订单） */
+    private long missingInDb;
+    /** 本次修复的差异数 */
+    private long repaired;
+}
@@ -0,0 +1,42 @@
+package com.dianping.interceptor;
+
+import com.dianping.config.AdminProperties;
+import com.dianping.dto.UserDTO;
+import com.dianping.utils.UserHolder;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+/**
+ * @Description: 管理接口拦截器，在登录拦截器之后执行，只放行配置的管理员
+ * @Author: zhao
+ * Created: 2025/5/24 - 10:25
+ */
+@Slf4j
+public class AdminInterceptor implements HandlerInterceptor {
+    // 拦截器在Spring容器之外创建，需要手动注入
+    private final AdminProperties adminProperties;
+
+    public AdminInterceptor(AdminProperties adminProperties) {
+        this.adminProperties = adminProperties;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+            throws Exception {
+        // 1.未登录，由登录拦截器返回401，这里兜底
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            response.setStatus(401);
+            return false;
+        }
+        // 2.不是管理员，拒绝
+        if (!adminProperties.getUserIds().contains(user.getId())) {
+            log.warn("用户{}无权访问管理接口{}", user.getId(), request.getRequestURI());
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
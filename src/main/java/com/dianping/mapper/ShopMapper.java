@@ -5,6 +5,7 @@ import com.dianping.
 entity.Shop;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.cursor.Cursor;
 
 /**
  * <p>
@@ -17,4 +18,9 @@ import org.apache.ibatis.annotations.Mapper;
 @Mapper
 public interface ShopMapper extends BaseMapper<Shop> {
 
+    /**
+     * 流式读取全部id，用于构建布隆过滤器，需在事务内遍历
+     * @return id 游标
+     */
+    Cursor<Long> scanIds();
 }
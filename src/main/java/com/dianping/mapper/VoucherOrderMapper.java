@@ -5,6 +5,9 @@ import com.dianping.
 entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -17,4 +20,17 @@ import org.apache.ibatis.annotations.Mapper;
 @Mapper
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行插入订单 INSERT INTO tb_voucher_order (...) VALUES (...), (...)
+     * @param orders 订单列表
+     * @return 插入行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 多行插入订单，主键或唯一索引 (user_id, voucher_id) 冲突的行被忽略 INSERT IGNORE INTO tb_voucher_order ...
+     * @param orders 订单列表
+     * @return 实际插入行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
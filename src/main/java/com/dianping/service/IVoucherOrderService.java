@@ -4,6 +4,9 @@ import com.baomidou.mybatisplus.extension.service.IService;
 import com.dianping.dto.Result;
 import com.dianping.entity.VoucherOrder;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  * 服务类
@@ -21,5 +24,25 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result createVoucherOrderV1(Long voucherId);
 
-    void createVoucherOrderV2(VoucherOrder voucherOrder);
+    Result createVoucherOrderV2(VoucherOrder voucherOrder);
+
+    Result createVoucherOrderIdempotent(VoucherOrder voucherOrder);
+
+    Result seckillVouchers(List<Long> voucherIds);
+
+    Result createVoucherOrderMulti(List<VoucherOrder> voucherOrders);
+
+    Map<Long, String> createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    Result queryOrderStatus(Long orderId);
+
+    Result replayDeadLetters(Integer count);
+
+    Result replayArchivedOrders(String stream);
+
+    Result reconcileSeckill(Long voucherId, boolean repair);
+
+    void clearSoldOut(Long voucherId);
+
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
 }
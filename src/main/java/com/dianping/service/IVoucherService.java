@@ -6,6 +6,7 @@ dto.Result;
 import com.dianping.
 entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 /**
  * <p>
@@ -19,5 +20,13 @@ public interface IVoucherService extends IService<Voucher> {
 
     Result queryVoucherOfShop(Long shopId);
 
+    void addVoucher(Voucher voucher);
+
+    SseEmitter streamStockOfShop(Long shopId);
+
+    SseEmitter streamStock(Long voucherId);
+
     void addSeckillVoucher(Voucher voucher);
+
+    Result addSeckillStock(Long voucherId, Integer count);
 }
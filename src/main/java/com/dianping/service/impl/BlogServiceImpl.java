@@ -14,8 +14,10 @@ import com.dianping.entity.User;
 import com.dianping.mapper.BlogMapper;
 import com.dianping.service.IBlogService;
 import com.dianping.service.IUserService;
+import com.dianping.utils.IdBloomFilters;
 import com.dianping.utils.SystemConstants;
 import com.dianping.utils.UserHolder;
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.Resource;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
@@ -42,6 +44,17 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private FollowServiceImpl followService;
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    /** 笔记id的布隆过滤器名称 */
+    private static final String BLOG_BLOOM_FILTER = "blog";
+
+    @PostConstruct
+    private void init() {
+        // 笔记没有使用 CacheClient，查询数据库前直接判断
+        idBloomFilters.register(BLOG_BLOOM_FILTER, null, baseMapper::scanIds);
+    }
 
     /**
      * 查询热门博客
@@ -80,7 +93,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      */
     @Override
     public Result queryBlogById(Long id) {
-        // 1.查询blog
+        // 1.查询blog，布隆过滤器判断不存在的id不查询数据库
+        if (!idBloomFilters.mightContain(BLOG_BLOOM_FILTER, id)) {
+            return Result.fail("笔记不存在！");
+        }
         Blog blog = getById(id);
         if (blog == null) {
             return Result.fail("笔记不存在！");
@@ -185,6 +201,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增笔记失败!");
         }
+        idBloomFilters.add(BLOG_BLOOM_FILTER, blog.getId());
         // 3.查询笔记作者的所有粉丝 select * from tb_follow where follow_user_id = ?
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
         // 4.推送笔记id给所有粉丝
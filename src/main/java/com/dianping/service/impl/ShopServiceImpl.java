@@ -1,9 +1,7 @@
 package com.dianping.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.dianping.dto.Result;
@@ -11,25 +9,34 @@ import com.dianping.entity.Shop;
 import com.dianping.mapper.ShopMapper;
 import com.dianping.service.IShopService;
 import com.dianping.utils.CacheClient;
+import com.dianping.utils.CacheCodec;
+import com.dianping.utils.IdBloomFilters;
 import com.dianping.utils.RedisConstants;
 import com.dianping.utils.RedisData;
 import com.dianping.utils.SystemConstants;
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.dianping.utils.RedisConstants.*;
 
@@ -50,8 +57,37 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private CacheCodec cacheCodec;
+
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
+    /** 店铺id的布隆过滤器名称 */
+    private static final String SHOP_BLOOM_FILTER = "shop";
+
+    @PostConstruct
+    private void init() {
+        // 店铺缓存查询前先判断id是否存在
+        idBloomFilters.register(SHOP_BLOOM_FILTER, CACHE_SHOP_KEY, baseMapper::scanIds);
+    }
+
+    /**
+     * 新增店铺，同时写入布隆过滤器
+     * @param shop 店铺
+     * @return boolean
+     */
+    @Override
+    public boolean save(Shop shop) {
+        boolean saved = super.save(shop);
+        if (saved) {
+            idBloomFilters.add(SHOP_BLOOM_FILTER, shop.getId());
+        }
+        return saved;
+    }
+
     /**
      * 根据id查询店铺信息
      * @param id
@@ -97,15 +133,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     public Shop queryWithLogicalExpireV4(Long id) {
         String key = CACHE_SHOP_KEY + id;
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getCache(key);
         // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             // 3.不存在，直接返回
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
+        // 4.命中，一次解码出逻辑过期时间和数据，无法解码时视为已过期
+        RedisData redisData = cacheCodec.decodeWithExpire(bytes, Shop.class);
+        if (redisData == null) {
+            redisData = new RedisData().setExpireTime(LocalDateTime.MIN);
+        }
+        Shop shop = (Shop) redisData.getData();
         LocalDateTime expireTime = redisData.getExpireTime();
         // 5.判断是否过期
         if (expireTime.isAfter(LocalDateTime.now())) {
@@ -142,12 +181,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     public void saveShop2Redis(Long id, Long expireSeconds) {
         // 1.查询店铺数据
         Shop shop = getById(id);
-        // 2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        // 3.写入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 2.封装逻辑过期时间，按缓存的编解码写入redis
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
     /**
@@ -159,16 +194,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     public Shop queryWithMutexV3(Long id) {
         String key = CACHE_SHOP_KEY + id;
         // 1.从redis查询商品缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getCache(key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            log.info("命中缓存，Thread:{} 拿到缓存", Thread.currentThread().getId());
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        // 判断命中是否是空值
-        if (shopJson != null) {
-            // 返回错误信息
+        if (bytes != null && bytes.length > 0) {
+            // 3.存在，直接返回；无法解码时按未命中重建
+            Shop cached = cacheCodec.decode(bytes, Shop.class);
+            if (cached != null) {
+                log.info("命中缓存，Thread:{} 拿到缓存", Thread.currentThread().getId());
+                return cached;
+            }
+        } else if (bytes != null) {
+            // 命中的是空值，返回错误信息
             return null;
         }
         // 4.实现缓存重建
@@ -181,13 +217,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             // log.info("Thread：{} 被阻塞", Thread.currentThread().getId());
 
             // 再次检查缓存，可能有其他线程已经写入--双检的一部分
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            if (StrUtil.isNotBlank(shopJson)) {
-                log.info("更新缓存成功，锁被释放，自旋Thread:{} 拿到缓存", Thread.currentThread().getId());
-                return JSONUtil.toBean(shopJson, Shop.class);
-            }
-            // 判断命中是否是空值
-            if (shopJson != null) {
+            bytes = getCache(key);
+            if (bytes != null && bytes.length > 0) {
+                Shop cached = cacheCodec.decode(bytes, Shop.class);
+                if (cached != null) {
+                    log.info("更新缓存成功，锁被释放，自旋Thread:{} 拿到缓存", Thread.currentThread().getId());
+                    return cached;
+                }
+            } else if (bytes != null) {
+                // 命中的是空值
                 return null;
             }
             // 4.3 休眠并重试
@@ -201,19 +239,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         try {
             // 4.4.成功
             // 4.5 获取锁后第二次检查缓存
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            if (StrUtil.isNotBlank(shopJson)) {
-                return JSONUtil.toBean(shopJson, Shop.class);
+            bytes = getCache(key);
+            shop = bytes == null || bytes.length == 0 ? null : cacheCodec.decode(bytes, Shop.class);
+            if (shop != null) {
+                return shop;
             }
             shop = getById(id);
             // 5.不存在，返回错误
             if (shop == null) {
                 // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                setCache(key, new byte[0], RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
                 return null;
             }
             // 6.存在，写入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            setCache(key, cacheCodec.encode(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
         } finally {
             // 7.释放互斥锁
             unlock(lockKey);
@@ -231,15 +270,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     public Shop queryWithMutexV2(Long id) {
         String key = CACHE_SHOP_KEY + id;
         // 1.从redis查询商品缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getCache(key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        // 判断命中是否是空值
-        if (shopJson != null) {
-            // 返回错误信息
+        if (bytes != null && bytes.length > 0) {
+            // 3.存在，直接返回；无法解码时按未命中处理
+            Shop cached = cacheCodec.decode(bytes, Shop.class);
+            if (cached != null) {
+                return cached;
+            }
+        } else if (bytes != null) {
+            // 命中的是空值，返回错误信息
             return null;
         }
         // 4.实现缓存重建
@@ -259,11 +299,11 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             // 5.不存在，返回错误
             if (shop == null) {
                 // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                setCache(key, new byte[0], RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
                 return null;
             }
             // 6.存在，写入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            setCache(key, cacheCodec.encode(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         } finally {
@@ -295,6 +335,30 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.delete(key);
     }
 
+    /**
+     * 读取店铺缓存的字节，与 CacheClient 使用同一编解码
+     * @param key 缓存key
+     * @return byte[] 不存在时返回null，空值为空数组
+     */
+    private byte[] getCache(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(rawKey));
+    }
+
+    /**
+     * 写入店铺缓存的字节
+     * @param key   缓存key
+     * @param value 编码后的值，空数组为空值
+     * @param time  有效期
+     * @param unit  单位
+     */
+    private void setCache(String key, byte[] value, long time, TimeUnit unit) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.stringCommands().set(rawKey, value, Expiration.from(time, unit), RedisStringCommands.SetOption.upsert()));
+    }
+
     /**
      * 解决缓存穿透问题 - 这里采用空值解决
      * @param id
@@ -304,15 +368,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     public Shop queryWithPassThroughV1(Long id) {
         String key = CACHE_SHOP_KEY + id;
         // 1.从redis查询商品缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getCache(key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        // 判断命中是否是空值
-        if (shopJson != null) {
-            // 返回错误信息
+        if (bytes != null && bytes.length > 0) {
+            // 3.存在，直接返回；无法解码时按未命中处理
+            Shop cached = cacheCodec.decode(bytes, Shop.class);
+            if (cached != null) {
+                return cached;
+            }
+        } else if (bytes != null) {
+            // 命中的是空值，返回错误信息
             return null;
         }
 
@@ -321,11 +386,11 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 5.不存在，返回错误
         if (shop == null) {
             // 解决缓存穿透问题 - 这里采用空值解决
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setCache(key, new byte[0], RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
             return null;
         }
         // 6.存在，写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        setCache(key, cacheCodec.encode(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         return shop;
     }
@@ -344,8 +409,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 1.更新数据库
         updateById(shop);
-        // 2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 2.删除缓存，同时通知各节点清除一级缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
@@ -405,11 +470,25 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr, distance);
         });
-        // 5.根据id查询Shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop : shops) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+        // 5.根据id批量查询Shop，走店铺缓存，按距离顺序返回
+        List<Shop> cached = cacheClient.queryBatch(
+                CACHE_SHOP_KEY,
+                ids,
+                Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL,
+                TimeUnit.MINUTES
+        );
+        List<Shop> shops = new ArrayList<>(cached.size());
+        for (Shop shop : cached) {
+            if (shop == null) {
+                // GEO中有、数据库中已删除的店铺
+                continue;
+            }
+            // 一级缓存中的对象是共享的，复制后再设置距离
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(copy);
         }
         // 6.返回
         return Result.ok(shops);
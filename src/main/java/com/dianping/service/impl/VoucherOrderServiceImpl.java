@@ -1,37 +1,71 @@
 package com.dianping.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.NumberUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.dianping.config.SeckillProperties;
+import com.dianping.dto.ReconcileReport;
 import com.dianping.dto.Result;
 import com.dianping.entity.SeckillVoucher;
 import com.dianping.entity.VoucherOrder;
 import com.dianping.mapper.VoucherOrderMapper;
 import com.dianping.service.ISeckillVoucherService;
 import com.dianping.service.IVoucherOrderService;
+import com.dianping.utils.OrderDelayQueue;
+import com.dianping.utils.OrderStreamArchiver;
 import com.dianping.utils.RedisIdWorker;
+import com.dianping.utils.SeckillAdmission;
+import com.dianping.utils.SeckillKeys;
+import com.dianping.utils.SeckillOrderStatus;
+import com.dianping.utils.SeckillReconciler;
+import com.dianping.utils.SeckillStockLease;
 import com.dianping.utils.UserHolder;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.annotation.Resource;
+import lombok.AllArgsConstructor;
+import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.RedisStreamCommands.XClaimOptions;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static com.dianping.utils.RedisConstants.SECKILL_ORDER_DLQ_KEY;
+import static com.dianping.utils.RedisConstants.SECKILL_ORDER_STREAMS_KEY;
+import static com.dianping.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+import static com.dianping.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
 
 /**
  * <p>
@@ -52,6 +86,55 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SeckillKeys seckillKeys;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private SeckillStockLease seckillStockLease;
+    @Resource
+    private OrderDelayQueue orderDelayQueue;
+    @Resource
+    private SeckillAdmission seckillAdmission;
+    @Resource
+    private SeckillReconciler seckillReconciler;
+    @Resource
+    private OrderStreamArchiver orderStreamArchiver;
+
+    /** 订单消息的消费者组 */
+    private static final String ORDER_GROUP = "g1";
+    /** 订单状态：未支付 */
+    private static final int ORDER_STATUS_UNPAID = 1;
+    /** 订单状态：已取消 */
+    private static final int ORDER_STATUS_CANCELLED = 4;
+    /** 落库时发现用户已有有效订单的失败原因 */
+    private static final String DUPLICATE_ORDER = "不能重复下单";
+    /** 多个stream轮询时，全部为空后的休眠时间(ms) */
+    private static final long STREAM_POLL_INTERVAL = 100;
+    /** 集群模式下发现新stream的间隔(ms) */
+    private static final long STREAM_DISCOVER_INTERVAL = 5000;
+    /** 重放归档消息时每次管道写入的消息数 */
+    private static final int REPLAY_BATCH_SIZE = 500;
+
+    /** 当前消费的订单stream */
+    private volatile List<String> orderStreams = Collections.singletonList(SECKILL_ORDER_STREAM_KEY);
+    private volatile long nextDiscoverTime;
+
+    /** 重放归档订单消息的线程，不占用请求线程 */
+    private final ExecutorService archiveReplayer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "order-archive-replayer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** 是否正在重放归档订单消息 */
+    private final AtomicBoolean archiveReplaying = new AtomicBoolean();
+
+    /** 本地售罄标记，售罄的优惠券直接拒绝，不再访问Redis */
+    private final Set<Long> soldOutVouchers = ConcurrentHashMap.newKeySet();
 
     // ==============================================MQ方式============================================== //
 
@@ -62,99 +145,1068 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckillVoucherV3(Long voucherId) {
+        // 准入控制：超出放行速率或订单积压时快速失败，不再执行秒杀脚本；已售罄的优惠券交给下面直接返回库存不足
+        if (seckillProperties.getAdmission().isEnabled()
+                && !soldOutVouchers.contains(voucherId)
+                && !seckillAdmission.tryAdmit(voucherId)) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        boolean leaseEnabled = seckillProperties.isStockLeaseEnabled();
+        // 租约模式下先从本节点租到的库存扣减，其他节点广播售罄后本地剩余的库存仍可售出
+        SeckillStockLease.Lease lease = leaseEnabled ? seckillStockLease.tryAcquire(voucherId) : null;
+        // 本地已标记售罄，直接返回
+        if (lease == null && soldOutVouchers.contains(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        if (leaseEnabled && lease == null) {
+            // 本地租约已用完，从Redis续租；续租不到时由秒杀脚本判断是库存不足、还是秒杀尚未开放
+            lease = seckillStockLease.acquire(voucherId);
+        }
+        boolean leased = lease != null;
         // 获取用户·
         Long userId = UserHolder.getUser().getId();
-        Long orderId = redisIdWorker.nextId("order");
-        // 执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                orderId.toString()
-        );
+        // 执行lua脚本，订单id在脚本内生成，一次往返完成
+        SeckillResult result = executeSeckillScript(voucherId, userId, leased);
         // 判断购买资格
-        if (result != 0) {
+        if (result.getCode() != 0) {
+            if (leased) {
+                // 库存已在租约中扣减，未能下单则退回扣减库存的租约
+                seckillStockLease.release(voucherId, lease);
+            } else if (result.getCode() == 1) {
+                // 全部分片都没有库存，标记售罄并通知其他节点
+                markSoldOut(voucherId);
+            }
             // 不为0代表没有资格购买
-            return Result.fail(result == 1 ? "库存不足" : "不能重复下单");
+            return Result.fail(seckillFailMessage(result.getCode()));
         }
-        // 获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        return Result.ok(orderId);
+        recordQueued(Collections.singletonList(result.getOrderId()), userId);
+        return Result.ok(result.getOrderId());
     }
 
     /**
-     * 凭证订购任务V2 - Stream MQ
+     * 查询秒杀订单处理状态，只读Redis
+     * @param orderId 订单 ID
+     * @return {@link Result }
+     */
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        return Result.ok(seckillOrderStatus.query(orderId, UserHolder.getUser().getId()));
+    }
+
+    /**
+     * 记录订单排队中，供客户端轮询；订单已进入stream，记录失败不影响下单，落库后会再记录状态
+     * @param orderIds 订单 ID
+     * @param userId   下单用户 ID
+     */
+    private void recordQueued(List<Long> orderIds, Long userId) {
+        try {
+            seckillOrderStatus.queued(orderIds, userId);
+        } catch (Exception e) {
+            log.warn("记录订单排队状态失败，orderIds={}", orderIds, e);
+        }
+    }
+
+    /**
+     * 标记优惠券售罄，并广播给其他节点 PUBLISH seckill:soldout +voucherId
+     * @param voucherId 优惠券 ID
+     */
+    private void markSoldOut(Long voucherId) {
+        if (soldOutVouchers.add(voucherId)) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "+" + voucherId);
+        }
+    }
+
+    /**
+     * 清除优惠券的售罄标记（补充库存、退款退回库存后调用），并广播给所有节点 PUBLISH seckill:soldout -voucherId
+     * @param voucherId 优惠券 ID
+     */
+    @Override
+    public void clearSoldOut(Long voucherId) {
+        soldOutVouchers.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "-" + voucherId);
+    }
+
+    /**
+     * 处理其他节点广播的售罄消息：+voucherId 标记售罄，-voucherId 清除标记
+     * @param message 消息
+     */
+    private void onSoldOutMessage(String message) {
+        Long voucherId = Long.valueOf(message.substring(1));
+        if (message.charAt(0) == '+') {
+            soldOutVouchers.add(voucherId);
+        } else {
+            soldOutVouchers.remove(voucherId);
+        }
+    }
+
+    /**
+     * 秒杀脚本执行结果
+     */
+    @Data
+    @AllArgsConstructor
+    private static class SeckillResult {
+        /** 0：成功，1：库存不足，2：重复下单，3：秒杀尚未开始，4：秒杀已经结束，5：秒杀券尚未预热（或已清理） */
+        private long code;
+        /** 订单 ID，下单成功时才有 */
+        private Long orderId;
+    }
+
+    /**
+     * 执行秒杀脚本
+     * 脚本按秒杀券信息 seckill:voucher:{voucherId} 校验秒杀时间，不再查询数据库
+     * 库存分片时，在用户所属分片扣库存、判断一人一单；所属分片库存不足时，从兄弟分片借库存后重试
+     * 一人一单按配置使用用户集合或分块位图判断，见 {@link SeckillKeys#buyerKeys}
+     * 单机模式下订单id由脚本 INCR icr:order:yyyy:MM:dd 生成，省去一次Redis往返，且只有下单成功才消耗序列号；
+     * 集群模式下自增key与秒杀key不在同一slot，仍由 RedisIdWorker 预先生成；
+     * 库存已从节点租约扣减时，脚本只校验秒杀时间、一人一单并发送订单消息，不访问库存key
+     * @param voucherId 优惠券 ID
+     * @param userId    用户 ID
+     * @param leased    库存是否已从节点租约扣减
+     * @return {@link SeckillResult }
+     */
+    private SeckillResult executeSeckillScript(Long voucherId, Long userId, boolean leased) {
+        int shards = seckillKeys.shardCount(voucherId);
+        int home = seckillKeys.homeShard(userId, shards);
+        String stockKey = seckillKeys.stockKey(voucherId, home, shards);
+        List<String> buyerKeys = seckillKeys.buyerKeys(voucherId, home, shards, userId);
+        List<String> keys = new ArrayList<>(7);
+        keys.add(stockKey);
+        keys.add(buyerKeys.get(0));
+        keys.add(seckillKeys.streamKey(voucherId, home, shards));
+        keys.add(seckillKeys.voucherKey(voucherId, home, shards));
+        keys.add(buyerKeys.get(1));
+        keys.add(buyerKeys.get(2));
+        LocalDateTime now = LocalDateTime.now();
+        String orderId = "";
+        if (seckillProperties.isClusterEnabled()) {
+            orderId = String.valueOf(redisIdWorker.nextId("order"));
+        } else {
+            keys.add(redisIdWorker.counterKey("order", now));
+        }
+        String[] args = {
+                voucherId.toString(),
+                userId.toString(),
+                orderId,
+                String.valueOf(redisIdWorker.timestamp(now)),
+                seckillProperties.isBuyerBitmapEnabled() ? "bitmap" : "set",
+                seckillKeys.buyerMember(userId),
+                String.valueOf(seckillProperties.getBuyerBitmapThreshold()),
+                leased ? "1" : "0"
+        };
+        // 1.在所属分片下单
+        SeckillResult result = toSeckillResult(stringRedisTemplate.execute(SECKILL_SCRIPT, keys, (Object[]) args));
+        // 2.所属分片库存不足，从兄弟分片借到库存后重试（租约模式不会因库存不足失败）
+        while (result.getCode() == 1 && !leased && borrowStock(voucherId, home, shards)) {
+            result = toSeckillResult(stringRedisTemplate.execute(SECKILL_SCRIPT, keys, (Object[]) args));
+        }
+        return result;
+    }
+
+    /**
+     * 依次从兄弟分片借库存：单机模式在同一脚本内转入所属分片；
+     * 集群模式各分片在不同slot，先从兄弟分片借出，再转入所属分片，见 {@link #transferStock}
+     * @param voucherId 优惠券 ID
+     * @param home      所属分片
+     * @param shards    分片数
+     * @return boolean 全部兄弟分片都没有库存时返回false
+     */
+    private boolean borrowStock(Long voucherId, int home, int shards) {
+        String homeKey = seckillKeys.stockKey(voucherId, home, shards);
+        boolean cluster = seckillProperties.isClusterEnabled();
+        for (int offset = 1; offset < shards; offset++) {
+            String siblingKey = seckillKeys.stockKey(voucherId, (home + offset) % shards, shards);
+            Long borrowed = stringRedisTemplate.execute(
+                    STOCK_BORROW_SCRIPT,
+                    cluster ? Collections.singletonList(siblingKey) : Arrays.asList(siblingKey, homeKey),
+                    String.valueOf(MAX_BORROW_STOCK)
+            );
+            if (borrowed == null || borrowed <= 0) {
+                continue;
+            }
+            if (!cluster || transferStock(siblingKey, homeKey, borrowed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 集群模式下把已从兄弟分片借出的库存转入所属分片
+     * 所属分片的库存key已清理时转入不会执行，把库存退回兄弟分片；
+     * 转入结果未知（超时等异常）时不退回，库存只会偏少，不会超卖
+     * @param siblingKey 借出的兄弟分片库存key
+     * @param homeKey    所属分片库存key
+     * @param borrowed   借出的数量
+     * @return boolean 是否已转入所属分片
+     */
+    private boolean transferStock(String siblingKey, String homeKey, long borrowed) {
+        Long transferred;
+        try {
+            // 1.转入所属分片 INCRBY homeKey borrowed
+            transferred = stringRedisTemplate.execute(STOCK_RETURN_SCRIPT, Collections.singletonList(homeKey), String.valueOf(borrowed));
+        } catch (Exception e) {
+            log.error("借出的库存转入所属分片失败, from: {}, to: {}, stock: {}", siblingKey, homeKey, borrowed, e);
+            return false;
+        }
+        if (transferred != null && transferred > 0) {
+            return true;
+        }
+        // 2.所属分片已清理，退回兄弟分片
+        stringRedisTemplate.execute(STOCK_RETURN_SCRIPT, Collections.singletonList(siblingKey), String.valueOf(borrowed));
+        return false;
+    }
+
+    /**
+     * 批量秒杀优惠券 - Stream MQ
+     * 一次脚本调用校验全部优惠券的秒杀时间、库存和一人一单，全部满足才扣库存下单，否则都不下单；
+     * 订单id一次 INCRBY 生成，一条消息 lines=voucherId:orderId,... 包含全部订单，由消费者在一个事务中落库。
+     * 集群模式下各优惠券的key不在同一slot，不支持批量秒杀
+     * @param voucherIds 优惠券 ID 列表
+     * @return {@link Result } 与优惠券顺序一致的订单 ID 列表
+     */
+    @Override
+    public Result seckillVouchers(List<Long> voucherIds) {
+        if (voucherIds == null || voucherIds.isEmpty()) {
+            return Result.fail("请选择优惠券");
+        }
+        if (seckillProperties.isClusterEnabled()) {
+            return Result.fail("集群模式下不支持批量秒杀");
+        }
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(voucherIds));
+        if (ids.size() > MAX_BATCH_VOUCHERS) {
+            return Result.fail("一次最多抢购" + MAX_BATCH_VOUCHERS + "张优惠券");
+        }
+        // 1.任意一张本地已标记售罄，直接返回
+        for (Long voucherId : ids) {
+            if (soldOutVouchers.contains(voucherId)) {
+                return Result.fail("优惠券" + voucherId + "库存不足");
+            }
+        }
+        // 2.每张优惠券5个key：用户所属分片的库存、下单用户（3个）、秒杀券信息；最后是订单stream和自增key
+        Long userId = UserHolder.getUser().getId();
+        LocalDateTime now = LocalDateTime.now();
+        List<String> keys = new ArrayList<>(ids.size() * 5 + 2);
+        for (Long voucherId : ids) {
+            int shards = seckillKeys.shardCount(voucherId);
+            int home = seckillKeys.homeShard(userId, shards);
+            keys.add(seckillKeys.stockKey(voucherId, home, shards));
+            keys.addAll(seckillKeys.buyerKeys(voucherId, home, shards, userId));
+            keys.add(seckillKeys.voucherKey(voucherId, home, shards));
+        }
+        keys.add(SECKILL_ORDER_STREAM_KEY);
+        keys.add(redisIdWorker.counterKey("order", now));
+        List<String> args = new ArrayList<>(ids.size() + 5);
+        args.add(userId.toString());
+        args.add(String.valueOf(redisIdWorker.timestamp(now)));
+        args.add(seckillProperties.isBuyerBitmapEnabled() ? "bitmap" : "set");
+        args.add(seckillKeys.buyerMember(userId));
+        args.add(String.valueOf(seckillProperties.getBuyerBitmapThreshold()));
+        ids.forEach(voucherId -> args.add(voucherId.toString()));
+        // 3.执行脚本，某张券所属分片库存不足时，从兄弟分片借到库存后重试
+        while (true) {
+            List<?> result = stringRedisTemplate.execute(SECKILL_BATCH_SCRIPT, keys, args.toArray());
+            if (result == null || result.isEmpty()) {
+                return Result.fail("下单失败");
+            }
+            long code = Long.parseLong(result.get(0).toString());
+            if (code == 0) {
+                List<Long> orderIds = result.subList(1, result.size()).stream()
+                                            .map(orderId -> Long.valueOf(orderId.toString()))
+                                            .collect(Collectors.toList());
+                recordQueued(orderIds, userId);
+                return Result.ok(orderIds);
+            }
+            Long voucherId = ids.get(Integer.parseInt(result.get(1).toString()) - 1);
+            if (code == 1) {
+                int shards = seckillKeys.shardCount(voucherId);
+                if (borrowStock(voucherId, seckillKeys.homeShard(userId, shards), shards)) {
+                    continue;
+                }
+                markSoldOut(voucherId);
+            }
+            return Result.fail("优惠券" + voucherId + seckillFailMessage(code));
+        }
+    }
+
+    private String seckillFailMessage(long code) {
+        switch ((int) code) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case 3:
+            case 5:
+                return "秒杀尚未开始";
+            case 4:
+                return "秒杀已经结束";
+            default:
+                return "下单失败";
+        }
+    }
+
+    /**
+     * 解析秒杀脚本的返回值 {code} 或 {0, orderId}
+     */
+    private SeckillResult toSeckillResult(List<?> result) {
+        if (result == null || result.isEmpty()) {
+            throw new IllegalStateException("秒杀脚本没有返回结果");
+        }
+        long code = Long.parseLong(result.get(0).toString());
+        Long orderId = result.size() > 1 ? Long.valueOf(result.get(1).toString()) : null;
+        return new SeckillResult(code, orderId);
+    }
+
+    /**
+     * 订单消息消费任务：V2逐条消费、V3批量消费共用的消费循环
+     * 每轮先发现订单stream，按间隔认领其他消费者空闲超时的消息、按退避时间重试pending-list，再从各stream读取新消息；
+     * 子类只实现如何读取和处理一个stream中的消息
      * @author zhao
-     * @date 2025/05/01
+     * @date 2025/05/06
      */
-    private class VoucherOrderTaskV2 implements Runnable {
+    private abstract class OrderConsumerTask implements Runnable {
+        protected final Consumer consumer;
+        private long nextClaimTime;
+        private long nextRetryTime;
+
+        private OrderConsumerTask(String consumerName) {
+            this.consumer = Consumer.from(ORDER_GROUP, consumerName);
+        }
+
+        @Override
         public void run() {
-            while (true) {
+            while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create("stream.orders", ReadOffset.lastConsumed())
-                    );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有消息，继续下一次循环
-                        continue;
+                    List<String> streams = discoverOrderStreams();
+                    // 0.定期认领其他消费者（已宕机）空闲超时的消息，转入自己的pending-list处理
+                    if (System.currentTimeMillis() >= nextClaimTime) {
+                        nextClaimTime = System.currentTimeMillis() + seckillProperties.getConsumer()
+                                                                                      .getClaimInterval()
+                                                                                      .toMillis();
+                        for (String stream : streams) {
+                            claimIdleOrders(consumer, stream);
+                            removeIdleConsumers(stream);
+                        }
+                    }
+                    // 0.1.定期按退避时间重试pending-list中处理失败的消息
+                    if (System.currentTimeMillis() >= nextRetryTime) {
+                        nextRetryTime = System.currentTimeMillis() + seckillProperties.getConsumer()
+                                                                                      .getRetryBackoff()
+                                                                                      .toMillis();
+                        for (String stream : streams) {
+                            retryPendingOrders(consumer, stream);
+                        }
                     }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    handleVoucherOrderV2(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
+                    // 只有一个stream时阻塞等待；多个stream（集群模式）时轮询，避免阻塞在某一个stream上
+                    Duration block = streams.size() == 1 ? Duration.ofSeconds(2) : null;
+                    int handled = 0;
+                    for (String stream : streams) {
+                        handled += consume(stream, block);
+                    }
+                    if (block == null && handled == 0) {
+                        // 所有stream都没有消息，稍作休眠
+                        Thread.sleep(STREAM_POLL_INTERVAL);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    // 处理异常消息
-                    handlePendingList();
+                    // 处理失败的消息留在pending-list，按退避时间重试
+                    log.error("处理订单异常, 消费者: {}", consumer.getName(), e);
+                    recoverAfterError(e);
                 }
             }
         }
 
-        private void handlePendingList() {
-            while (true) {
+        /**
+         * 读取并处理一个stream中的新消息，处理成功的消息需确认
+         * @param stream 订单stream
+         * @param block  读取的阻塞时间，为null时不阻塞
+         * @return int 读取到的消息数
+         */
+        protected abstract int consume(String stream, Duration block);
+    }
+
+    /**
+     * 凭证订购任务V3 - Stream MQ 批量消费
+     * 一次 XREADGROUP 拉取多条消息，在一个事务中多行插入订单、按优惠券聚合扣减库存，再批量 XACK
+     * @author zhao
+     * @date 2025/05/06
+     */
+    private class VoucherOrderTaskV3 extends OrderConsumerTask {
+
+        private VoucherOrderTaskV3(String consumerName) {
+            super(consumerName);
+        }
+
+        @Override
+        protected int consume(String stream, Duration block) {
+            // 1.攒批获取消息 XREADGROUP GROUP g1 consumer COUNT n BLOCK 2000 STREAMS stream.orders >
+            List<MapRecord<String, Object, Object>> records = readOrderBatch(consumer, stream, block);
+            // 2.判断是否有消息
+            if (records.isEmpty()) {
+                return 0;
+            }
+            // 3.批量创建订单并确认消息
+            handleVoucherOrderBatch(records);
+            return records.size();
+        }
+    }
+
+    /**
+     * 攒批读取订单消息
+     * 先等待第一批消息，之后在 maxLinger 时间内继续读取，直到凑满 batchSize 条
+     * @param consumer 消费者
+     * @param stream   订单stream
+     * @param block    第一次读取的阻塞时间，为null时不阻塞
+     * @return {@link List }<{@link MapRecord }<{@link String }, {@link Object }, {@link Object }>>
+     */
+    private List<MapRecord<String, Object, Object>> readOrderBatch(Consumer consumer, String stream, Duration block) {
+        SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        int batchSize = config.getBatchSize();
+        List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+        // 1.等待消息到达
+        List<MapRecord<String, Object, Object>> list = readOrders(consumer, stream, batchSize, block);
+        if (list == null || list.isEmpty()) {
+            return batch;
+        }
+        batch.addAll(list);
+        // 2.在 maxLinger 内继续凑批
+        long deadline = System.currentTimeMillis() + config.getMaxLinger().toMillis();
+        while (batch.size() < batchSize) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            list = readOrders(consumer, stream, batchSize - batch.size(), Duration.ofMillis(remaining));
+            if (list == null || list.isEmpty()) {
+                break;
+            }
+            batch.addAll(list);
+        }
+        return batch;
+    }
+
+    private List<MapRecord<String, Object, Object>> readOrders(Consumer consumer,
+                                                                String stream,
+                                                                int count,
+                                                                Duration block) {
+        StreamReadOptions options = StreamReadOptions.empty().count(count);
+        return stringRedisTemplate.opsForStream().read(
+                consumer,
+                block == null ? options : options.block(block),
+                StreamOffset.create(stream, ReadOffset.lastConsumed())
+        );
+    }
+
+    /**
+     * 发现订单stream
+     * 单机模式只有 stream.orders；集群模式每个优惠券（分片）一个stream，从 seckill:streams 中定期发现，并为新stream创建消费者组
+     * @return {@link List }<{@link String }>
+     */
+    private List<String> discoverOrderStreams() {
+        if (!seckillProperties.isClusterEnabled() || System.currentTimeMillis() < nextDiscoverTime) {
+            return orderStreams;
+        }
+        synchronized (this) {
+            if (System.currentTimeMillis() < nextDiscoverTime) {
+                return orderStreams;
+            }
+            Set<String> members = stringRedisTemplate.opsForSet().members(SECKILL_ORDER_STREAMS_KEY);
+            // 保留默认的 stream.orders，消费完开启集群模式前遗留的消息；已清理的秒杀券的stream不再出现在集合中
+            List<String> streams = members == null ? new ArrayList<>() : new ArrayList<>(members);
+            Collections.sort(streams);
+            streams.add(0, SECKILL_ORDER_STREAM_KEY);
+            for (String stream : streams) {
+                if (!orderStreams.contains(stream)) {
+                    createOrderGroup(stream);
+                }
+            }
+            orderStreams = streams;
+            nextDiscoverTime = System.currentTimeMillis() + STREAM_DISCOVER_INTERVAL;
+        }
+        return orderStreams;
+    }
+
+    /**
+     * 认领空闲超时的订单消息 XAUTOCLAIM
+     * 消费者宕机后其pending-list中的消息无人处理，由存活的消费者认领到自己名下，之后按退避时间重试
+     * @param consumer 认领到的消费者
+     * @param stream   订单stream
+     * @return boolean 是否认领到消息
+     */
+    private boolean claimIdleOrders(Consumer consumer, String stream) {
+        SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        String startId = "0-0";
+        long claimed = 0;
+        do {
+            List<Object> result = stringRedisTemplate.execute(
+                    STREAM_CLAIM_SCRIPT,
+                    Collections.singletonList(stream),
+                    ORDER_GROUP,
+                    consumer.getName(),
+                    String.valueOf(config.getClaimMinIdle().toMillis()),
+                    startId,
+                    String.valueOf(config.getBatchSize())
+            );
+            if (result == null || result.size() < 2) {
+                break;
+            }
+            startId = result.get(0).toString();
+            claimed += (Long) result.get(1);
+        } while (!"0-0".equals(startId));
+        if (claimed > 0) {
+            log.info("消费者{}认领{}中的空闲订单消息{}条", consumer.getName(), stream, claimed);
+        }
+        return claimed > 0;
+    }
+
+    /**
+     * 删除已宕机的消费者 XGROUP DELCONSUMER stream.orders g1 consumer
+     * 消费者名称包含进程号，每次重启都是新的消费者；其他节点空闲超过 claimMinIdle 且pending消息已被认领完的消费者视为已退出。
+     * 仍有pending消息的消费者不删除（删除会丢弃其pending消息），等消息被认领后再删除
+     * @param stream 订单stream
+     */
+    private void removeIdleConsumers(String stream) {
+        long minIdle = seckillProperties.getConsumer().getClaimMinIdle().toMillis();
+        removeConsumers(stream, info -> !consumerNames.contains(info.consumerName()) && info.idleTimeMs() >= minIdle);
+    }
+
+    /**
+     * 删除消费者组中没有pending消息、且满足条件的消费者
+     * @param stream    订单stream
+     * @param removable 是否删除
+     */
+    private void removeConsumers(String stream, Predicate<StreamInfo.XInfoConsumer> removable) {
+        // XINFO CONSUMERS stream.orders g1
+        for (StreamInfo.XInfoConsumer info : stringRedisTemplate.opsForStream().consumers(stream, ORDER_GROUP)) {
+            if (info.pendingCount() > 0 || !removable.test(info)) {
+                continue;
+            }
+            stringRedisTemplate.opsForStream().deleteConsumer(stream, Consumer.from(ORDER_GROUP, info.consumerName()));
+            log.info("删除{}中已退出的消费者{}", stream, info.consumerName());
+        }
+    }
+
+    /**
+     * 重试pending-list中处理失败的订单消息 XPENDING stream.orders g1 - + n consumer
+     * 按投递次数指数退避：第n次投递后空闲超过 retryBackoff * 2^(n-1) 才重新投递（XCLAIM，投递次数+1）；
+     * 投递次数达到 maxAttempts 的消息转入死信队列并确认，一条异常消息不会阻塞后续消息
+     * @param consumer 消费者
+     * @param stream   订单stream
+     */
+    private void retryPendingOrders(Consumer consumer, String stream) {
+        SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        // 1.查询自己pending-list中的消息及投递次数
+        PendingMessages pendingMessages = stringRedisTemplate.opsForStream().pending(
+                stream,
+                consumer,
+                Range.unbounded(),
+                config.getBatchSize()
+        );
+        for (PendingMessage pendingMessage : pendingMessages) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            long deliveryCount = pendingMessage.getTotalDeliveryCount();
+            // 2.超过最大投递次数，转入死信队列
+            if (deliveryCount >= config.getMaxAttempts()) {
+                moveToDeadLetter(stream, pendingMessage.getId(), deliveryCount);
+                continue;
+            }
+            // 3.未到退避时间，下次再试
+            Duration backoff = retryBackoff(deliveryCount);
+            if (pendingMessage.getElapsedTimeSinceLastDelivery().compareTo(backoff) < 0) {
+                continue;
+            }
+            // 4.重新投递 XCLAIM stream.orders g1 consumer backoff id
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().claim(
+                    stream,
+                    ORDER_GROUP,
+                    consumer.getName(),
+                    XClaimOptions.minIdle(backoff).ids(pendingMessage.getId())
+            );
+            if (records == null || records.isEmpty()) {
+                continue;
+            }
+            MapRecord<String, Object, Object> record = records.get(0);
+            try {
+                // 5.逐条创建订单并确认消息
+                handleOrderMessage(record.getValue());
+                stringRedisTemplate.opsForStream().acknowledge(stream, ORDER_GROUP, record.getId());
+            } catch (Exception e) {
+                log.warn("订单消息{}第{}次处理失败，稍后重试", record.getId(), deliveryCount + 1, e);
+            }
+        }
+    }
+
+    /**
+     * 第n次投递失败后的退避时间 retryBackoff * 2^(n-1)，不超过 maxRetryBackoff
+     */
+    private Duration retryBackoff(long deliveryCount) {
+        SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        Duration backoff = config.getRetryBackoff().multipliedBy(1L << Math.min(deliveryCount - 1, 20));
+        return backoff.compareTo(config.getMaxRetryBackoff()) > 0 ? config.getMaxRetryBackoff() : backoff;
+    }
+
+    /**
+     * 把多次处理失败的消息转入死信队列 XADD stream.orders.dlq * ... stream 原stream deliveries 投递次数，再确认原消息
+     * @param stream        订单stream
+     * @param recordId      消息 ID
+     * @param deliveryCount 投递次数
+     */
+    private void moveToDeadLetter(String stream, RecordId recordId, long deliveryCount) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                stream,
+                Range.closed(recordId.getValue(), recordId.getValue())
+        );
+        if (records != null && !records.isEmpty()) {
+            Map<Object, Object> value = new HashMap<>(records.get(0).getValue());
+            value.put("stream", stream);
+            value.put("deliveries", String.valueOf(deliveryCount));
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ_KEY, value);
+        }
+        stringRedisTemplate.opsForStream().acknowledge(stream, ORDER_GROUP, recordId);
+        log.error("订单消息{}投递{}次仍处理失败，转入死信队列", recordId, deliveryCount);
+        if (records != null && !records.isEmpty()) {
+            Map<Object, Object> value = records.get(0).getValue();
+            // 批量秒杀的消息包含多个订单 lines=voucherId:orderId,...
+            List<String> orderIds = new ArrayList<>();
+            if (value.containsKey("lines")) {
+                for (String line : StrUtil.split(StrUtil.toString(value.get("lines")), ',')) {
+                    orderIds.add(StrUtil.subAfter(line, ':', false));
+                }
+            } else {
+                orderIds.add(StrUtil.toString(value.get("id")));
+            }
+            String userId = StrUtil.toString(value.get("userId"));
+            for (String orderId : orderIds) {
+                if (NumberUtil.isLong(orderId) && NumberUtil.isLong(userId)) {
+                    seckillOrderStatus.failed(Long.valueOf(orderId), Long.valueOf(userId), "订单处理失败");
+                }
+            }
+        }
+    }
+
+    /**
+     * 重放死信队列中的订单消息：重新写回原stream，并从死信队列删除
+     * 订单落库是幂等的，重放时即使重复写回也不会重复下单
+     * @param count 最多重放的消息数
+     * @return {@link Result } 重放的消息数
+     */
+    @Override
+    public Result replayDeadLetters(Integer count) {
+        int limit = count == null || count <= 0 ? Integer.MAX_VALUE : count;
+        int replayed = 0;
+        while (replayed < limit) {
+            // 1.按顺序读取死信 XRANGE stream.orders.dlq - + COUNT n
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                    SECKILL_ORDER_DLQ_KEY,
+                    Range.unbounded(),
+                    Limit.limit().count(Math.min(limit - replayed, seckillProperties.getConsumer().getBatchSize()))
+            );
+            if (records == null || records.isEmpty()) {
+                break;
+            }
+            for (MapRecord<String, Object, Object> record : records) {
+                Map<Object, Object> value = new HashMap<>(record.getValue());
+                Object stream = value.remove("stream");
+                value.remove("deliveries");
+                // 2.写回原stream，作为新消息重新投递；原stream已随秒杀券清理时写入默认的 stream.orders
+                stringRedisTemplate.opsForStream().add(replayStream(stream), value);
+                // 3.删除死信 XDEL stream.orders.dlq id
+                stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_DLQ_KEY, record.getId());
+                replayed++;
+            }
+        }
+        log.info("重放死信订单消息{}条", replayed);
+        return Result.ok(replayed);
+    }
+
+    /**
+     * 重放本节点归档的订单消息：按顺序重新写入订单stream，由消费者再次落库
+     * 订单落库是幂等的，已落库的订单不会重复下单；用于数据库恢复到旧备份后补回归档期间的订单。
+     * 归档文件只在开启归档的节点本地，需在该节点调用；在后台线程中按批管道写入，调用立即返回，完成后记录日志
+     * @param stream 归档的订单stream
+     * @return {@link Result }
+     */
+    @Override
+    public Result replayArchivedOrders(String stream) {
+        if (!archiveReplaying.compareAndSet(false, true)) {
+            return Result.fail("正在重放归档订单消息");
+        }
+        String target = replayStream(stream);
+        try {
+            archiveReplayer.execute(() -> {
+                List<Map<byte[], byte[]>> batch = new ArrayList<>(REPLAY_BATCH_SIZE);
                 try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
-                    List<MapRecord<String, Object, Object>> list =
-                            stringRedisTemplate.opsForStream().read(
-                                    Consumer.from("g1", "c1"),
-                                    StreamReadOptions.empty().count(1),
-                                    StreamOffset.create("stream.orders", ReadOffset.from("0"))
-                            );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有消息，结束循环
-                        break;
-                    }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    handleVoucherOrderV2(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
+                    long replayed = orderStreamArchiver.replay(stream, (id, fields) -> {
+                        Map<byte[], byte[]> value = new HashMap<>(fields.size());
+                        fields.forEach((field, v) -> value.put(bytes(field), bytes(String.valueOf(v))));
+                        batch.add(value);
+                        if (batch.size() == REPLAY_BATCH_SIZE) {
+                            addPipelined(target, batch);
+                            batch.clear();
+                        }
+                    });
+                    addPipelined(target, batch);
+                    log.info("重放归档订单消息{}条, stream: {}", replayed, stream);
                 } catch (Exception e) {
-                    log.error("处理订单异常", e);
+                    log.error("重放归档订单消息失败, stream: {}", stream, e);
+                } finally {
+                    archiveReplaying.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            archiveReplaying.set(false);
+            return Result.fail("节点正在关闭");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 一次管道写入一批消息 XADD stream * k v ...
+     */
+    private void addPipelined(String stream, List<Map<byte[], byte[]>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        byte[] key = bytes(stream);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map<byte[], byte[]> value : batch) {
+                connection.streamCommands().xAdd(StreamRecords.rawBytes(value).withStreamKey(key));
+            }
+            return null;
+        });
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 重放消息写入的stream：集群模式下原stream已从 seckill:streams 移除（秒杀券已清理）时不再有消费者，改为写入 stream.orders
+     */
+    private String replayStream(Object stream) {
+        if (stream == null) {
+            return SECKILL_ORDER_STREAM_KEY;
+        }
+        if (seckillProperties.isClusterEnabled()
+                && !SECKILL_ORDER_STREAM_KEY.equals(stream.toString())
+                && !Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(SECKILL_ORDER_STREAMS_KEY, stream.toString()))) {
+            return SECKILL_ORDER_STREAM_KEY;
+        }
+        return stream.toString();
+    }
+
+    /**
+     * 核对秒杀券Redis与数据库的库存和下单用户
+     * @param voucherId 优惠券 ID，为空时核对全部已预热的秒杀券
+     * @param repair    是否修复连续两次核对都存在的差异
+     * @return {@link Result }
+     */
+    @Override
+    public Result reconcileSeckill(Long voucherId, boolean repair) {
+        List<ReconcileReport> reports = seckillReconciler.reconcile(voucherId, repair);
+        if (reports == null) {
+            return Result.fail("对账任务执行中，请稍后重试");
+        }
+        return Result.ok(reports);
+    }
+
+    /**
+     * 消费异常后的恢复：消费者组丢失（Redis重启、stream被删除）时重建消费者组，并稍作休眠，避免异常时空转
+     * @param e 异常
+     */
+    private void recoverAfterError(Exception e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && (t.getMessage().contains("NOGROUP") || t.getMessage().contains("no such key"))) {
+                // 先重新发现stream，已清理的秒杀券的stream不再创建（创建消费者组会用MKSTREAM重建stream）
+                log.warn("订单消费者组不存在，重新创建");
+                nextDiscoverTime = 0;
+                discoverOrderStreams().forEach(this::createOrderGroup);
+                break;
+            }
+        }
+        try {
+            Thread.sleep(seckillProperties.getConsumer().getRetryBackoff().toMillis());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 批量处理优惠券订单 - Stream MQ 批量消费
+     * 整批在一个事务中落库后统一 XACK；整批失败时回滚并退化为逐条处理，避免一条异常消息拖垮整批
+     * 事务提交后记录每个订单的处理状态，供客户端查询
+     * @param records 订单消息
+     */
+    private void handleVoucherOrderBatch(List<MapRecord<String, Object, Object>> records) {
+        String stream = records.get(0).getStream();
+        // 1.解析数据，批量秒杀的消息单独在各自的事务中处理
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        List<RecordId> singleIds = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            if (!record.getValue().containsKey("lines")) {
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                singleIds.add(record.getId());
+                continue;
+            }
+            try {
+                handleOrderMessage(record.getValue());
+                stringRedisTemplate.opsForStream().acknowledge(stream, ORDER_GROUP, record.getId());
+            } catch (Exception e) {
+                log.error("处理批量秒杀订单异常，消息{}", record.getId(), e);
+            }
+        }
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        RecordId[] recordIds = singleIds.toArray(new RecordId[0]);
+        Map<Long, String> failures;
+        try {
+            // 2.一个事务内批量创建订单
+            failures = proxy.createVoucherOrderBatch(voucherOrders);
+            log.debug("批量创建订单，消息{}条，失败{}条", records.size(), failures.size());
+        } catch (Exception e) {
+            log.error("批量创建订单失败，退化为逐条处理", e);
+            // 3.逐条创建订单，成功的逐条确认，失败的留在pending-list
+            for (int i = 0; i < voucherOrders.size(); i++) {
+                try {
+                    handleVoucherOrderV2(voucherOrders.get(i));
+                    stringRedisTemplate.opsForStream().acknowledge(stream, ORDER_GROUP, recordIds[i]);
+                } catch (Exception ex) {
+                    log.error("处理订单异常，orderId={}", voucherOrders.get(i).getId(), ex);
                 }
             }
+            return;
+        }
+        // 4.记录订单处理状态
+        Set<Long> persisted = new LinkedHashSet<>();
+        List<VoucherOrder> persistedOrders = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (!failures.containsKey(voucherOrder.getId()) && persisted.add(voucherOrder.getId())) {
+                persistedOrders.add(voucherOrder);
+            }
+        }
+        seckillOrderStatus.persisted(persistedOrders);
+        recordFailures(voucherOrders, failures);
+        registerPayTimeout(persisted);
+        // 5.整批确认消息 XACK stream.orders g1 id1 id2 ...
+        stringRedisTemplate.opsForStream().acknowledge(stream, ORDER_GROUP, recordIds);
+    }
+
+    /**
+     * 批量创建优惠券订单 - Stream MQ 批量消费
+     * 一个事务内：过滤重复订单、按优惠券聚合扣减库存（stock = stock - k）、多行插入订单
+     * @param voucherOrders 优惠券订单
+     * @return {@link Map }<{@link Long }, {@link String }> 下单失败的订单id及原因，其余订单均已落库
+     */
+    @Transactional
+    @Override
+    public Map<Long, String> createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        if (seckillProperties.getConsumer().isIdempotentInsert()) {
+            return insertVoucherOrdersIgnore(voucherOrders);
+        }
+        Map<Long, String> failures = new HashMap<>();
+        // 1.批内去重，同一用户同一优惠券只保留一条
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            VoucherOrder first = orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+            if (first != null && !first.getId().equals(voucherOrder.getId())) {
+                failures.put(voucherOrder.getId(), DUPLICATE_ORDER);
+            }
+        }
+        // 2.一次查询过滤已落库的订单（消息重复投递时的兜底），已取消的订单不占用一人一单
+        Set<Long> userIds = voucherOrders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = voucherOrders.stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> existed = query().select("id", "user_id", "voucher_id")
+                                            .in("user_id", userIds)
+                                            .in("voucher_id", voucherIds)
+                                            .ne("status", ORDER_STATUS_CANCELLED)
+                                            .list();
+        for (VoucherOrder voucherOrder : existed) {
+            VoucherOrder order = orderMap.remove(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId());
+            // 订单id相同说明是消息重复投递，订单已落库；不同说明用户已经买过
+            if (order != null && !order.getId().equals(voucherOrder.getId())) {
+                failures.put(order.getId(), DUPLICATE_ORDER);
+            }
+        }
+        if (orderMap.isEmpty()) {
+            return failures;
+        }
+        List<VoucherOrder> orders = new ArrayList<>(orderMap.values());
+
+        // 3.按优惠券聚合扣减库存
+        Map<Long, Long> countByVoucher = orders.stream().collect(Collectors.groupingBy(
+                VoucherOrder::getVoucherId,
+                Collectors.counting()
+        ));
+        for (Map.Entry<Long, Long> entry : countByVoucher.entrySet()) {
+            Long count = entry.getValue();
+            // set stock = stock - k where voucher_id = ? and stock >= k
+            boolean success = seckillVoucherService.update()
+                                                   .setSql("stock = stock - " + count)
+                                                   .eq("voucher_id", entry.getKey())
+                                                   .ge("stock", count)
+                                                   .update();
+            if (!success) {
+                // 库存不足，回滚整批
+                throw new RuntimeException("库存不足，voucherId=" + entry.getKey());
+            }
+        }
+        // 4.多行插入订单
+        getBaseMapper().insertBatch(orders);
+        return failures;
+    }
+
+    /**
+     * 幂等批量创建订单（在 createVoucherOrderBatch 的事务中执行）
+     * 按优惠券 INSERT IGNORE 多行插入，按实际插入行数扣减库存；只有发生冲突时才查询哪些订单已落库
+     * @param voucherOrders 优惠券订单
+     * @return {@link Map }<{@link Long }, {@link String }> 下单失败的订单id及原因
+     */
+    private Map<Long, String> insertVoucherOrdersIgnore(List<VoucherOrder> voucherOrders) {
+        Map<Long, String> failures = new HashMap<>();
+        // 1.按优惠券分组，同一订单重复投递只保留一条
+        Map<Long, Map<Long, VoucherOrder>> ordersByVoucher = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            ordersByVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new LinkedHashMap<>())
+                           .putIfAbsent(voucherOrder.getId(), voucherOrder);
+        }
+        for (Map.Entry<Long, Map<Long, VoucherOrder>> entry : ordersByVoucher.entrySet()) {
+            Map<Long, VoucherOrder> orders = entry.getValue();
+            // 2.多行插入，冲突的行被忽略
+            int inserted = getBaseMapper().insertIgnoreBatch(new ArrayList<>(orders.values()));
+            if (inserted < orders.size()) {
+                // 3.有冲突：已落库的订单id视为成功（重复投递），其余是重复下单
+                Set<Long> persisted = query().select("id").in("id", orders.keySet()).list()
+                                             .stream()
+                                             .map(VoucherOrder::getId)
+                                             .collect(Collectors.toSet());
+                for (Long orderId : orders.keySet()) {
+                    if (!persisted.contains(orderId)) {
+                        failures.put(orderId, DUPLICATE_ORDER);
+                    }
+                }
+            }
+            if (inserted == 0) {
+                continue;
+            }
+            // 4.按实际插入行数扣减库存 set stock = stock - k where voucher_id = ? and stock >= k
+            boolean success = seckillVoucherService.update()
+                                                   .setSql("stock = stock - " + inserted)
+                                                   .eq("voucher_id", entry.getKey())
+                                                   .ge("stock", inserted)
+                                                   .update();
+            if (!success) {
+                // 库存不足，回滚整批
+                throw new RuntimeException("库存不足，voucherId=" + entry.getKey());
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * 凭证订购任务V2 - Stream MQ
+     * @author zhao
+     * @date 2025/05/01
+     */
+    private class VoucherOrderTaskV2 extends OrderConsumerTask {
+
+        private VoucherOrderTaskV2(String consumerName) {
+            super(consumerName);
+        }
+
+        @Override
+        protected int consume(String stream, Duration block) {
+            // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 consumer COUNT 1 BLOCK 2000 STREAMS stream.orders >
+            List<MapRecord<String, Object, Object>> list = readOrders(consumer, stream, 1, block);
+            // 2.判断订单信息是否为空
+            if (list == null || list.isEmpty()) {
+                // 如果为null，说明没有消息
+                return 0;
+            }
+            // 解析数据
+            MapRecord<String, Object, Object> record = list.get(0);
+            // 3.创建订单
+            handleOrderMessage(record.getValue());
+            // 4.确认消息 XACK stream.orders g1 id
+            stringRedisTemplate.opsForStream().acknowledge(stream, ORDER_GROUP, record.getId());
+            return 1;
+        }
+    }
+
+    /**
+     * 处理一条订单消息：单个订单为 userId、voucherId、id；批量秒杀为 userId、lines（voucherId:orderId,...）
+     * @param value 消息内容
+     */
+    private void handleOrderMessage(Map<Object, Object> value) {
+        if (!value.containsKey("lines")) {
+            handleVoucherOrderV2(BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true));
+            return;
+        }
+        Long userId = Long.valueOf(value.get("userId").toString());
+        List<VoucherOrder> voucherOrders = new ArrayList<>();
+        for (String line : StrUtil.split(value.get("lines").toString(), ',')) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setUserId(userId);
+            voucherOrder.setVoucherId(Long.valueOf(StrUtil.subBefore(line, ':', false)));
+            voucherOrder.setId(Long.valueOf(StrUtil.subAfter(line, ':', false)));
+            voucherOrders.add(voucherOrder);
+        }
+        handleMultiVoucherOrder(voucherOrders);
+    }
+
+    /**
+     * 处理批量秒杀的订单：同一用户的多个订单在一个事务中落库，全部成功或全部失败
+     * @param voucherOrders 优惠券订单
+     */
+    private void handleMultiVoucherOrder(List<VoucherOrder> voucherOrders) {
+        if (seckillProperties.getConsumer().isIdempotentInsert()) {
+            recordOrderStatus(voucherOrders, proxy.createVoucherOrderMulti(voucherOrders));
+            return;
+        }
+        // 与单个订单共用用户锁
+        RLock lock = redissonClient.getLock("order:" + voucherOrders.get(0).getUserId());
+        if (!lock.tryLock()) {
+            throw new IllegalStateException("用户订单处理中，orderId=" + voucherOrders.get(0).getId());
+        }
+        try {
+            recordOrderStatus(voucherOrders, proxy.createVoucherOrderMulti(voucherOrders));
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * 批量秒杀的订单在一个事务中逐个创建，任意一个失败则全部回滚
+     * @param voucherOrders 优惠券订单
+     * @return {@link Result } 失败时为第一个失败订单的原因
+     */
+    @Transactional
+    @Override
+    public Result createVoucherOrderMulti(List<VoucherOrder> voucherOrders) {
+        boolean idempotent = seckillProperties.getConsumer().isIdempotentInsert();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            // 同一事务内调用，不经过代理
+            Result result = idempotent ? createVoucherOrderIdempotent(voucherOrder) : createVoucherOrderV2(voucherOrder);
+            if (!Boolean.TRUE.equals(result.getSuccess())) {
+                TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+                return result;
+            }
+        }
+        return Result.ok(voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+    }
 
     /**
      * 处理优惠券订单V2 - Stream MQ
      * @param voucherOrder 优惠券订购
      */
     private void handleVoucherOrderV2(VoucherOrder voucherOrder) {
+        if (seckillProperties.getConsumer().isIdempotentInsert()) {
+            // 幂等落库，由唯一索引保证一人一单，无需加锁
+            recordOrderStatus(Collections.singletonList(voucherOrder), proxy.createVoucherOrderIdempotent(voucherOrder));
+            return;
+        }
         // 获取用户
         Long userId = voucherOrder.getUserId();
         // 创建锁对象
@@ -163,19 +1215,192 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         boolean isLock = lock.tryLock();
         // 加锁失败
         if (!isLock) {
-            // 获取锁失败，返回错误或重试
-            log.error("不允许重复下单");
-            return;
+            // 获取锁失败，该用户的订单正在处理，消息留在pending-list稍后重试
+            throw new IllegalStateException("用户订单处理中，orderId=" + voucherOrder.getId());
         }
         try {
             // 注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
-            proxy.createVoucherOrderV2(voucherOrder);
+            Result result = proxy.createVoucherOrderV2(voucherOrder);
+            // 记录订单处理状态
+            recordOrderStatus(Collections.singletonList(voucherOrder), result);
         } finally {
             // 释放锁
             lock.unlock();
         }
     }
 
+    private void recordOrderStatus(List<VoucherOrder> voucherOrders, Result result) {
+        List<Long> orderIds = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        if (Boolean.TRUE.equals(result.getSuccess())) {
+            seckillOrderStatus.persisted(voucherOrders);
+            registerPayTimeout(orderIds);
+        } else {
+            Map<Long, String> failures = new HashMap<>(orderIds.size());
+            orderIds.forEach(orderId -> failures.put(orderId, result.getErrorMsg()));
+            recordFailures(voucherOrders, failures);
+        }
+    }
+
+    /**
+     * 记录下单失败的订单，并退回重复下单的订单在Redis中预扣的库存
+     * 只处理首次记录失败的订单，消息重复投递时不会重复退回
+     * @param voucherOrders 订单
+     * @param failures      失败的订单id及原因
+     */
+    private void recordFailures(List<VoucherOrder> voucherOrders, Map<Long, String> failures) {
+        List<VoucherOrder> rejected = new ArrayList<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            String reason = failures.get(voucherOrder.getId());
+            if (reason != null && seckillOrderStatus.failed(voucherOrder.getId(), voucherOrder.getUserId(), reason) && DUPLICATE_ORDER.equals(reason)) {
+                rejected.add(voucherOrder);
+            }
+        }
+        if (!rejected.isEmpty()) {
+            releaseRejectedOrders(rejected);
+        }
+    }
+
+    /**
+     * 退回重复下单未能落库的订单在Redis中预扣的库存（下单脚本已扣减库存、记录下单用户）
+     * 用户已有有效订单时保留一人一单记录，只退回库存；否则与取消订单相同，同时移除下单记录
+     * @param voucherOrders 重复下单的订单
+     */
+    private void releaseRejectedOrders(List<VoucherOrder> voucherOrders) {
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            Long voucherId = voucherOrder.getVoucherId();
+            Long userId = voucherOrder.getUserId();
+            int shards = seckillKeys.shardCount(voucherId);
+            int home = seckillKeys.homeShard(userId, shards);
+            String stockKey = seckillKeys.stockKey(voucherId, home, shards);
+            boolean active = query().eq("user_id", userId)
+                                    .eq("voucher_id", voucherId)
+                                    .ne("status", ORDER_STATUS_CANCELLED)
+                                    .count() > 0;
+            if (active) {
+                // INCRBY seckill:stock:{voucherId} 1
+                stringRedisTemplate.execute(STOCK_RETURN_SCRIPT, Collections.singletonList(stockKey), "1");
+            } else {
+                List<String> buyerKeys = seckillKeys.buyerKeys(voucherId, home, shards, userId);
+                stringRedisTemplate.execute(
+                        SECKILL_CANCEL_SCRIPT,
+                        Arrays.asList(stockKey, buyerKeys.get(0), buyerKeys.get(1)),
+                        seckillKeys.buyerMember(userId)
+                );
+            }
+            voucherIds.add(voucherId);
+            log.warn("重复下单的订单未落库，退回Redis库存, orderId: {}, 保留下单记录: {}", voucherOrder.getId(), active);
+        }
+        voucherIds.forEach(this::clearSoldOut);
+    }
+
+    /**
+     * 幂等创建优惠券订单：先 INSERT IGNORE，依赖 (user_id, voucher_id) 唯一索引保证一人一单，插入成功再扣减库存
+     * 不加分布式锁、不预先查询订单，同一用户的订单可以在任意消费者并行处理
+     * @param voucherOrder 优惠券订单
+     * @return {@link Result } 订单已落库（含重复投递）时成功，重复下单、库存不足时失败
+     */
+    @Transactional
+    @Override
+    public Result createVoucherOrderIdempotent(VoucherOrder voucherOrder) {
+        // 1.插入订单，冲突则忽略
+        int inserted = getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder));
+        if (inserted == 0) {
+            // 2.冲突：订单id已存在说明是消息重复投递，否则是用户已经买过
+            return getById(voucherOrder.getId()) != null
+                    ? Result.ok(voucherOrder.getId())
+                    : Result.fail(DUPLICATE_ORDER);
+        }
+        // 3.扣减库存
+        boolean success = seckillVoucherService.update()
+                                               .setSql("stock = stock - 1")
+                                               .eq("voucher_id", voucherOrder.getVoucherId())
+                                               .gt("stock", 0)
+                                               .update();
+        if (!success) {
+            // 库存不足，回滚插入的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return Result.fail("库存不足");
+        }
+        return Result.ok(voucherOrder.getId());
+    }
+
+
+    // ==============================================支付超时============================================== //
+
+    /**
+     * 登记订单的支付超时，订单落库后调用
+     * @param orderIds 订单 ID
+     */
+    private void registerPayTimeout(Collection<Long> orderIds) {
+        if (seckillProperties.isPayTimeoutEnabled()) {
+            orderDelayQueue.add(orderIds);
+        }
+    }
+
+    /**
+     * 取消超时未支付的订单（延迟队列的处理器）
+     * 数据库事务提交后再退回Redis库存；退回Redis失败时该批订单留在延迟队列，重试时已不是未支付状态，
+     * Redis库存只会偏少，不会超卖
+     * @param orderIds 到期的订单 ID
+     */
+    private void cancelTimeoutOrders(List<Long> orderIds) {
+        // 1.取消仍未支付的订单，库存退回数据库
+        List<VoucherOrder> cancelled = proxy.cancelUnpaidOrders(orderIds);
+        if (cancelled.isEmpty()) {
+            return;
+        }
+        // 2.库存退回Redis，移除一人一单记录
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : cancelled) {
+            Long voucherId = voucherOrder.getVoucherId();
+            Long userId = voucherOrder.getUserId();
+            int shards = seckillKeys.shardCount(voucherId);
+            int home = seckillKeys.homeShard(userId, shards);
+            List<String> buyerKeys = seckillKeys.buyerKeys(voucherId, home, shards, userId);
+            stringRedisTemplate.execute(
+                    SECKILL_CANCEL_SCRIPT,
+                    Arrays.asList(seckillKeys.stockKey(voucherId, home, shards), buyerKeys.get(0), buyerKeys.get(1)),
+                    seckillKeys.buyerMember(userId)
+            );
+            voucherIds.add(voucherId);
+        }
+        // 3.有库存退回，清除售罄标记
+        voucherIds.forEach(this::clearSoldOut);
+        log.info("取消超时未支付订单{}个", cancelled.size());
+    }
+
+    /**
+     * 取消未支付的订单，并按优惠券把库存退回数据库
+     * 先锁定仍未支付的订单，与支付并发时只有一方能修改订单状态
+     * @param orderIds 订单 ID
+     * @return {@link List }<{@link VoucherOrder }> 本次取消的订单
+     */
+    @Transactional
+    @Override
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        // 1.锁定仍未支付的订单 SELECT ... WHERE id IN (...) AND status = 1 FOR UPDATE
+        List<VoucherOrder> orders = query().in("id", orderIds)
+                                           .eq("status", ORDER_STATUS_UNPAID)
+                                           .last("FOR UPDATE")
+                                           .list();
+        if (orders.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 2.取消订单
+        update().set("status", ORDER_STATUS_CANCELLED)
+                .in("id", orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .eq("status", ORDER_STATUS_UNPAID)
+                .update();
+        // 3.按优惠券退回库存 set stock = stock + k where voucher_id = ?
+        Map<Long, Long> counts = orders.stream()
+                                       .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        counts.forEach((voucherId, count) -> seckillVoucherService.update()
+                                                                  .setSql("stock = stock + " + count)
+                                                                  .eq("voucher_id", voucherId)
+                                                                  .update());
+        return orders;
+    }
 
     // ==============================================异步阻塞队列============================================ //
 
@@ -188,50 +1413,151 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result seckillVoucherV2(Long voucherId) {
         // 获取用户·
         Long userId = UserHolder.getUser().getId();
-        Long orderId = redisIdWorker.nextId("order");
         // 执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                orderId.toString()
-        );
+        SeckillResult result = executeSeckillScript(voucherId, userId, false);
         // 判断购买资格
-        if (result != 0) {
+        if (result.getCode() != 0) {
             // 不为0代表没有资格购买
-            return Result.fail(result == 1 ? "库存不足" : "不能重复下单");
+            return Result.fail(seckillFailMessage(result.getCode()));
         }
         log.info("用户{}有购买资格", userId);
         // 为0，则有购买资格
+        Long orderId = result.getOrderId();
         VoucherOrder voucherOrder = new VoucherOrder();
-        voucherOrder.setId(redisIdWorker.nextId("order")).setUserId(userId).setVoucherId(voucherId);
+        voucherOrder.setId(orderId).setUserId(userId).setVoucherId(voucherId);
         // 放入阻塞队列
         orderTasks.add(voucherOrder);
+        recordQueued(Collections.singletonList(orderId), userId);
         log.info("用户{}订单放入阻塞队列", userId);
-        // 获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         return Result.ok(orderId);
     }
 
     // 秒杀Lua脚本-判断用户是否有购买资格
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
+    }
+
+    // 退回一个库存的Lua脚本，与归还租约相同：库存key存在时 INCRBY
+    private static final DefaultRedisScript<Long> STOCK_RETURN_SCRIPT;
+
+    static {
+        STOCK_RETURN_SCRIPT = new DefaultRedisScript<>();
+        STOCK_RETURN_SCRIPT.setLocation(new ClassPathResource("seckill-lease-return.lua"));
+        STOCK_RETURN_SCRIPT.setResultType(Long.class);
     }
 
+    // 从兄弟分片借库存的Lua脚本
+    private static final DefaultRedisScript<Long> STOCK_BORROW_SCRIPT;
+    // 单次最多借出的库存
+    private static final int MAX_BORROW_STOCK = 100;
+
+    // 批量秒杀的Lua脚本
+    private static final DefaultRedisScript<List> SECKILL_BATCH_SCRIPT;
+    // 批量秒杀一次最多抢购的优惠券数
+    private static final int MAX_BATCH_VOUCHERS = 10;
+
+    static {
+        SECKILL_BATCH_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BATCH_SCRIPT.setLocation(new ClassPathResource("seckill-batch.lua"));
+        SECKILL_BATCH_SCRIPT.setResultType(List.class);
+    }
+
+    static {
+        STOCK_BORROW_SCRIPT = new DefaultRedisScript<>();
+        STOCK_BORROW_SCRIPT.setLocation(new ClassPathResource("seckill-borrow.lua"));
+        STOCK_BORROW_SCRIPT.setResultType(Long.class);
+    }
+
+    // 取消订单后归还秒杀库存的Lua脚本
+    private static final DefaultRedisScript<Long> SECKILL_CANCEL_SCRIPT;
+
+    static {
+        SECKILL_CANCEL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill-cancel.lua"));
+        SECKILL_CANCEL_SCRIPT.setResultType(Long.class);
+    }
+
+    // 认领空闲超时消息的Lua脚本
+    private static final DefaultRedisScript<List> STREAM_CLAIM_SCRIPT;
+
+    static {
+        STREAM_CLAIM_SCRIPT = new DefaultRedisScript<>();
+        STREAM_CLAIM_SCRIPT.setLocation(new ClassPathResource("stream-claim.lua"));
+        STREAM_CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    // 注入自身的代理对象（事务），消费线程启动时即可使用，无需等待第一次下单请求
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
-    // 异步处理线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    // 异步处理线程池，每个线程是消费者组中的一个消费者
+    private ExecutorService seckillOrderExecutor;
+    // 本节点的消费者名称，关闭时从消费者组删除
+    private final List<String> consumerNames = new ArrayList<>();
     private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
 
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderTaskV2()); // VoucherOrderTaskV1
+        // 订阅售罄广播
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onSoldOutMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL)
+        );
+        SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        // 创建消费者组 XGROUP CREATE stream.orders g1 0 MKSTREAM
+        createOrderGroup(SECKILL_ORDER_STREAM_KEY);
+        // 消费者名称 = 实例id-序号，保证多节点、多线程下消费者互不相同
+        String instanceId = StrUtil.isNotBlank(config.getInstanceId())
+                ? config.getInstanceId()
+                : NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid();
+        seckillOrderExecutor = Executors.newFixedThreadPool(config.getCount());
+        for (int i = 0; i < config.getCount(); i++) {
+            String consumerName = instanceId + "-" + i;
+            consumerNames.add(consumerName);
+            if (config.isBatchEnabled()) {
+                seckillOrderExecutor.submit(new VoucherOrderTaskV3(consumerName));
+            } else {
+                seckillOrderExecutor.submit(new VoucherOrderTaskV2(consumerName)); // VoucherOrderTaskV1
+            }
+        }
+        log.info("订单消费者启动，实例{}，消费者{}个", instanceId, config.getCount());
+        // 支付超时取消
+        if (seckillProperties.isPayTimeoutEnabled()) {
+            orderDelayQueue.start(this::cancelTimeoutOrders);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        archiveReplayer.shutdownNow();
+        seckillOrderExecutor.shutdownNow();
+        // 等待消费线程退出后，删除本节点没有pending消息的消费者；有pending消息的由其他节点认领后删除
+        seckillOrderExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        for (String stream : orderStreams) {
+            try {
+                removeConsumers(stream, info -> consumerNames.contains(info.consumerName()));
+            } catch (Exception e) {
+                log.warn("删除{}的消费者失败", stream, e);
+            }
+        }
+    }
+
+    /**
+     * 创建订单消息的消费者组，已存在则忽略
+     * @param stream 订单stream
+     */
+    private void createOrderGroup(String stream) {
+        try {
+            stringRedisTemplate.opsForStream().createGroup(stream, ReadOffset.from("0"), ORDER_GROUP);
+        } catch (Exception e) {
+            // BUSYGROUP Consumer Group name already exists
+            log.debug("{}的消费者组{}已存在", stream, ORDER_GROUP);
+        }
     }
 
     /**
@@ -284,22 +1610,30 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     /**
      * 创建优惠券订单V2 - 异步
      * @param voucherOrder 优惠券订购
+     * @return {@link Result } 订单已落库时成功，重复下单、库存不足时失败
      */
     @Transactional
     @Override
-    public void createVoucherOrderV2(VoucherOrder voucherOrder) {
+    public Result createVoucherOrderV2(VoucherOrder voucherOrder) {
         // 这些判断有些冗余，因为redis中已经判断该用户有购买资格，直接返回给前端了
         // 然后后台的购买任务放入阻塞队列中排队，执行该任务就一定可行，不存在库存不足、一人一单问题
         // 兜底操作
         Long userId = voucherOrder.getUserId();
-        // 5.1.查询订单
-        int count = Math.toIntExact(query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId())
-                                           .count());
+        // 5.1.查询订单，已取消的订单不占用一人一单
+        List<VoucherOrder> existed = query().select("id")
+                                            .eq("user_id", userId)
+                                            .eq("voucher_id", voucherOrder.getVoucherId())
+                                            .ne("status", ORDER_STATUS_CANCELLED)
+                                            .list();
         // 5.2.判断是否存在
-        if (count > 0) {
+        if (!existed.isEmpty()) {
+            if (existed.stream().anyMatch(o -> o.getId().equals(voucherOrder.getId()))) {
+                // 消息重复投递，订单已经落库
+                return Result.ok(voucherOrder.getId());
+            }
             // 用户已经购买过了
             log.error("用户已经购买过了");
-            return;
+            return Result.fail(DUPLICATE_ORDER);
         }
 
         // 6.扣减库存
@@ -311,9 +1645,10 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (!success) {
             // 扣减失败
             log.error("库存不足");
-            return;
+            return Result.fail("库存不足");
         }
         save(voucherOrder);
+        return Result.ok(voucherOrder.getId());
 
     }
 
@@ -446,8 +1781,8 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Transactional
     public Result createVoucherOrderV1(Long voucherId) {
         Long userId = UserHolder.getUser().getId();
-        // 5.1.查询订单
-        Long count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
+        // 5.1.查询订单，已取消的订单不占用一人一单
+        Long count = query().eq("user_id", userId).eq("voucher_id", voucherId).ne("status", ORDER_STATUS_CANCELLED).count();
         // 5.2.判断是否存在
         if (count > 0) {
             // 用户已经购买过了
@@ -1,21 +1,44 @@
 package com.dianping.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.dianping.config.CacheProperties;
+import com.dianping.config.SeckillProperties;
 import com.dianping.dto.Result;
 import com.dianping.entity.SeckillVoucher;
 import com.dianping.entity.Voucher;
 import com.dianping.mapper.VoucherMapper;
 import com.dianping.service.ISeckillVoucherService;
+import com.dianping.service.IVoucherOrderService;
 import com.dianping.service.IVoucherService;
+import com.dianping.utils.LocalCache;
+import com.dianping.utils.SeckillKeys;
+import com.dianping.utils.VoucherStockPublisher;
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-import static com.dianping.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.dianping.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -24,6 +47,7 @@ import static com.dianping.utils.RedisConstants.SECKILL_STOCK_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -31,15 +55,172 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillKeys seckillKeys;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private CacheProperties cacheProperties;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private VoucherStockPublisher voucherStockPublisher;
+
+    /** 本地缓存的店铺优惠券列表，与一级缓存相同按条目数和权重（JSON长度）淘汰 */
+    private LocalCache<List<Voucher>> localShopVouchers;
+    /** 本地缓存的有效期(ms)，其他节点修改后通过广播清除，过期只是兜底 */
+    private static final long LOCAL_SHOP_VOUCHER_TTL = 10_000;
 
+    /**
+     * 查询店铺的优惠券列表
+     * 列表依次从本地缓存、Redis缓存 cache:shop:voucher:{shopId}、数据库查询；
+     * 秒杀券的库存在返回前用一次 MGET seckill:stock:* 覆盖，不查询数据库也能看到实时库存
+     * @param shopId 店铺 ID
+     * @return {@link Result }
+     */
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 1.查询优惠券信息（缓存）
+        List<Voucher> vouchers = BeanUtil.copyToList(queryCachedVoucherOfShop(shopId), Voucher.class);
+        // 2.覆盖秒杀券的实时库存
+        overlaySeckillStock(vouchers);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    private List<Voucher> queryCachedVoucherOfShop(Long shopId) {
+        // 1.本地缓存
+        LocalCache.Entry<List<Voucher>> local = localShopVouchers.get(shopId.toString());
+        if (local != null) {
+            return local.getValue();
+        }
+        // 2.Redis缓存
+        String key = CACHE_SHOP_VOUCHER_KEY + shopId;
+        String json = stringRedisTemplate.opsForValue().get(key);
+        List<Voucher> vouchers;
+        if (json != null) {
+            vouchers = JSONUtil.toList(json, Voucher.class);
+        } else {
+            // 3.查询数据库，写入Redis，没有优惠券的店铺也缓存空列表
+            vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+            json = JSONUtil.toJsonStr(vouchers);
+            stringRedisTemplate.opsForValue().set(key, json, CACHE_SHOP_VOUCHER_TTL, TimeUnit.MINUTES);
+        }
+        localShopVouchers.put(shopId.toString(), vouchers, json.length(), LOCAL_SHOP_VOUCHER_TTL);
+        return vouchers;
+    }
+
+    /**
+     * 用Redis中的库存覆盖秒杀券的库存，全部分片一次 MGET；未预热或已清理的秒杀券保留缓存中的库存
+     * @param vouchers 优惠券列表
+     */
+    private void overlaySeckillStock(List<Voucher> vouchers) {
+        List<Voucher> seckillVouchers = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        List<Integer> shardCounts = new ArrayList<>();
+        for (Voucher voucher : vouchers) {
+            if (voucher.getStock() == null) {
+                // 普通券没有库存
+                continue;
+            }
+            List<String> stockKeys = seckillKeys.stockKeys(voucher.getId());
+            seckillVouchers.add(voucher);
+            keys.addAll(stockKeys);
+            shardCounts.add(stockKeys.size());
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (stocks == null) {
+            return;
+        }
+        int index = 0;
+        for (int i = 0; i < seckillVouchers.size(); i++) {
+            int stock = 0;
+            boolean found = false;
+            for (int j = 0; j < shardCounts.get(i); j++, index++) {
+                String value = stocks.get(index);
+                if (value != null) {
+                    stock += Math.max(0, Integer.parseInt(value));
+                    found = true;
+                }
+            }
+            if (found) {
+                seckillVouchers.get(i).setStock(stock);
+            }
+        }
+    }
+
+    /**
+     * 订阅店铺全部秒杀券的实时库存
+     * @param shopId 店铺 ID
+     * @return {@link SseEmitter }
+     */
+    @Override
+    public SseEmitter streamStockOfShop(Long shopId) {
+        List<Long> voucherIds = queryCachedVoucherOfShop(shopId).stream()
+                                                                .filter(voucher -> voucher.getStock() != null)
+                                                                .map(Voucher::getId)
+                                                                .collect(Collectors.toList());
+        return voucherStockPublisher.subscribe(voucherIds);
+    }
+
+    /**
+     * 订阅秒杀券的实时库存
+     * @param voucherId 优惠券 ID
+     * @return {@link SseEmitter }
+     */
+    @Override
+    public SseEmitter streamStock(Long voucherId) {
+        return voucherStockPublisher.subscribe(Collections.singletonList(voucherId));
+    }
+
+    /**
+     * 新增普通券
+     * @param voucher 优惠券
+     */
+    @Override
+    @Transactional
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+        evictShopVoucherCache(voucher.getShopId());
+    }
+
+    /**
+     * 清除店铺优惠券列表的缓存：事务提交后删除Redis缓存，并广播清除各节点的本地缓存
+     * @param shopId 店铺 ID
+     */
+    private void evictShopVoucherCache(Long shopId) {
+        Runnable evict = () -> {
+            stringRedisTemplate.delete(CACHE_SHOP_VOUCHER_KEY + shopId);
+            localShopVouchers.invalidate(shopId.toString());
+            stringRedisTemplate.convertAndSend(CACHE_SHOP_VOUCHER_CHANNEL, shopId.toString());
+        };
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            evict.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                evict.run();
+            }
+        });
+    }
+
+    @PostConstruct
+    private void init() {
+        localShopVouchers = new LocalCache<>(cacheProperties.getLocalMaximumSize(), cacheProperties.getLocalMaximumWeight().toBytes());
+        // 订阅店铺优惠券缓存的清除广播
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> localShopVouchers.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_SHOP_VOUCHER_CHANNEL)
+        );
+    }
+
     /**
      * 添加秒杀券
      * @param voucher 凭证
@@ -49,6 +230,7 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     public void addSeckillVoucher(Voucher voucher) {
         // 保存优惠券
         save(voucher);
+        evictShopVoucherCache(voucher.getShopId());
         // 保存秒杀信息
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
@@ -56,7 +238,216 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀库存到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 保存秒杀库存到redis中，按分片拆分
+        saveStockShards(voucher.getId(), voucher.getStock(), Math.max(1, seckillProperties.getStockShards()), true);
+        // 保存秒杀券信息到redis中，由秒杀脚本校验秒杀时间
+        saveSeckillVoucherInfo(seckillVoucher);
+    }
+
+    /**
+     * 补充秒杀券库存，补充后清除各节点的售罄标记
+     * 事务提交后再补充Redis库存，且只补充已预热的秒杀券；未预热的由预热从数据库加载
+     * @param voucherId 优惠券 ID
+     * @param count     补充数量
+     * @return {@link Result }
+     */
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充数量必须大于0");
+        }
+        // 1.补充数据库库存
+        boolean success = seckillVoucherService.update()
+                                               .setSql("stock = stock + " + count)
+                                               .eq("voucher_id", voucherId)
+                                               .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在！");
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                // 2.补充Redis库存，加到第一个分片，其他分片不足时会从这里借
+                int shards = seckillKeys.shardCount(voucherId);
+                List<String> keys = new ArrayList<>();
+                keys.add(seckillKeys.stockKey(voucherId, 0, shards));
+                keys.add(seckillKeys.voucherKey(voucherId, 0, shards));
+                Long added = stringRedisTemplate.execute(STOCK_ADD_SCRIPT, keys, count.toString());
+                if (added == null || added == 0) {
+                    log.info("秒杀券尚未预热，补充的库存由预热加载, voucherId: {}", voucherId);
+                } else if (seckillProperties.isClusterEnabled()) {
+                    // 集群模式其他分片的秒杀券信息在不同slot，逐个更新
+                    for (int i = 1; i < shards; i++) {
+                        String voucherKey = seckillKeys.voucherKey(voucherId, i, shards);
+                        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(voucherKey))) {
+                            stringRedisTemplate.opsForHash().increment(voucherKey, "stock", count);
+                        }
+                    }
+                }
+                // 3.清除售罄标记
+                voucherOrderService.clearSoldOut(voucherId);
+            }
+        });
+        return Result.ok();
+    }
+
+    /**
+     * 预热秒杀券：把即将开始或进行中、尚未预热的秒杀券信息和库存写入Redis
+     * 秒杀期间下单只访问Redis，不再查询数据库
+     */
+    @Scheduled(fixedDelayString = "#{@seckillProperties.preheatInterval.toMillis()}")
+    public void preheatSeckillVouchers() {
+        LocalDateTime now = LocalDateTime.now();
+        // 1.查询即将开始或进行中的秒杀券
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                                                             .le("begin_time", now.plus(seckillProperties.getPreheatLead()))
+                                                             .gt("end_time", now)
+                                                             .list();
+        if (vouchers.isEmpty()) {
+            return;
+        }
+        // 2.过滤已预热的秒杀券 ZMSCORE seckill:preheated id1 id2 ...
+        Object[] ids = vouchers.stream().map(v -> v.getVoucherId().toString()).toArray();
+        List<Double> scores = stringRedisTemplate.opsForZSet().score(SECKILL_PREHEATED_KEY, ids);
+        for (int i = 0; i < vouchers.size(); i++) {
+            if (scores != null && scores.get(i) != null) {
+                continue;
+            }
+            SeckillVoucher voucher = vouchers.get(i);
+            Long voucherId = voucher.getVoucherId();
+            // 3.写入库存，已有分片数的沿用原分片，已存在的库存以Redis为准
+            boolean sharded = stringRedisTemplate.opsForHash().hasKey(SECKILL_SHARDS_KEY, voucherId.toString());
+            int shards = sharded ? seckillKeys.shardCount(voucherId) : Math.max(1, seckillProperties.getStockShards());
+            saveStockShards(voucherId, voucher.getStock(), shards, false);
+            // 4.写入秒杀券信息
+            saveSeckillVoucherInfo(voucher);
+            // 5.清除售罄标记
+            voucherOrderService.clearSoldOut(voucherId);
+            log.info("预热秒杀券, voucherId: {}", voucherId);
+        }
+    }
+
+    /**
+     * 清理秒杀券：秒杀结束一段时间后，删除Redis中的库存、下单用户和秒杀券信息，集群模式下还删除已消费完的订单stream
+     */
+    @Scheduled(fixedDelayString = "#{@seckillProperties.preheatInterval.toMillis()}")
+    public void evictSeckillVouchers() {
+        // 1.查询结束时间早于 now - evictDelay 的秒杀券 ZRANGEBYSCORE seckill:preheated 0 max
+        long max = System.currentTimeMillis() - seckillProperties.getEvictDelay().toMillis();
+        Set<String> ids = stringRedisTemplate.opsForZSet().rangeByScore(SECKILL_PREHEATED_KEY, 0, max);
+        if (ids == null || ids.isEmpty()) {
+            return;
+        }
+        for (String id : ids) {
+            Long voucherId = Long.valueOf(id);
+            // 2.删除库存、下单用户、秒杀券信息
+            List<String> keys = new ArrayList<>(seckillKeys.stockKeys(voucherId));
+            keys.addAll(seckillKeys.allBuyerKeys(voucherId));
+            keys.addAll(seckillKeys.voucherKeys(voucherId));
+            stringRedisTemplate.delete(keys);
+            // 3.集群模式下删除已消费完的订单stream；还有消息未消费完时保留预热记录，下次再清理
+            if (seckillProperties.isClusterEnabled() && !retireOrderStreams(voucherId)) {
+                log.debug("秒杀券的订单消息尚未消费完，稍后清理stream, voucherId: {}", voucherId);
+                continue;
+            }
+            // 4.移除分片记录和预热记录，分片数决定了上面各key，必须最后删除
+            seckillKeys.removeShardCount(voucherId);
+            stringRedisTemplate.opsForZSet().remove(SECKILL_PREHEATED_KEY, id);
+            log.info("清理秒杀券, voucherId: {}", voucherId);
+        }
+    }
+
+    /**
+     * 删除秒杀券已消费完的订单stream，先 SREM seckill:streams 使各节点不再消费（和重建）该stream，再删除stream和归档进度
+     * @param voucherId 优惠券 ID
+     * @return boolean 全部stream是否已删除
+     */
+    private boolean retireOrderStreams(Long voucherId) {
+        List<String> streams = seckillKeys.streamKeys(voucherId);
+        for (String stream : streams) {
+            // 开启归档（本节点开启或已有归档进度）时，消息要全部归档后才能删除
+            boolean archiving = seckillProperties.getRetention().isEnabled()
+                    || stringRedisTemplate.opsForHash().hasKey(SECKILL_ORDER_ARCHIVE_KEY, stream);
+            Long drained = stringRedisTemplate.execute(
+                    STREAM_DRAINED_SCRIPT,
+                    Collections.singletonList(stream),
+                    archiving ? "1" : "0"
+            );
+            if (drained == null || drained == 0) {
+                return false;
+            }
+        }
+        stringRedisTemplate.opsForSet().remove(SECKILL_ORDER_STREAMS_KEY, streams.toArray());
+        stringRedisTemplate.delete(streams);
+        stringRedisTemplate.opsForHash().delete(SECKILL_ORDER_ARCHIVE_KEY, streams.toArray());
+        return true;
+    }
+
+    /**
+     * 保存秒杀券信息 HSET seckill:voucher:{voucherId} begin xxx end xxx stock xxx，并记录到预热集合
+     * @param seckillVoucher 秒杀券
+     */
+    private void saveSeckillVoucherInfo(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        long endTime = toEpochMilli(seckillVoucher.getEndTime());
+        Map<String, String> info = new HashMap<>(4);
+        info.put("begin", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        info.put("end", String.valueOf(endTime));
+        info.put("stock", String.valueOf(seckillVoucher.getStock()));
+        for (String key : seckillKeys.voucherKeys(voucherId)) {
+            stringRedisTemplate.opsForHash().putAll(key, info);
+        }
+        // ZADD seckill:preheated endTime voucherId，按结束时间清理
+        stringRedisTemplate.opsForZSet().add(SECKILL_PREHEATED_KEY, voucherId.toString(), endTime);
+    }
+
+    private long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 把库存平均拆分到各个分片 seckill:stock:{voucherId}:{shard}，余数分给前面的分片
+     * @param voucherId 优惠券 ID
+     * @param stock     库存
+     * @param shards    分片数
+     * @param overwrite 是否覆盖已存在的库存，预热时不覆盖
+     */
+    private void saveStockShards(Long voucherId, int stock, int shards, boolean overwrite) {
+        int base = stock / shards;
+        int rest = stock % shards;
+        for (int i = 0; i < shards; i++) {
+            String shardStock = String.valueOf(base + (i < rest ? 1 : 0));
+            String stockKey = seckillKeys.stockKey(voucherId, i, shards);
+            if (overwrite) {
+                stringRedisTemplate.opsForValue().set(stockKey, shardStock);
+            } else {
+                stringRedisTemplate.opsForValue().setIfAbsent(stockKey, shardStock);
+            }
+        }
+        // 记录分片数，下单时据此定位分片
+        seckillKeys.saveShardCount(voucherId, shards);
+        // 集群模式下登记各分片的订单stream，供消费者发现
+        if (seckillProperties.isClusterEnabled()) {
+            stringRedisTemplate.opsForSet().add(SECKILL_ORDER_STREAMS_KEY, seckillKeys.streamKeys(voucherId).toArray(new String[0]));
+        }
+    }
+
+    // 补充已预热秒杀券库存的Lua脚本
+    private static final DefaultRedisScript<Long> STOCK_ADD_SCRIPT;
+
+    static {
+        STOCK_ADD_SCRIPT = new DefaultRedisScript<>();
+        STOCK_ADD_SCRIPT.setLocation(new ClassPathResource("seckill-stock-add.lua"));
+        STOCK_ADD_SCRIPT.setResultType(Long.class);
+    }
+
+    // 判断订单stream是否已消费完的Lua脚本
+    private static final DefaultRedisScript<Long> STREAM_DRAINED_SCRIPT;
+
+    static {
+        STREAM_DRAINED_SCRIPT = new DefaultRedisScript<>();
+        STREAM_DRAINED_SCRIPT.setLocation(new ClassPathResource("stream-drained.lua"));
+        STREAM_DRAINED_SCRIPT.setResultType(Long.class);
     }
 }
@@ -0,0 +1,444 @@
+package com.dianping.utils;
+
+import com.dianping.dto.UserDTO;
+import com.dianping.entity.Blog;
+import com.dianping.entity.Shop;
+import com.dianping.entity.ShopType;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @Description: 紧凑的二进制编解码：按字段顺序写入，不写字段名；整数用变长编码，字符串用长度前缀的UTF-8
+ * 格式：[格式版本 1字节][标志 1字节][负载]，负载超过阈值时用LZ4压缩，压缩后为 [原始长度 varint][LZ4块]；
+ * 字段顺序变化时需要升级格式版本，旧版本的缓存解码为null，按未命中重新查询数据库。
+ * 没有注册的类型仍使用JSON，解码时按首字节识别（JSON文本不会以格式版本开头），切换编解码期间也能读取原有的JSON缓存
+ * @Author: zhao
+ * Created: 2025/5/22 - 20:40
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    /** 格式版本，修改任何类型的字段顺序都需要加一 */
+    public static final byte SCHEMA_VERSION = 1;
+
+    /** 负载经过LZ4压缩 */
+    private static final int FLAG_LZ4 = 1;
+    /** 带逻辑过期时间 */
+    private static final int FLAG_EXPIRE = 1 << 1;
+
+    private final CacheCodec json = new JsonCacheCodec();
+    private final Map<Class<?>, Schema<?>> schemas = new ConcurrentHashMap<>();
+    /** 负载不小于该字节数时压缩，0表示不压缩 */
+    private final int compressThreshold;
+
+    public BinaryCacheCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+        register(Shop.class, new Schema<>() {
+            @Override
+            public void write(Shop shop, Output out) {
+                out.writeLong(shop.getId());
+                out.writeString(shop.getName());
+                out.writeLong(shop.getTypeId());
+                out.writeString(shop.getImages());
+                out.writeString(shop.getArea());
+                out.writeString(shop.getAddress());
+                out.writeDouble(shop.getX());
+                out.writeDouble(shop.getY());
+                out.writeLong(shop.getAvgPrice());
+                out.writeInt(shop.getSold());
+                out.writeInt(shop.getComments());
+                out.writeInt(shop.getScore());
+                out.writeString(shop.getOpenHours());
+                out.writeTime(shop.getCreateTime());
+                out.writeTime(shop.getUpdateTime());
+                out.writeDouble(shop.getDistance());
+            }
+
+            @Override
+            public Shop read(Input in) {
+                return new Shop()
+                        .setId(in.readLong())
+                        .setName(in.readString())
+                        .setTypeId(in.readLong())
+                        .setImages(in.readString())
+                        .setArea(in.readString())
+                        .setAddress(in.readString())
+                        .setX(in.readDouble())
+                        .setY(in.readDouble())
+                        .setAvgPrice(in.readLong())
+                        .setSold(in.readInt())
+                        .setComments(in.readInt())
+                        .setScore(in.readInt())
+                        .setOpenHours(in.readString())
+                        .setCreateTime(in.readTime())
+                        .setUpdateTime(in.readTime())
+                        .setDistance(in.readDouble());
+            }
+        });
+        register(ShopType.class, new Schema<>() {
+            @Override
+            public void write(ShopType shopType, Output out) {
+                out.writeLong(shopType.getId());
+                out.writeString(shopType.getName());
+                out.writeString(shopType.getIcon());
+                out.writeInt(shopType.getSort());
+                out.writeTime(shopType.getCreateTime());
+                out.writeTime(shopType.getUpdateTime());
+            }
+
+            @Override
+            public ShopType read(Input in) {
+                return new ShopType()
+                        .setId(in.readLong())
+                        .setName(in.readString())
+                        .setIcon(in.readString())
+                        .setSort(in.readInt())
+                        .setCreateTime(in.readTime())
+                        .setUpdateTime(in.readTime());
+            }
+        });
+        register(Blog.class, new Schema<>() {
+            @Override
+            public void write(Blog blog, Output out) {
+                out.writeLong(blog.getId());
+                out.writeLong(blog.getShopId());
+                out.writeLong(blog.getUserId());
+                out.writeString(blog.getIcon());
+                out.writeString(blog.getName());
+                out.writeBoolean(blog.getIsLike());
+                out.writeString(blog.getTitle());
+                out.writeString(blog.getImages());
+                out.writeString(blog.getContent());
+                out.writeInt(blog.getLiked());
+                out.writeInt(blog.getComments());
+                out.writeTime(blog.getCreateTime());
+                out.writeTime(blog.getUpdateTime());
+            }
+
+            @Override
+            public Blog read(Input in) {
+                return new Blog()
+                        .setId(in.readLong())
+                        .setShopId(in.readLong())
+                        .setUserId(in.readLong())
+                        .setIcon(in.readString())
+                        .setName(in.readString())
+                        .setIsLike(in.readBoolean())
+                        .setTitle(in.readString())
+                        .setImages(in.readString())
+                        .setContent(in.readString())
+                        .setLiked(in.readInt())
+                        .setComments(in.readInt())
+                        .setCreateTime(in.readTime())
+                        .setUpdateTime(in.readTime());
+            }
+        });
+        register(UserDTO.class, new Schema<>() {
+            @Override
+            public void write(UserDTO user, Output out) {
+                out.writeLong(user.getId());
+                out.writeString(user.getNickName());
+                out.writeString(user.getIcon());
+            }
+
+            @Override
+            public UserDTO read(Input in) {
+                UserDTO user = new UserDTO();
+                user.setId(in.readLong());
+                user.setNickName(in.readString());
+                user.setIcon(in.readString());
+                return user;
+            }
+        });
+    }
+
+    /**
+     * 注册类型的二进制格式
+     * @param type   类型
+     * @param schema 字段的写入和读取顺序
+     */
+    public <T> void register(Class<T> type, Schema<T> schema) {
+        schemas.put(type, schema);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Object value) {
+        Schema<Object> schema = (Schema<Object>) schemas.get(value.getClass());
+        if (schema == null) {
+            return json.encode(value);
+        }
+        Output out = new Output();
+        schema.write(value, out);
+        return pack(0, out);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        try {
+            if (!isBinary(bytes)) {
+                return json.decode(bytes, type);
+            }
+            Schema<?> schema = schemas.get(type);
+            if (schema == null || (bytes[1] & FLAG_EXPIRE) != 0) {
+                return null;
+            }
+            return type.cast(schema.read(unpack(bytes)));
+        } catch (RuntimeException e) {
+            // 其他版本的格式或数据损坏
+            return null;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encodeWithExpire(Object value, LocalDateTime expireTime) {
+        Schema<Object> schema = value == null ? null : (Schema<Object>) schemas.get(value.getClass());
+        if (value != null && schema == null) {
+            return json.encodeWithExpire(value, expireTime);
+        }
+        Output out = new Output();
+        out.writeTime(expireTime);
+        out.writeBoolean(value != null);
+        if (value != null) {
+            schema.write(value, out);
+        }
+        return pack(FLAG_EXPIRE, out);
+    }
+
+    @Override
+    public RedisData decodeWithExpire(byte[] bytes, Class<?> type) {
+        try {
+            if (!isBinary(bytes)) {
+                return json.decodeWithExpire(bytes, type);
+            }
+            Schema<?> schema = schemas.get(type);
+            if (schema == null || (bytes[1] & FLAG_EXPIRE) == 0) {
+                return null;
+            }
+            Input in = unpack(bytes);
+            RedisData redisData = new RedisData().setExpireTime(in.readTime());
+            if (Boolean.TRUE.equals(in.readBoolean())) {
+                redisData.setData(schema.read(in));
+            }
+            return redisData;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 写入格式版本和标志，负载达到阈值且压缩后更小时使用LZ4
+     */
+    private byte[] pack(int flags, Output out) {
+        byte[] payload = out.toByteArray();
+        if (compressThreshold > 0 && payload.length >= compressThreshold) {
+            byte[] compressed = Lz4.compress(payload);
+            Output packed = new Output();
+            packed.writeByte(SCHEMA_VERSION);
+            packed.writeByte(flags | FLAG_LZ4);
+            packed.writeVarLong(payload.length);
+            if (packed.size() + compressed.length < payload.length + 2) {
+                packed.writeBytes(compressed);
+                return packed.toByteArray();
+            }
+        }
+        byte[] bytes = new byte[payload.length + 2];
+        bytes[0] = SCHEMA_VERSION;
+        bytes[1] = (byte) flags;
+        System.arraycopy(payload, 0, bytes, 2, payload.length);
+        return bytes;
+    }
+
+    private Input unpack(byte[] bytes) {
+        if ((bytes[1] & FLAG_LZ4) == 0) {
+            return new Input(bytes, 2);
+        }
+        Input header = new Input(bytes, 2);
+        int length = (int) header.readVarLong();
+        return new Input(Lz4.decompress(bytes, header.position, bytes.length - header.position, length), 0);
+    }
+
+    /**
+     * JSON文本不会以字节 0x01 开头，其余的按JSON解码
+     */
+    private static boolean isBinary(byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == SCHEMA_VERSION;
+    }
+
+    /**
+     * 类型的二进制格式，写入和读取的字段顺序必须一致
+     */
+    public interface Schema<T> {
+        void write(T value, Output out);
+
+        T read(Input in);
+    }
+
+    /**
+     * 写入缓冲区，所有字段都可以为null：数值和字符串的变长前缀为0表示null
+     */
+    public static class Output {
+        private byte[] buffer = new byte[128];
+        private int size;
+
+        public void writeLong(Long value) {
+            // zigzag 后加一，0表示null；不支持 Long.MIN_VALUE
+            writeVarLong(value == null ? 0 : ((value << 1) ^ (value >> 63)) + 1);
+        }
+
+        public void writeInt(Integer value) {
+            writeLong(value == null ? null : value.longValue());
+        }
+
+        public void writeBoolean(Boolean value) {
+            writeByte(value == null ? 0 : value ? 2 : 1);
+        }
+
+        public void writeDouble(Double value) {
+            if (value == null) {
+                writeByte(0);
+                return;
+            }
+            writeByte(1);
+            long bits = Double.doubleToLongBits(value);
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                buffer[size++] = (byte) (bits >>> (i * 8));
+            }
+        }
+
+        public void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1L);
+            writeBytes(bytes);
+        }
+
+        /**
+         * 本地时间按UTC换算为秒数和纳秒，不受时区影响
+         */
+        public void writeTime(LocalDateTime value) {
+            if (value == null) {
+                writeLong(null);
+                return;
+            }
+            writeLong(value.toEpochSecond(ZoneOffset.UTC));
+            writeVarLong(value.getNano());
+        }
+
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        private void writeByte(int value) {
+            ensure(1);
+            buffer[size++] = (byte) value;
+        }
+
+        private void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void ensure(int length) {
+            if (size + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+            }
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    /**
+     * 读取缓冲区，与 {@link Output} 对应
+     */
+    public static class Input {
+        private final byte[] buffer;
+        private int position;
+
+        private Input(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        public Long readLong() {
+            long value = readVarLong();
+            if (value == 0) {
+                return null;
+            }
+            value--;
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public Integer readInt() {
+            Long value = readLong();
+            return value == null ? null : value.intValue();
+        }
+
+        public Boolean readBoolean() {
+            int value = buffer[position++];
+            return value == 0 ? null : value == 2;
+        }
+
+        public Double readDouble() {
+            if (buffer[position++] == 0) {
+                return null;
+            }
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits |= (buffer[position++] & 0xFFL) << (i * 8);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        public String readString() {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            String value = new String(buffer, position, (int) length - 1, StandardCharsets.UTF_8);
+            position += (int) length - 1;
+            return value;
+        }
+
+        public LocalDateTime readTime() {
+            Long seconds = readLong();
+            if (seconds == null) {
+                return null;
+            }
+            return LocalDateTime.ofEpochSecond(seconds, (int) readVarLong(), ZoneOffset.UTC);
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.dianping.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @Description: id的布隆过滤器，位图布局与Redis的 SETBIT/GETBIT 相同（每个字节高位在前），可以直接与Redis字符串互相转换
+ * 第i个哈希位置 = (h1 + i * h2) % bits，h1、h2 为id哈希值的低32位和高32位，Lua脚本中用浮点数也能精确计算
+ * @Author: zhao
+ * Created: 2025/5/20 - 20:10
+ */
+public class BloomFilter {
+
+    /** Redis字符串最大512MB */
+    private static final long MAX_BITS = 1L << 32;
+
+    private final long bits;
+    private final int hashes;
+    private final AtomicLongArray words;
+
+    public BloomFilter(long bits, int hashes) {
+        // 按64位对齐
+        this.bits = Math.min(MAX_BITS, Math.max(64, (bits + 63) / 64 * 64));
+        this.hashes = Math.max(1, hashes);
+        this.words = new AtomicLongArray((int) (this.bits / 64));
+    }
+
+    /**
+     * 按预计的id数量和误判率创建：bits = -n * ln(p) / (ln2)^2，hashes = bits / n * ln2
+     * @param expectedInsertions 预计的id数量
+     * @param fpp                误判率
+     * @return {@link BloomFilter }
+     */
+    public static BloomFilter create(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        long bits = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int hashes = (int) Math.round((double) bits / n * Math.log(2));
+        return new BloomFilter(bits, hashes);
+    }
+
+    /**
+     * 从Redis的位图恢复，位图比 bits 短的部分视为0
+     */
+    public static BloomFilter fromBytes(long bits, int hashes, byte[] bytes) {
+        BloomFilter filter = new BloomFilter(bits, hashes);
+        filter.merge(bytes);
+        return filter;
+    }
+
+    public void put(long id) {
+        long hash = hash(id);
+        long h1 = h1(hash);
+        long h2 = h2(hash);
+        for (int i = 0; i < hashes; i++) {
+            long index = (h1 + i * h2) % bits;
+            long mask = mask(index);
+            int word = (int) (index >>> 6);
+            long old;
+            do {
+                old = words.get(word);
+            } while ((old & mask) == 0 && !words.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    public boolean mightContain(long id) {
+        long hash = hash(id);
+        long h1 = h1(hash);
+        long h2 = h2(hash);
+        for (int i = 0; i < hashes; i++) {
+            long index = (h1 + i * h2) % bits;
+            if ((words.get((int) (index >>> 6)) & mask(index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 合并（按位或）Redis的位图
+     */
+    public void merge(byte[] bytes) {
+        if (bytes == null) {
+            return;
+        }
+        int length = (int) Math.min(words.length(), (bytes.length + 7) / 8);
+        for (int i = 0; i < length; i++) {
+            long value = 0;
+            for (int j = 0; j < 8; j++) {
+                int offset = i * 8 + j;
+                value = (value << 8) | (offset < bytes.length ? bytes[offset] & 0xFF : 0);
+            }
+            if (value != 0) {
+                words.getAndAccumulate(i, value, (a, b) -> a | b);
+            }
+        }
+    }
+
+    /**
+     * 转换为Redis的位图，每个long按大端序写入
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(words.length() * 8);
+        for (int i = 0; i < words.length(); i++) {
+            buffer.putLong(words.get(i));
+        }
+        return buffer.array();
+    }
+
+    public long bits() {
+        return bits;
+    }
+
+    public int hashes() {
+        return hashes;
+    }
+
+    /**
+     * id的64位哈希（MurmurHash3 fmix64），连续的自增id也能均匀分布
+     */
+    public static long hash(long id) {
+        long h = id;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static long h1(long hash) {
+        return hash & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 步长取奇数，不会为0
+     */
+    public static long h2(long hash) {
+        return (hash >>> 32) | 1;
+    }
+
+    /**
+     * 第index位在所在long中的掩码，高位在前，与Redis位图一致
+     */
+    private static long mask(long index) {
+        return 1L << (63 - (index & 63));
+    }
+}
@@ -1,24 +1,41 @@
 package com.dianping.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.dianping.config.CacheProperties;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
+import static com.dianping.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
 import static com.dianping.utils.RedisConstants.CACHE_NULL_TTL;
+import static com.dianping.utils.RedisConstants.LOCK_CACHE_KEY;
 import static com.dianping.utils.RedisConstants.LOCK_SHOP_KEY;
 
 /**
  * @Description: 封装Redis工具类
+ * 可选的进程内一级缓存：查询先读本地（不访问Redis、不解析JSON），未命中再读Redis并回填；
+ * 删除缓存时通过 cache:invalidate 频道通知所有节点清除本地缓存；
+ * 注册了布隆过滤器的key前缀，查询前先判断id是否存在，不存在的id不访问Redis和数据库，也不写入空值；
+ * 缓存值由 {@link CacheCodec} 编解码为字节（默认JSON，可配置为紧凑的二进制格式），空值为空字节
  * @Author: zhao
  * Created: 2025/4/25 - 21:02
  */
@@ -27,23 +44,72 @@ import static com.dianping.utils.RedisConstants.LOCK_SHOP_KEY;
 public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
+    private final CacheProperties cacheProperties;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final IdBloomFilters idBloomFilters;
+    private final RedissonClient redissonClient;
+    private final CacheCodec cacheCodec;
+
+    /** 一级缓存，未开启时为null */
+    private final LocalCache<Object> localCache;
+    /** 本地缓存失效次数：读Redis前后不一致说明期间有失效，读到的可能是旧值，不回填本地 */
+    private final AtomicLong invalidations = new AtomicLong();
+    /** 互斥锁重建缓存时合并本节点的并发请求 */
+    private final SingleFlight<Object> singleFlight = new SingleFlight<>();
 
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       CacheProperties cacheProperties,
+                       RedisMessageListenerContainer redisMessageListenerContainer,
+                       IdBloomFilters idBloomFilters,
+                       RedissonClient redissonClient,
+                       CacheCodec cacheCodec) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheProperties = cacheProperties;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.idBloomFilters = idBloomFilters;
+        this.redissonClient = redissonClient;
+        this.cacheCodec = cacheCodec;
+        this.localCache = cacheProperties.isLocalEnabled()
+                ? new LocalCache<>(cacheProperties.getLocalMaximumSize(), cacheProperties.getLocalMaximumWeight().toBytes())
+                : null;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (localCache == null) {
+            return;
+        }
+        // 其他节点删除缓存，清除本地缓存
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL)
+        );
+    }
+
+    /**
+     * 删除缓存，并通知所有节点清除一级缓存 PUBLISH cache:invalidate key
+     * 本节点未开启一级缓存时也要通知，其他节点可能开启了
+     * @param key 缓存key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        if (localCache != null) {
+            invalidateLocal(key);
+        }
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setBytes(key, cacheCodec.encode(value), Expiration.from(time, unit));
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
         // 设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time))).setData(value);
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(time));
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setBytes(key, cacheCodec.encodeWithExpire(value, expireTime), Expiration.persistent());
     }
 
 
@@ -63,16 +129,30 @@ public class CacheClient {
                                           Function<ID, R> dbFallback,
                                           Long time,
                                           TimeUnit unit) {
+        // 0.布隆过滤器判断id一定不存在
+        if (!idBloomFilters.mightContainKey(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.查询一级缓存
+        LocalCache.Entry<Object> local = getLocal(key);
+        if (local != null) {
+            return type.cast(local.getValue());
+        }
+        long version = invalidations.get();
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(json, type);
-        }
-        // 判断命中的是否是空值
-        if (json != null) {
+        if (bytes != null && bytes.length > 0) {
+            // 3.存在，直接返回；无法解码（格式版本不同）时按未命中处理
+            R r = cacheCodec.decode(bytes, type);
+            if (r != null) {
+                putLocal(key, r, bytes.length, null, version);
+                return r;
+            }
+        } else if (bytes != null) {
+            // 命中的是空值
+            putLocal(key, null, key.length(), Duration.ofMinutes(CACHE_NULL_TTL), version);
             // 返回一个错误信息
             return null;
         }
@@ -82,12 +162,15 @@ public class CacheClient {
         // 5.不存在，返回错误
         if (r == null) {
             // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setNull(key);
+            putLocal(key, null, key.length(), Duration.ofMinutes(CACHE_NULL_TTL), version);
             // 返回错误信息
             return null;
         }
         // 6.存在，写入redis
-        this.set(key, r, time, unit);
+        byte[] value = cacheCodec.encode(r);
+        setBytes(key, value, Expiration.from(time, unit));
+        putLocal(key, r, value.length, null, version);
         return r;
     }
 
@@ -107,21 +190,37 @@ public class CacheClient {
                                             Function<ID, R> dbFallback,
                                             Long time,
                                             TimeUnit unit) {
+        // 0.布隆过滤器判断id一定不存在
+        if (!idBloomFilters.mightContainKey(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.查询一级缓存，只缓存未逻辑过期的数据
+        LocalCache.Entry<Object> local = getLocal(key);
+        if (local != null) {
+            return type.cast(local.getValue());
+        }
+        long version = invalidations.get();
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
-            // 3.存在，直接返回
+        if (bytes == null || bytes.length == 0) {
+            // 3.不存在，直接返回
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        // 4.命中，一次解码出逻辑过期时间和数据
+        RedisData redisData = cacheCodec.decodeWithExpire(bytes, type);
+        if (redisData == null) {
+            // 无法解码，视为已过期，由下面的逻辑重建
+            redisData = new RedisData().setExpireTime(LocalDateTime.MIN);
+        }
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
         // 5.判断是否过期
         if (expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1.未过期，直接返回店铺信息
+            // 5.1.未过期，直接返回店铺信息，本地缓存不超过逻辑过期时间
+            long remaining = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() - System.currentTimeMillis();
+            putLocal(key, r, bytes.length, Duration.ofMillis(remaining), version);
             return r;
         }
         // 5.2.已过期，需要缓存重建
@@ -165,51 +264,245 @@ public class CacheClient {
                                     Function<ID, R> dbFallback,
                                     Long time,
                                     TimeUnit unit) {
+        // 0.布隆过滤器判断id一定不存在
+        if (!idBloomFilters.mightContainKey(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.查询一级缓存
+        LocalCache.Entry<Object> local = getLocal(key);
+        if (local != null) {
+            return type.cast(local.getValue());
+        }
+        long version = invalidations.get();
         // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
-        }
-        // 判断命中的是否是空值
-        if (shopJson != null) {
+        if (bytes != null && bytes.length > 0) {
+            // 3.存在，直接返回；无法解码时按未命中重建
+            R r = cacheCodec.decode(bytes, type);
+            if (r != null) {
+                putLocal(key, r, bytes.length, null, version);
+                return r;
+            }
+        } else if (bytes != null) {
+            // 命中的是空值
+            putLocal(key, null, key.length(), Duration.ofMinutes(CACHE_NULL_TTL), version);
             // 返回一个错误信息
             return null;
         }
 
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+        // 4.实现缓存重建：本节点的并发请求合并为一次加载，只有发起加载的请求参与分布式锁，其他请求等待结果
+        Object r = singleFlight.execute(key, () -> rebuildWithLock(key, id, type, dbFallback, time, unit, version));
+        // 8.返回
+        return type.cast(r);
+    }
+
+    /**
+     * 持有分布式锁重建缓存：获取锁失败时等待锁释放（Redisson 通过发布订阅通知，不轮询），获得锁后先再次查询Redis
+     * @return {@link R } 不存在时返回null
+     */
+    private <R, ID> R rebuildWithLock(String key,
+                                      ID id,
+                                      Class<R> type,
+                                      Function<ID, R> dbFallback,
+                                      Long time,
+                                      TimeUnit unit,
+                                      long version) {
+        // 4.1.获取互斥锁，其他节点正在重建时等待其释放
+        RLock lock = redissonClient.getLock(LOCK_CACHE_KEY + key);
+        boolean isLock;
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
+            isLock = lock.tryLock(cacheProperties.getRebuildLockWait().toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        try {
+            // 4.2.再次查询Redis，等待期间其他节点可能已经写入
+            byte[] bytes = getBytes(key);
+            if (bytes != null && bytes.length > 0) {
+                R r = cacheCodec.decode(bytes, type);
+                if (r != null) {
+                    putLocal(key, r, bytes.length, null, version);
+                    return r;
+                }
+            } else if (bytes != null) {
+                return null;
             }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
+            // 4.3.根据id查询数据库，等待锁超时也直接查询，避免请求一直阻塞
+            R r = dbFallback.apply(id);
             // 5.不存在，返回错误
             if (r == null) {
                 // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                setNull(key);
+                putLocal(key, null, key.length(), Duration.ofMinutes(CACHE_NULL_TTL), version);
                 // 返回错误信息
                 return null;
             }
             // 6.存在，写入redis
-            this.set(key, r, time, unit);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            byte[] value = cacheCodec.encode(r);
+            setBytes(key, value, Expiration.from(time, unit));
+            putLocal(key, r, value.length, null, version);
+            return r;
         } finally {
-            // 7.释放锁
-            unlock(lockKey);
+            // 7.释放锁，唤醒其他节点等待的请求
+            if (isLock) {
+                lock.unlock();
+            }
         }
-        // 8.返回
-        return r;
+    }
+
+    /**
+     * 批量查询：一次 MGET 查询Redis，未命中的id一次交给数据库批量查询，查询结果用一个管道写回Redis
+     * 布隆过滤器判断不存在的id、缓存的空值、数据库中不存在的id，对应位置为null
+     * @param keyPrefix       密钥前缀
+     * @param ids             id列表
+     * @param type            类型
+     * @param dbBatchFallback 数据库批量查询，返回 id -> 实体，不存在的id不返回
+     * @param time            时间
+     * @param unit            单位
+     * @return {@link List }<{@link R }> 与ids顺序一致
+     */
+    public <R, ID> List<R> queryBatch(String keyPrefix,
+                                      List<ID> ids,
+                                      Class<R> type,
+                                      Function<List<ID>, Map<ID, R>> dbBatchFallback,
+                                      Long time,
+                                      TimeUnit unit) {
+        List<R> results = new ArrayList<>(Collections.nCopies(ids.size(), null));
+        // 0.一级缓存和布隆过滤器，剩余的需要查询Redis
+        List<Integer> redisIndexes = new ArrayList<>();
+        List<String> redisKeys = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            ID id = ids.get(i);
+            if (!idBloomFilters.mightContainKey(keyPrefix, id)) {
+                continue;
+            }
+            String key = keyPrefix + id;
+            LocalCache.Entry<Object> local = getLocal(key);
+            if (local != null) {
+                results.set(i, type.cast(local.getValue()));
+                continue;
+            }
+            redisIndexes.add(i);
+            redisKeys.add(key);
+        }
+        if (redisKeys.isEmpty()) {
+            return results;
+        }
+        long version = invalidations.get();
+        // 1.一次查询Redis MGET key1 key2 ...
+        byte[][] rawKeys = redisKeys.stream().map(key -> key.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                connection.stringCommands().mGet(rawKeys));
+        // 2.命中的直接返回，命中空值的返回null，未命中的查询数据库
+        List<ID> missIds = new ArrayList<>();
+        Map<ID, List<Integer>> missIndexes = new HashMap<>();
+        for (int j = 0; j < redisKeys.size(); j++) {
+            byte[] bytes = values == null ? null : values.get(j);
+            int i = redisIndexes.get(j);
+            R r = bytes == null || bytes.length == 0 ? null : cacheCodec.decode(bytes, type);
+            if (r != null) {
+                results.set(i, r);
+                putLocal(redisKeys.get(j), r, bytes.length, null, version);
+            } else if (bytes != null && bytes.length == 0) {
+                putLocal(redisKeys.get(j), null, redisKeys.get(j).length(), Duration.ofMinutes(CACHE_NULL_TTL), version);
+            } else {
+                ID id = ids.get(i);
+                // 重复的id只查询一次
+                if (!missIndexes.containsKey(id)) {
+                    missIds.add(id);
+                }
+                missIndexes.computeIfAbsent(id, k -> new ArrayList<>(1)).add(i);
+            }
+        }
+        if (missIds.isEmpty()) {
+            return results;
+        }
+        // 3.一次查询数据库 SELECT ... WHERE id IN (...)
+        Map<ID, R> loaded = dbBatchFallback.apply(missIds);
+        // 4.用一个管道写回Redis，不存在的id写入空值
+        Map<String, byte[]> writes = new LinkedHashMap<>(missIds.size());
+        for (ID id : missIds) {
+            R r = loaded == null ? null : loaded.get(id);
+            String key = keyPrefix + id;
+            byte[] value = r == null ? new byte[0] : cacheCodec.encode(r);
+            writes.put(key, value);
+            for (Integer i : missIndexes.get(id)) {
+                results.set(i, r);
+            }
+            if (r == null) {
+                putLocal(key, null, key.length(), Duration.ofMinutes(CACHE_NULL_TTL), version);
+            } else {
+                putLocal(key, r, value.length, null, version);
+            }
+        }
+        Expiration ttl = Expiration.from(time, unit);
+        Expiration nullTtl = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            writes.forEach((key, value) -> connection.stringCommands().set(
+                    key.getBytes(StandardCharsets.UTF_8),
+                    value,
+                    value.length == 0 ? nullTtl : ttl,
+                    RedisStringCommands.SetOption.upsert()
+            ));
+            return null;
+        });
+        return results;
+    }
+
+    /**
+     * 读取缓存的原始字节，由编解码器解码
+     * @return byte[] 不存在时返回null，空值为空数组
+     */
+    private byte[] getBytes(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(rawKey));
+    }
+
+    private void setBytes(String key, byte[] value, Expiration expiration) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.stringCommands().set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    /**
+     * 写入空值，防止缓存穿透
+     */
+    private void setNull(String key) {
+        setBytes(key, new byte[0], Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES));
+    }
+
+    private LocalCache.Entry<Object> getLocal(String key) {
+        return localCache == null ? null : localCache.get(key);
+    }
+
+    /**
+     * 回填一级缓存，有效期不超过 localTtl
+     * @param key     缓存key
+     * @param value   值，null表示空值
+     * @param weight  权重
+     * @param ttl     有效期上限，为空时使用 localTtl
+     * @param version 读取Redis前的失效次数，期间有失效时不回填
+     */
+    private void putLocal(String key, Object value, long weight, Duration ttl, long version) {
+        if (localCache == null || invalidations.get() != version) {
+            return;
+        }
+        long ttlMillis = cacheProperties.getLocalTtl().toMillis();
+        if (ttl != null) {
+            ttlMillis = Math.min(ttlMillis, ttl.toMillis());
+        }
+        if (ttlMillis > 0) {
+            localCache.put(key, value, weight, ttlMillis);
+        }
+    }
+
+    private void invalidateLocal(String key) {
+        invalidations.incrementAndGet();
+        localCache.invalidate(key);
     }
 
     /**
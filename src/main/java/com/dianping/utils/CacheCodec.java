@@ -0,0 +1,43 @@
+package com.dianping.utils;
+
+import java.time.LocalDateTime;
+
+/**
+ * @Description: CacheClient 缓存值的编解码，决定写入Redis的字节
+ * 空值（缓存穿透）由 CacheClient 写入空字节，不经过编解码；解码失败（如格式版本不兼容）返回null，按未命中处理，重新查询数据库覆盖
+ * @Author: zhao
+ * Created: 2025/5/22 - 20:30
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码
+     * @param value 缓存值，不为null
+     * @return byte[]
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码
+     * @param bytes 非空的字节
+     * @param type  类型
+     * @return {@link T } 无法解码时返回null
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 编码带逻辑过期时间的缓存值
+     * @param value      缓存值，可以为null
+     * @param expireTime 逻辑过期时间
+     * @return byte[]
+     */
+    byte[] encodeWithExpire(Object value, LocalDateTime expireTime);
+
+    /**
+     * 解码带逻辑过期时间的缓存值，data 直接解码为 type，不经过中间对象
+     * @param bytes 非空的字节
+     * @param type  data的类型
+     * @return {@link RedisData } 无法解码时返回null
+     */
+    RedisData decodeWithExpire(byte[] bytes, Class<?> type);
+}
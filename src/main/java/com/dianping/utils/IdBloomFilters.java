@@ -0,0 +1,397 @@
+package com.dianping.utils;
+
+import com.dianping.config.CacheProperties;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import static com.dianping.utils.RedisConstants.BLOOM_FILTER_ADD_CHANNEL;
+import static com.dianping.utils.RedisConstants.BLOOM_FILTER_KEY;
+import static com.dianping.utils.RedisConstants.BLOOM_FILTER_RELOAD_CHANNEL;
+
+/**
+ * @Description: 按缓存key前缀注册的id布隆过滤器，防止查询不存在的id穿透到Redis和数据库
+ * 1.每个节点在本地内存判断，Redis中保存一份位图 bloom:{name} 和元数据 bloom:{name}:meta，节点启动时直接加载；
+ * 2.新增id时写入本地和Redis，并通过 bloom:add 频道通知其他节点，另外定时合并Redis的位图，补偿丢失的通知；
+ * 3.Redis中没有位图或需要全量重建时，由一个节点在后台流式读取id列构建新位图，构建期间查询仍使用旧的过滤器；
+ * 构建期间新增的id另外写入 bloom:{name}:pending，替换时一并合并，完成后通过 bloom:reload 频道通知所有节点重新加载。
+ * 过滤器未就绪时一律视为可能存在，只会退化为没有过滤器
+ * @Author: zhao
+ * Created: 2025/5/20 - 20:30
+ */
+@Slf4j
+@Component
+public class IdBloomFilters {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final CacheProperties cacheProperties;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final RedissonClient redissonClient;
+    private final TransactionTemplate readOnlyTransaction;
+
+    /** 按名称注册的过滤器 */
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+    /** 缓存key前缀到过滤器的映射 */
+    private final Map<String, Registration> prefixes = new ConcurrentHashMap<>();
+
+    private static final ExecutorService BLOOM_BUILD_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    public IdBloomFilters(StringRedisTemplate stringRedisTemplate,
+                          CacheProperties cacheProperties,
+                          RedisMessageListenerContainer redisMessageListenerContainer,
+                          RedissonClient redissonClient,
+                          PlatformTransactionManager transactionManager) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheProperties = cacheProperties;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.redissonClient = redissonClient;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!cacheProperties.getBloom().isEnabled()) {
+            return;
+        }
+        // 其他节点新增的id，消息内容为 name:id
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.lastIndexOf(':');
+            Registration registration = registrations.get(body.substring(0, index));
+            if (registration != null) {
+                registration.putLocal(Long.parseLong(body.substring(index + 1)));
+            }
+        }, new ChannelTopic(BLOOM_FILTER_ADD_CHANNEL));
+        // 重建完成，重新加载
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            Registration registration = registrations.get(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (registration != null) {
+                BLOOM_BUILD_EXECUTOR.submit(() -> load(registration));
+            }
+        }, new ChannelTopic(BLOOM_FILTER_RELOAD_CHANNEL));
+    }
+
+    /**
+     * 注册过滤器，后台从Redis加载，Redis中没有时全量构建；没有开启或没有配置该过滤器时不生效
+     * @param name      过滤器名称，对应配置 dianping.cache.bloom.filters.{name}
+     * @param keyPrefix 缓存key前缀，CacheClient 按前缀查找过滤器，可以为null
+     * @param ids       全部id的游标，在只读事务内遍历
+     */
+    public void register(String name, String keyPrefix, Supplier<Cursor<Long>> ids) {
+        CacheProperties.Bloom config = cacheProperties.getBloom();
+        CacheProperties.Filter filterConfig = config.getFilters().get(name);
+        if (!config.isEnabled() || filterConfig == null) {
+            return;
+        }
+        Registration registration = new Registration(name, filterConfig, ids);
+        registrations.put(name, registration);
+        if (keyPrefix != null) {
+            prefixes.put(keyPrefix, registration);
+        }
+        BLOOM_BUILD_EXECUTOR.submit(() -> {
+            if (!load(registration)) {
+                rebuild(registration);
+            }
+        });
+    }
+
+    /**
+     * id是否可能存在
+     * @param name 过滤器名称
+     * @param id   id
+     * @return boolean false表示一定不存在
+     */
+    public boolean mightContain(String name, Long id) {
+        return mightContain(registrations.get(name), id);
+    }
+
+    /**
+     * 缓存key前缀对应的id是否可能存在，没有注册过滤器的前缀或非数字id一律返回true
+     * @param keyPrefix 缓存key前缀
+     * @param id        id
+     * @return boolean false表示一定不存在
+     */
+    public boolean mightContainKey(String keyPrefix, Object id) {
+        if (prefixes.isEmpty() || !(id instanceof Number)) {
+            return true;
+        }
+        return mightContain(prefixes.get(keyPrefix), ((Number) id).longValue());
+    }
+
+    /**
+     * 新增id，在当前事务提交后写入，保证全量构建读取id列时不会漏掉：
+     * 提交早于构建读取的快照时会被读到，晚于快照时构建已开始，会写入 bloom:{name}:pending
+     * @param name 过滤器名称
+     * @param id   新增的id
+     */
+    public void add(String name, Long id) {
+        Registration registration = registrations.get(name);
+        if (registration == null || id == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    add(registration, id);
+                }
+            });
+        } else {
+            add(registration, id);
+        }
+    }
+
+    /**
+     * 定时合并Redis的位图；Redis中的版本与本地不同时（错过了重新加载的通知）重新加载
+     */
+    @Scheduled(fixedDelayString = "#{@cacheProperties.bloom.syncInterval.toMillis()}")
+    public void sync() {
+        for (Registration registration : registrations.values()) {
+            try {
+                Object version = stringRedisTemplate.opsForHash().get(registration.metaKey, "version");
+                if (version == null) {
+                    continue;
+                }
+                BloomFilter filter = registration.filter;
+                if (filter == null || !version.equals(registration.version)) {
+                    // 加载与重建都在同一个线程中执行
+                    BLOOM_BUILD_EXECUTOR.submit(() -> load(registration));
+                } else {
+                    filter.merge(getBytes(registration.key));
+                }
+            } catch (Exception e) {
+                log.error("同步布隆过滤器异常, name: {}", registration.name, e);
+            }
+        }
+    }
+
+    /**
+     * 定时全量重建，清除已删除的id，并按最新配置调整容量；多个节点只有一个执行
+     */
+    @Scheduled(initialDelayString = "#{@cacheProperties.bloom.rebuildInterval.toMillis()}",
+               fixedDelayString = "#{@cacheProperties.bloom.rebuildInterval.toMillis()}")
+    public void rebuildAll() {
+        long interval = cacheProperties.getBloom().getRebuildInterval().toMillis();
+        for (Registration registration : registrations.values()) {
+            // 其他节点不久前已经重建过
+            Object version = stringRedisTemplate.opsForHash().get(registration.metaKey, "version");
+            if (version != null && System.currentTimeMillis() - Long.parseLong(version.toString()) < interval / 2) {
+                continue;
+            }
+            BLOOM_BUILD_EXECUTOR.submit(() -> rebuild(registration));
+        }
+    }
+
+    private boolean mightContain(Registration registration, Long id) {
+        if (registration == null || id == null) {
+            return true;
+        }
+        BloomFilter filter = registration.filter;
+        // 未就绪
+        return filter == null || filter.mightContain(id);
+    }
+
+    private void add(Registration registration, Long id) {
+        // 1.本地
+        registration.putLocal(id);
+        try {
+            // 2.Redis的位图，重建期间同时写入 pending EVAL bloom-add.lua
+            long hash = BloomFilter.hash(id);
+            stringRedisTemplate.execute(
+                    BLOOM_ADD_SCRIPT,
+                    Arrays.asList(registration.key, registration.metaKey, registration.pendingKey),
+                    String.valueOf(BloomFilter.h1(hash)),
+                    String.valueOf(BloomFilter.h2(hash))
+            );
+            // 3.通知其他节点 PUBLISH bloom:add name:id
+            stringRedisTemplate.convertAndSend(BLOOM_FILTER_ADD_CHANNEL, registration.name + ":" + id);
+        } catch (Exception e) {
+            // 其他节点暂时会把该id判断为不存在，下次全量重建后恢复
+            log.error("布隆过滤器写入Redis失败, name: {}, id: {}", registration.name, id, e);
+        }
+    }
+
+    /**
+     * 从Redis加载位图，加载期间新增的id在替换后补上
+     * @return boolean Redis中没有可用的位图时返回false
+     */
+    private boolean load(Registration registration) {
+        Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(registration.metaKey);
+        if (meta.get("bits") == null) {
+            return false;
+        }
+        long bits = Long.parseLong(meta.get("bits").toString());
+        int hashes = Integer.parseInt(meta.get("hashes").toString());
+        String version = String.valueOf(meta.get("version"));
+        if (version.equals(registration.version)) {
+            return true;
+        }
+        boolean first = registration.filter == null;
+        registration.beginSwap();
+        BloomFilter filter = BloomFilter.fromBytes(bits, hashes, getBytes(registration.key));
+        registration.swap(filter, version);
+        log.info("加载布隆过滤器, name: {}, bits: {}, hashes: {}", registration.name, bits, hashes);
+        // 配置的容量或误判率已修改，只在首次加载时重建，避免配置不同的节点相互触发
+        BloomFilter expected = registration.newFilter();
+        if (first && (expected.bits() != bits || expected.hashes() != hashes)) {
+            log.info("布隆过滤器配置已修改，后台重建, name: {}", registration.name);
+            BLOOM_BUILD_EXECUTOR.submit(() -> rebuild(registration));
+        }
+        return true;
+    }
+
+    /**
+     * 全量重建：流式读取全部id构建新位图，写入Redis后原子地替换，并通知所有节点重新加载
+     */
+    private void rebuild(Registration registration) {
+        RLock lock = redissonClient.getLock("lock:bloom:" + registration.name);
+        if (!lock.tryLock()) {
+            // 其他节点正在重建，完成后会收到重新加载的通知
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            BloomFilter filter = registration.newFilter();
+            // 1.之后新增的id同时写入 pending
+            stringRedisTemplate.delete(registration.pendingKey);
+            Map<String, String> pending = new HashMap<>(2);
+            pending.put("pending_bits", String.valueOf(filter.bits()));
+            pending.put("pending_hashes", String.valueOf(filter.hashes()));
+            stringRedisTemplate.opsForHash().putAll(registration.metaKey, pending);
+            // 2.流式读取全部id
+            long count = readOnlyTransaction.execute(status -> {
+                long n = 0;
+                try (Cursor<Long> cursor = registration.ids.get()) {
+                    for (Long id : cursor) {
+                        filter.put(id);
+                        n++;
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return n;
+            });
+            // 3.写入临时key，合并 pending 后替换 EVAL bloom-swap.lua
+            String version = String.valueOf(System.currentTimeMillis());
+            String buildingKey = registration.key + ":building";
+            byte[] buildingKeyBytes = buildingKey.getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = filter.toBytes();
+            stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                    connection.stringCommands().set(buildingKeyBytes, bytes));
+            stringRedisTemplate.execute(
+                    BLOOM_SWAP_SCRIPT,
+                    Arrays.asList(buildingKey, registration.pendingKey, registration.key, registration.metaKey),
+                    String.valueOf(filter.bits()),
+                    String.valueOf(filter.hashes()),
+                    version
+            );
+            log.info("重建布隆过滤器, name: {}, ids: {}, bits: {}, 耗时: {}ms",
+                    registration.name, count, filter.bits(), System.currentTimeMillis() - begin);
+            // 4.所有节点（包括本节点）重新加载
+            stringRedisTemplate.convertAndSend(BLOOM_FILTER_RELOAD_CHANNEL, registration.name);
+        } catch (Exception e) {
+            log.error("重建布隆过滤器异常, name: {}", registration.name, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] getBytes(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(keyBytes));
+    }
+
+    /**
+     * 单个过滤器
+     */
+    private class Registration {
+        private final String name;
+        private final CacheProperties.Filter config;
+        private final Supplier<Cursor<Long>> ids;
+        private final String key;
+        private final String metaKey;
+        private final String pendingKey;
+
+        /** 本地过滤器，未就绪时为null */
+        private volatile BloomFilter filter;
+        /** 本地过滤器对应的Redis版本 */
+        private volatile String version;
+        /** 加载期间新增的id，替换后补上 */
+        private Set<Long> swapping;
+
+        private Registration(String name, CacheProperties.Filter config, Supplier<Cursor<Long>> ids) {
+            this.name = name;
+            this.config = config;
+            this.ids = ids;
+            // hash tag 保证集群模式下在同一个slot，便于脚本原子操作
+            this.key = BLOOM_FILTER_KEY + "{" + name + "}";
+            this.metaKey = key + ":meta";
+            this.pendingKey = key + ":pending";
+        }
+
+        private BloomFilter newFilter() {
+            return BloomFilter.create(config.getExpectedInsertions(), config.getFpp());
+        }
+
+        private synchronized void putLocal(long id) {
+            if (filter != null) {
+                filter.put(id);
+            }
+            if (swapping != null) {
+                swapping.add(id);
+            }
+        }
+
+        private synchronized void beginSwap() {
+            swapping = new HashSet<>();
+        }
+
+        private synchronized void swap(BloomFilter filter, String version) {
+            swapping.forEach(filter::put);
+            swapping = null;
+            this.filter = filter;
+            this.version = version;
+        }
+    }
+
+    // 布隆过滤器新增id的Lua脚本
+    private static final DefaultRedisScript<Long> BLOOM_ADD_SCRIPT;
+
+    static {
+        BLOOM_ADD_SCRIPT = new DefaultRedisScript<>();
+        BLOOM_ADD_SCRIPT.setLocation(new ClassPathResource("bloom-add.lua"));
+        BLOOM_ADD_SCRIPT.setResultType(Long.class);
+    }
+
+    // 布隆过滤器重建完成后替换的Lua脚本
+    private static final DefaultRedisScript<Long> BLOOM_SWAP_SCRIPT;
+
+    static {
+        BLOOM_SWAP_SCRIPT = new DefaultRedisScript<>();
+        BLOOM_SWAP_SCRIPT.setLocation(new ClassPathResource("bloom-swap.lua"));
+        BLOOM_SWAP_SCRIPT.setResultType(Long.class);
+    }
+}
@@ -0,0 +1,49 @@
+package com.dianping.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * @Description: JSON编解码，与原来直接写入JSON字符串的格式相同，可以读取已有的缓存
+ * @Author: zhao
+ * Created: 2025/5/22 - 20:30
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        try {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, LocalDateTime expireTime) {
+        RedisData redisData = new RedisData().setExpireTime(expireTime).setData(value);
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public RedisData decodeWithExpire(byte[] bytes, Class<?> type) {
+        try {
+            // 只解析一次，data 从解析结果直接转换，不再经过 RedisData 中间对象
+            JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+            JSONObject data = json.getJSONObject("data");
+            return new RedisData()
+                    .setExpireTime(json.get("expireTime", LocalDateTime.class))
+                    .setData(data == null ? null : data.toBean(type));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.dianping.utils;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Description: 进程内的有界缓存，按条目数和权重（字节数估算）淘汰，每个条目有独立的过期时间
+ * 读取只访问 ConcurrentHashMap，不加锁；超出上限时先清理过期条目，再采样淘汰最久未访问的条目（近似LRU，与Redis的淘汰策略相同）
+ * @Author: zhao
+ * Created: 2025/5/19 - 20:10
+ */
+public class LocalCache<V> {
+
+    /** 每次淘汰采样的条目数 */
+    private static final int EVICTION_SAMPLES = 8;
+
+    private final long maximumSize;
+    private final long maximumWeight;
+    private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicLong weight = new AtomicLong();
+
+    public LocalCache(long maximumSize, long maximumWeight) {
+        this.maximumSize = maximumSize;
+        this.maximumWeight = maximumWeight;
+    }
+
+    /**
+     * 查询缓存
+     * @param key 键
+     * @return {@link Entry } 不存在或已过期时返回null；值为null的条目表示缓存的空值
+     */
+    public Entry<V> get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (entry.expireTime <= now) {
+            remove(key, entry);
+            return null;
+        }
+        entry.lastAccess = System.nanoTime();
+        return entry;
+    }
+
+    /**
+     * 写入缓存
+     * @param key        键
+     * @param value      值，可以为null
+     * @param weight     权重，一般为序列化后的字节数
+     * @param ttlMillis  有效期
+     */
+    public void put(String key, V value, long weight, long ttlMillis) {
+        if (weight > maximumWeight) {
+            // 单个条目超过总权重，不缓存
+            invalidate(key);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Entry<V> entry = new Entry<>(value, weight, now + ttlMillis, System.nanoTime());
+        Entry<V> old = entries.put(key, entry);
+        this.weight.addAndGet(weight - (old == null ? 0 : old.weight));
+        if (entries.size() > maximumSize || this.weight.get() > maximumWeight) {
+            evict(now);
+        }
+    }
+
+    public void invalidate(String key) {
+        Entry<V> old = entries.remove(key);
+        if (old != null) {
+            weight.addAndGet(-old.weight);
+        }
+    }
+
+    public void invalidateAll() {
+        entries.keySet().forEach(this::invalidate);
+    }
+
+    public long size() {
+        return entries.size();
+    }
+
+    public long weight() {
+        return weight.get();
+    }
+
+    private void remove(String key, Entry<V> entry) {
+        if (entries.remove(key, entry)) {
+            weight.addAndGet(-entry.weight);
+        }
+    }
+
+    /**
+     * 淘汰到上限以内：先清理过期条目，仍超出时每次从随机位置采样若干条目，淘汰其中最久未访问的
+     */
+    private synchronized void evict(long now) {
+        if (entries.size() <= maximumSize && weight.get() <= maximumWeight) {
+            return;
+        }
+        entries.forEach((key, entry) -> {
+            if (entry.expireTime <= now) {
+                remove(key, entry);
+            }
+        });
+        while (entries.size() > maximumSize || weight.get() > maximumWeight) {
+            int skip = ThreadLocalRandom.current().nextInt(Math.max(1, entries.size()));
+            Iterator<Map.Entry<String, Entry<V>>> iterator = entries.entrySet().iterator();
+            for (int i = 0; i < skip && iterator.hasNext(); i++) {
+                iterator.next();
+            }
+            Map.Entry<String, Entry<V>> victim = null;
+            for (int i = 0; i < EVICTION_SAMPLES; i++) {
+                if (!iterator.hasNext()) {
+                    iterator = entries.entrySet().iterator();
+                    if (!iterator.hasNext()) {
+                        return;
+                    }
+                }
+                Map.Entry<String, Entry<V>> candidate = iterator.next();
+                if (victim == null || candidate.getValue().lastAccess - victim.getValue().lastAccess < 0) {
+                    victim = candidate;
+                }
+            }
+            remove(victim.getKey(), victim.getValue());
+        }
+    }
+
+    /**
+     * 缓存条目
+     */
+    public static class Entry<V> {
+        private final V value;
+        private final long weight;
+        private final long expireTime;
+        /** 最近访问时间（System.nanoTime），用于淘汰 */
+        private volatile long lastAccess;
+
+        private Entry(V value, long weight, long expireTime, long lastAccess) {
+            this.value = value;
+            this.weight = weight;
+            this.expireTime = expireTime;
+            this.lastAccess = lastAccess;
+        }
+
+        public V getValue() {
+            return value;
+        }
+    }
+}
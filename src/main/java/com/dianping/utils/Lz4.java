@@ -0,0 +1,177 @@
+package com.dianping.utils;
+
+import java.util.Arrays;
+
+/**
+ * @Description: LZ4 块格式（block format）的压缩与解压，与 lz4 官方实现的 LZ4_compress_default / LZ4_decompress_safe 格式兼容
+ * 每个序列 = token(高4位字面量长度、低4位匹配长度-4) + 字面量 + 2字节小端偏移 + 长度扩展；最后5个字节总是字面量。
+ * 缓存值只有几KB，使用单次贪心匹配的简单实现，不依赖本地库
+ * @Author: zhao
+ * Created: 2025/5/22 - 20:10
+ */
+public final class Lz4 {
+
+    private static final int MIN_MATCH = 4;
+    /** 最后一个匹配必须在结尾12个字节之前开始 */
+    private static final int MF_LIMIT = 12;
+    /** 最后5个字节必须是字面量 */
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int RUN_MASK = 15;
+
+    private Lz4() {
+    }
+
+    /**
+     * 压缩
+     * @param src 原始数据
+     * @return byte[] 压缩后的数据，不包含原始长度，解压时需另外提供
+     */
+    public static byte[] compress(byte[] src) {
+        int length = src.length;
+        byte[] dst = new byte[length + length / 255 + 16];
+        int dp = 0;
+        int anchor = 0;
+        if (length >= MF_LIMIT + 1) {
+            // 4字节序列的哈希表，保存位置+1，0表示空
+            int[] table = new int[1 << HASH_LOG];
+            int limit = length - MF_LIMIT;
+            int matchLimit = length - LAST_LITERALS;
+            int ip = 0;
+            while (ip < limit) {
+                int sequence = readInt(src, ip);
+                int h = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int ref = table[h] - 1;
+                table[h] = ip + 1;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+                // 向前扩展匹配
+                int matchLength = MIN_MATCH;
+                while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                    matchLength++;
+                }
+                // 向后扩展匹配
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+                dp = writeSequence(dst, dp, src, anchor, ip - anchor, ip - ref, matchLength);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        // 剩余的字面量
+        dp = writeSequence(dst, dp, src, anchor, length - anchor, 0, 0);
+        return Arrays.copyOf(dst, dp);
+    }
+
+    /**
+     * 解压
+     * @param src            压缩数据
+     * @param offset         起始位置
+     * @param length         压缩数据长度
+     * @param originalLength 原始长度
+     * @return byte[] 原始数据
+     * @throws IllegalArgumentException 数据损坏
+     */
+    public static byte[] decompress(byte[] src, int offset, int length, int originalLength) {
+        byte[] dst = new byte[originalLength];
+        int sp = offset;
+        int end = offset + length;
+        int dp = 0;
+        try {
+            while (true) {
+                int token = src[sp++] & 0xFF;
+                // 1.字面量
+                int literalLength = token >>> 4;
+                if (literalLength == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, sp, dst, dp, literalLength);
+                sp += literalLength;
+                dp += literalLength;
+                if (sp >= end) {
+                    break;
+                }
+                // 2.匹配，可能与输出重叠，逐字节复制
+                int matchOffset = (src[sp++] & 0xFF) | ((src[sp++] & 0xFF) << 8);
+                int matchLength = token & RUN_MASK;
+                if (matchLength == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = dp - matchOffset;
+                if (matchOffset == 0 || ref < 0) {
+                    throw new IllegalArgumentException("LZ4数据损坏: 偏移越界");
+                }
+                for (int i = 0; i < matchLength; i++) {
+                    dst[dp++] = dst[ref++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("LZ4数据损坏", e);
+        }
+        if (dp != originalLength) {
+            throw new IllegalArgumentException("LZ4数据损坏: 长度不一致");
+        }
+        return dst;
+    }
+
+    /**
+     * 写入一个序列，matchLength为0时只写入字面量（最后一个序列）
+     */
+    private static int writeSequence(byte[] dst, int dp, byte[] src, int literalStart, int literalLength,
+                                     int matchOffset, int matchLength) {
+        int tokenPosition = dp++;
+        int token;
+        if (literalLength >= RUN_MASK) {
+            token = RUN_MASK << 4;
+            dp = writeLength(dst, dp, literalLength - RUN_MASK);
+        } else {
+            token = literalLength << 4;
+        }
+        System.arraycopy(src, literalStart, dst, dp, literalLength);
+        dp += literalLength;
+        if (matchLength > 0) {
+            dst[dp++] = (byte) matchOffset;
+            dst[dp++] = (byte) (matchOffset >>> 8);
+            int extra = matchLength - MIN_MATCH;
+            if (extra >= RUN_MASK) {
+                token |= RUN_MASK;
+                dp = writeLength(dst, dp, extra - RUN_MASK);
+            } else {
+                token |= extra;
+            }
+        }
+        dst[tokenPosition] = (byte) token;
+        return dp;
+    }
+
+    private static int writeLength(byte[] dst, int dp, int length) {
+        while (length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+    private static int readInt(byte[] src, int index) {
+        return (src[index] & 0xFF)
+                | (src[index + 1] & 0xFF) << 8
+                | (src[index + 2] & 0xFF) << 16
+                | (src[index + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,239 @@
+package com.dianping.utils;
+
+import com.dianping.config.SeckillProperties;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.dianping.utils.RedisConstants.ORDER_TIMEOUT_KEY;
+
+/**
+ * @Description: 订单支付超时的延迟队列
+ * 全部待超时订单保存在Redis的zset order:timeout（score为到期时间），各节点定时认领即将到期的一小段，
+ * 放入本地的时间轮 HashedWheelTimer 等待到期，到期后攒批交给处理器；内存中只有预读时长内的定时任务，
+ * 不会为每个订单创建一个定时任务。处理成功后才从zset删除，节点宕机时认领的订单到期后由其他节点重新认领。
+ * 认领在单独的线程中访问Redis，不阻塞时间轮；本地积压过多时暂停认领，每批处理前续期认领，避免处理慢时被其他节点重复认领
+ * @Author: zhao
+ * Created: 2025/5/14 - 20:10
+ */
+@Slf4j
+@Component
+public class OrderDelayQueue {
+
+    /** 订单id中序列号的位数 */
+    private static final int COUNT_BITS = 32;
+    /** 单次最多认领的订单数 */
+    private static final int CLAIM_LIMIT = 1000;
+    /** 每次认领最多执行的批数，还有到期订单时立即进行下一次认领 */
+    private static final int MAX_CLAIMS_PER_POLL = 5;
+    /** 本地已认领、尚未处理完的订单数上限，超过时暂停认领 */
+    private static final int MAX_LOCAL_ORDERS = CLAIM_LIMIT * MAX_CLAIMS_PER_POLL * 2;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties seckillProperties;
+    private final RedisIdWorker redisIdWorker;
+
+    /** 时间轮，每格100ms，一圈512格 */
+    private final Timer timer = new HashedWheelTimer(
+            r -> {
+                Thread thread = new Thread(r, "order-timeout-wheel");
+                thread.setDaemon(true);
+                return thread;
+            },
+            100, TimeUnit.MILLISECONDS, 512
+    );
+    /** 认领订单的线程，访问Redis不占用时间轮线程 */
+    private final ScheduledExecutorService claimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "order-timeout-claimer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** 已到期、等待处理的订单 */
+    private final BlockingQueue<Long> dueOrders = new LinkedBlockingQueue<>();
+    /** 本地已认领、尚未处理完的订单数（时间轮中 + 等待处理） */
+    private final AtomicInteger localOrders = new AtomicInteger();
+    private volatile Thread worker;
+    private volatile boolean running;
+
+    public OrderDelayQueue(StringRedisTemplate stringRedisTemplate,
+                           SeckillProperties seckillProperties,
+                           RedisIdWorker redisIdWorker) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillProperties = seckillProperties;
+        this.redisIdWorker = redisIdWorker;
+    }
+
+    /**
+     * 登记订单的支付超时，到期时间 = 下单时间（订单id的时间戳）+ payTimeout，重复登记不影响
+     * ZADD order:timeout deadline orderId
+     * @param orderIds 订单 ID
+     */
+    public void add(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long timestamp = redisIdWorker.timestamp(LocalDateTime.now());
+        long payTimeout = seckillProperties.getPayTimeout().toMillis();
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>();
+        for (Long orderId : orderIds) {
+            // 订单id的高32位是下单时间（秒）
+            long age = (timestamp - (orderId >>> COUNT_BITS)) * 1000;
+            tuples.add(ZSetOperations.TypedTuple.of(orderId.toString(), (double) (now - age + payTimeout)));
+        }
+        stringRedisTemplate.opsForZSet().add(ORDER_TIMEOUT_KEY, tuples);
+    }
+
+    /**
+     * 订单已处理完成（已取消或已支付），不再超时 ZREM order:timeout orderId ...
+     * @param orderIds 订单 ID
+     */
+    public void remove(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY, orderIds.stream().map(String::valueOf).toArray());
+    }
+
+    /**
+     * 启动认领和处理，处理器抛出异常时该批订单留在zset中，认领过期后重试
+     * @param handler 到期订单的处理器，每次最多 payTimeoutBatchSize 个
+     */
+    public synchronized void start(Consumer<List<Long>> handler) {
+        if (running) {
+            return;
+        }
+        running = true;
+        claimer.execute(this::poll);
+        worker = new Thread(() -> drain(handler), "order-timeout-worker");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        claimer.shutdownNow();
+        timer.stop();
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * 认领预读时长内到期的订单，放入时间轮；每次最多认领 MAX_CLAIMS_PER_POLL 批，本地积压过多时暂停认领
+     */
+    private void poll() {
+        if (!running) {
+            return;
+        }
+        long pollInterval = seckillProperties.getPayTimeoutPollInterval().toMillis();
+        boolean more = false;
+        try {
+            long now = System.currentTimeMillis();
+            // 预读两个认领间隔，保证下次认领前到期的订单都已在时间轮中
+            long horizon = now + pollInterval * 2;
+            // 认领后一段时间内其他节点不再认领，处理前还会续期
+            long leaseUntil = horizon + seckillProperties.getPayTimeoutClaimLease().toMillis();
+            for (int claims = 0; claims < MAX_CLAIMS_PER_POLL && localOrders.get() < MAX_LOCAL_ORDERS; claims++) {
+                List<?> items = stringRedisTemplate.execute(
+                        TIMEOUT_CLAIM_SCRIPT,
+                        Collections.singletonList(ORDER_TIMEOUT_KEY),
+                        String.valueOf(horizon),
+                        String.valueOf(CLAIM_LIMIT),
+                        String.valueOf(leaseUntil)
+                );
+                if (items == null) {
+                    break;
+                }
+                localOrders.addAndGet(items.size() / 2);
+                for (int i = 0; i + 1 < items.size(); i += 2) {
+                    Long orderId = Long.valueOf(items.get(i).toString());
+                    long delay = Math.max(0, (long) Double.parseDouble(items.get(i + 1).toString()) - now);
+                    timer.newTimeout(t -> dueOrders.offer(orderId), delay, TimeUnit.MILLISECONDS);
+                }
+                more = items.size() / 2 == CLAIM_LIMIT;
+                if (!more) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            log.error("认领超时订单异常", e);
+        } finally {
+            if (running) {
+                // 还有到期订单且本地积压未满时立即继续认领
+                boolean again = more && localOrders.get() < MAX_LOCAL_ORDERS;
+                claimer.schedule(this::poll, again ? 0 : pollInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * 续期一批订单的认领，处理完之前其他节点不会重新认领
+     */
+    private void renew(List<Long> orderIds) {
+        List<String> args = new ArrayList<>(orderIds.size() + 1);
+        args.add(String.valueOf(System.currentTimeMillis() + seckillProperties.getPayTimeoutClaimLease().toMillis()));
+        orderIds.forEach(orderId -> args.add(orderId.toString()));
+        stringRedisTemplate.execute(TIMEOUT_RENEW_SCRIPT, Collections.singletonList(ORDER_TIMEOUT_KEY), args.toArray());
+    }
+
+    /**
+     * 攒批处理到期的订单
+     */
+    private void drain(Consumer<List<Long>> handler) {
+        int batchSize = seckillProperties.getPayTimeoutBatchSize();
+        while (running) {
+            List<Long> batch = new ArrayList<>(batchSize);
+            try {
+                batch.add(dueOrders.take());
+                dueOrders.drainTo(batch, batchSize - 1);
+                renew(batch);
+                handler.accept(batch);
+                remove(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("处理超时订单异常, orderIds: {}", batch, e);
+            } finally {
+                // 处理失败的订单留在zset中，认领过期后重新认领
+                localOrders.addAndGet(-batch.size());
+            }
+        }
+    }
+
+    // 认领到期订单的Lua脚本
+    private static final DefaultRedisScript<List> TIMEOUT_CLAIM_SCRIPT;
+
+    static {
+        TIMEOUT_CLAIM_SCRIPT = new DefaultRedisScript<>();
+        TIMEOUT_CLAIM_SCRIPT.setLocation(new ClassPathResource("order-timeout-claim.lua"));
+        TIMEOUT_CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    // 续期已认领订单的Lua脚本
+    private static final DefaultRedisScript<Long> TIMEOUT_RENEW_SCRIPT;
+
+    static {
+        TIMEOUT_RENEW_SCRIPT = new DefaultRedisScript<>();
+        TIMEOUT_RENEW_SCRIPT.setLocation(new ClassPathResource("order-timeout-renew.lua"));
+        TIMEOUT_RENEW_SCRIPT.setResultType(Long.class);
+    }
+}
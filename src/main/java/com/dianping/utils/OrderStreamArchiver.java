@@ -0,0 +1,325 @@
+package com.dianping.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.dianping.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.dianping.utils.RedisConstants.SECKILL_ORDER_ARCHIVE_KEY;
+import static com.dianping.utils.RedisConstants.SECKILL_ORDER_STREAMS_KEY;
+import static com.dianping.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+
+/**
+ * @Description: 订单stream的保留与归档
+ * 低水位 = 各消费者组 pending 中最小的消息id，没有 pending 时为 last-delivered-id 的下一个id；低水位之前的消息已被全部消费者组确认。
+ * 这些消息按批 XRANGE 追加写入本地的gzip分段文件（每批一个gzip member，fsync后记录归档位置），再 XTRIM MINID 删除，
+ * Redis中只保留未确认的消息，内存不随秒杀场次增长；归档文件可用 {@link #replay} 离线重放。
+ * 归档是至少一次的：fsync后、记录归档位置前宕机时，该批会再次写入归档文件；消息id单调递增，重放时按id去重
+ * @Author: zhao
+ * Created: 2025/5/18 - 20:15
+ */
+@Slf4j
+@Component
+public class OrderStreamArchiver {
+
+    /** 归档分段文件的后缀，文件名为该段第一条消息的id */
+    private static final String SEGMENT_SUFFIX = ".jsonl.gz";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties seckillProperties;
+    private final RedissonClient redissonClient;
+
+    /** 各stream当前写入的分段文件，节点启动后的第一批写入新的分段 */
+    private final Map<String, Path> currentSegments = new HashMap<>();
+
+    public OrderStreamArchiver(StringRedisTemplate stringRedisTemplate,
+                               SeckillProperties seckillProperties,
+                               RedissonClient redissonClient) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillProperties = seckillProperties;
+        this.redissonClient = redissonClient;
+    }
+
+    /**
+     * 定时归档并删除已被全部消费者组确认的订单消息，多个节点只有一个执行
+     */
+    @Scheduled(fixedDelayString = "#{@seckillProperties.retention.interval.toMillis()}")
+    public void archive() {
+        if (!seckillProperties.getRetention().isEnabled()) {
+            return;
+        }
+        RLock lock = redissonClient.getLock("lock:stream:archive");
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            for (String stream : orderStreams()) {
+                try {
+                    archive(stream);
+                } catch (Exception e) {
+                    log.error("归档订单消息异常, stream: {}", stream, e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 归档单个stream低水位之前的消息
+     * @param stream 订单stream
+     * @return long 本次归档的消息数
+     */
+    public synchronized long archive(String stream) throws IOException {
+        // 1.低水位，没有消费者组时不清理
+        String lowWater = lowWaterMark(stream);
+        if (lowWater == null) {
+            return 0;
+        }
+        // 2.上次归档到的位置，已归档未删除的（写完归档后宕机）先删除
+        Object archived = stringRedisTemplate.opsForHash().get(SECKILL_ORDER_ARCHIVE_KEY, stream);
+        String position = archived == null ? null : archived.toString();
+        if (position != null) {
+            trim(stream, nextId(position));
+        }
+        int batchSize = seckillProperties.getRetention().getBatchSize();
+        long total = 0;
+        while (true) {
+            // 3.按批读取 XRANGE stream (position (lowWater COUNT n
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                    stream,
+                    Range.of(
+                            position == null ? Range.Bound.unbounded() : Range.Bound.exclusive(position),
+                            Range.Bound.exclusive(lowWater)
+                    ),
+                    Limit.limit().count(batchSize)
+            );
+            if (records == null || records.isEmpty()) {
+                break;
+            }
+            // 4.写入分段文件并fsync，记录归档位置后再删除 XTRIM stream MINID next
+            append(stream, records);
+            position = records.get(records.size() - 1).getId().getValue();
+            stringRedisTemplate.opsForHash().put(SECKILL_ORDER_ARCHIVE_KEY, stream, position);
+            trim(stream, nextId(position));
+            total += records.size();
+            if (records.size() < batchSize) {
+                break;
+            }
+        }
+        if (total > 0) {
+            log.info("归档订单消息{}条, stream: {}, 归档至: {}", total, stream, position);
+        }
+        return total;
+    }
+
+    /**
+     * 按顺序离线重放归档的订单消息，跳过id不大于已重放消息的重复消息（重复归档的批次）
+     * @param stream  订单stream
+     * @param handler 处理器，参数为消息id和消息内容
+     * @return long 重放的消息数
+     */
+    public long replay(String stream, BiConsumer<String, Map<String, Object>> handler) throws IOException {
+        Path dir = archiveDir(stream);
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        long count = 0;
+        String lastId = null;
+        for (Path segment : segments(dir)) {
+            // 多个gzip member首尾相接仍是合法的gzip文件，GZIPInputStream会依次读取
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(Files.newInputStream(segment)), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    JSONObject entry = JSONUtil.parseObj(line);
+                    String id = entry.getStr("id");
+                    if (lastId != null && compareIds(id, lastId) <= 0) {
+                        continue;
+                    }
+                    handler.accept(id, entry.getJSONObject("fields"));
+                    lastId = id;
+                    count++;
+                }
+            } catch (EOFException e) {
+                // 宕机时写了一半的最后一批，该批未记录归档位置，仍在Redis中，下次会重新归档
+                log.warn("归档分段文件不完整, 跳过剩余部分: {}", segment);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 低水位：所有消费者组都已确认其之前的消息
+     * @param stream 订单stream
+     * @return {@link String } 没有消费者组时返回null
+     */
+    private String lowWaterMark(String stream) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stream))) {
+            return null;
+        }
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+        if (groups == null || groups.isEmpty()) {
+            return null;
+        }
+        String lowWater = null;
+        for (StreamInfo.XInfoGroup group : groups) {
+            String mark;
+            if (group.pendingCount() > 0) {
+                // 最早的未确认消息 XPENDING stream group
+                mark = stringRedisTemplate.opsForStream().pending(stream, group.groupName()).minMessageId();
+            } else {
+                mark = nextId(group.lastDeliveredId());
+            }
+            if (lowWater == null || compareIds(mark, lowWater) < 0) {
+                lowWater = mark;
+            }
+        }
+        return lowWater;
+    }
+
+    /**
+     * 追加一批消息到当前分段文件，每行一个 {"id":"...","fields":{...}}；当前分段超过大小上限时新建分段
+     */
+    private void append(String stream, List<MapRecord<String, Object, Object>> records) throws IOException {
+        Path segment = currentSegments.get(stream);
+        if (segment == null || !Files.exists(segment)
+                || Files.size(segment) >= seckillProperties.getRetention().getSegmentSize().toBytes()) {
+            Path dir = archiveDir(stream);
+            Files.createDirectories(dir);
+            segment = dir.resolve(records.get(0).getId().getValue() + SEGMENT_SUFFIX);
+            currentSegments.put(stream, segment);
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long length = channel.size();
+            channel.position(length);
+            try {
+                GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(
+                        new NonClosingOutputStream(Channels.newOutputStream(channel))));
+                try (Writer writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8)) {
+                    for (MapRecord<String, Object, Object> record : records) {
+                        Map<String, Object> entry = new LinkedHashMap<>(2);
+                        entry.put("id", record.getId().getValue());
+                        entry.put("fields", record.getValue());
+                        writer.write(JSONUtil.toJsonStr(entry));
+                        writer.write('\n');
+                    }
+                }
+                channel.force(true);
+            } catch (IOException e) {
+                // 写入失败，截掉写了一半的gzip member，保持文件完整
+                channel.truncate(length);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 删除id小于minId的消息 XTRIM stream MINID minId
+     */
+    private void trim(String stream, String minId) {
+        stringRedisTemplate.execute(STREAM_TRIM_SCRIPT, Collections.singletonList(stream), minId);
+    }
+
+    private Path archiveDir(String stream) {
+        // stream名中的hash tag等字符不适合作为目录名
+        return Paths.get(seckillProperties.getRetention().getArchiveDir(), stream.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    /**
+     * 按第一条消息的id排序的分段文件
+     */
+    private List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                        .sorted((a, b) -> compareIds(segmentId(a), segmentId(b)))
+                        .toList();
+        }
+    }
+
+    private String segmentId(Path segment) {
+        String name = segment.getFileName().toString();
+        return name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+    }
+
+    private List<String> orderStreams() {
+        List<String> streams = new ArrayList<>();
+        streams.add(SECKILL_ORDER_STREAM_KEY);
+        Set<String> members = stringRedisTemplate.opsForSet().members(SECKILL_ORDER_STREAMS_KEY);
+        if (members != null) {
+            streams.addAll(members);
+        }
+        return streams;
+    }
+
+    /**
+     * 消息id ms-seq 的下一个id
+     */
+    private static String nextId(String id) {
+        int index = id.indexOf('-');
+        return id.substring(0, index) + "-" + (Long.parseLong(id.substring(index + 1)) + 1);
+    }
+
+    private static int compareIds(String a, String b) {
+        int ia = a.indexOf('-');
+        int ib = b.indexOf('-');
+        int result = Long.compare(Long.parseLong(a.substring(0, ia)), Long.parseLong(b.substring(0, ib)));
+        if (result != 0) {
+            return result;
+        }
+        return Long.compare(Long.parseLong(a.substring(ia + 1)), Long.parseLong(b.substring(ib + 1)));
+    }
+
+    /**
+     * 关闭gzip流时不关闭文件通道，由外层在fsync后关闭
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        private NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    // 删除已归档消息的Lua脚本
+    private static final DefaultRedisScript<Long> STREAM_TRIM_SCRIPT;
+
+    static {
+        STREAM_TRIM_SCRIPT = new DefaultRedisScript<>();
+        STREAM_TRIM_SCRIPT.setLocation(new ClassPathResource("stream-trim.lua"));
+        STREAM_TRIM_SCRIPT.setResultType(Long.class);
+    }
+}
@@ -7,15 +7,38 @@ public class RedisConstants {
     public static final Long LOGIN_USER_TTL = 36000L;
 
     public static final Long CACHE_NULL_TTL = 2L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_FILTER_ADD_CHANNEL = "bloom:add";
+    public static final String BLOOM_FILTER_RELOAD_CHANNEL = "bloom:reload";
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type";
+    public static final Long CACHE_SHOP_VOUCHER_TTL = 30L;
+    public static final String CACHE_SHOP_VOUCHER_KEY = "cache:shop:voucher:";
+    public static final String CACHE_SHOP_VOUCHER_CHANNEL = "cache:shop:voucher:evict";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
+    public static final String LOCK_CACHE_KEY = "lock:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards";
+    public static final String SECKILL_SHARDS_CHANNEL = "seckill:shards:changed";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_PREHEATED_KEY = "seckill:preheated";
+    public static final String SECKILL_STATUS_KEY = "seckill:status:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_STREAMS_KEY = "seckill:streams";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_ARCHIVE_KEY = "seckill:archive";
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_RECONCILE_KEY = "seckill:reconcile:";
+    public static final String SECKILL_RECONCILE_DRIFT_KEY = "seckill:reconcile:drift";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -1,17 +1,30 @@
 package com.dianping.utils;
 
+import com.dianping.config.IdWorkerProperties;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @Description: 全局ID生成器
+ * 号段模式下，每次 INCRBY 预留一段序列号在本地无锁发放，号段长度随消耗速度自适应，当前号段快用完时异步预取下一段；
+ * ID格式不变，仍为 时间戳 << 32 | 当天序列号
  * @Author: zhao
  * Created: 2025/4/26 - 21:19
  */
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -19,26 +32,189 @@ public class RedisIdWorker {
     private static final long BEGIN_TIMESTAMP = 1672531200L;
     /** 序列号的位数 */
     private static final int COUNT_BITS = 32;
+    /** 序列号按天区分 */
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
 
     private final StringRedisTemplate stringRedisTemplate;
+    private final IdWorkerProperties idWorkerProperties;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    /** 各业务的号段缓冲 */
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+    /** 异步预取号段的线程 */
+    private final ExecutorService segmentLoader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, IdWorkerProperties idWorkerProperties) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.idWorkerProperties = idWorkerProperties;
     }
 
     public long nextId(String keyPrefix) {
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        long timestamp = timestamp(now);
 
         // 2.生成序列号
-        // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2.自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count;
+        if (idWorkerProperties.isSegmentEnabled()) {
+            // 2.1.号段模式，从本地号段取当天的序列号
+            count = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).nextCount(now.format(DATE_FORMATTER));
+        } else {
+            // 2.2.获取当前日期，精确到天，自增长
+            count = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, now));
+        }
 
         // 3.拼接并返回
         return timestamp << COUNT_BITS | count;
     }
+
+    /**
+     * ID的时间戳部分：相对开始时间的秒数
+     * 秒杀脚本在Redis内生成订单ID时，由Java传入，保证与 nextId 的格式一致
+     * @param now 当前时间
+     * @return long
+     */
+    public long timestamp(LocalDateTime now) {
+        return now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 序列号的自增key icr:keyPrefix:yyyy:MM:dd，按天区分
+     * @param keyPrefix 业务前缀
+     * @param now       当前时间
+     * @return {@link String }
+     */
+    public String counterKey(String keyPrefix, LocalDateTime now) {
+        return counterKey(keyPrefix, now.format(DATE_FORMATTER));
+    }
+
+    private String counterKey(String keyPrefix, String date) {
+        return "icr:" + keyPrefix + ":" + date;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        // 未发放完的号段直接丢弃，只会产生空洞，不会重复
+        segmentLoader.shutdownNow();
+    }
+
+    /**
+     * 号段：[max - step + 1, max]，只能用于所属日期
+     */
+    private static class Segment {
+        private final String date;
+        private final long max;
+        private final int step;
+        private final AtomicLong cursor;
+        /** 是否已触发预取下一段 */
+        private final AtomicBoolean prefetched = new AtomicBoolean();
+
+        private Segment(String date, long max, int step) {
+            this.date = date;
+            this.max = max;
+            this.step = step;
+            this.cursor = new AtomicLong(max - step + 1);
+        }
+    }
+
+    /**
+     * 单个业务的号段缓冲：当前号段 + 预取中的下一段
+     * 发号只做一次 CAS，只有号段用完切换时才加锁
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private CompletableFuture<Segment> next;
+        /** 当前号段长度，按消耗速度调整 */
+        private volatile int step;
+        /** 上次加载号段的时间 */
+        private volatile long lastLoadTime;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+            this.step = idWorkerProperties.getMinStep();
+        }
+
+        private long nextCount(String date) {
+            while (true) {
+                Segment segment = current;
+                // 1.号段属于当天才能使用，跨天后旧号段作废，保证按天唯一
+                if (segment != null && segment.date.equals(date)) {
+                    long count = segment.cursor.getAndIncrement();
+                    if (count <= segment.max) {
+                        // 2.剩余不足一定比例，异步预取下一段
+                        if (segment.max - count < segment.step * idWorkerProperties.getPrefetchRatio()) {
+                            prefetch(segment);
+                        }
+                        return count;
+                    }
+                }
+                // 3.号段用完或已跨天，切换号段后重试
+                switchSegment(segment, date);
+            }
+        }
+
+        private void prefetch(Segment segment) {
+            if (!segment.prefetched.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (this) {
+                if (current == segment && next == null) {
+                    next = CompletableFuture.supplyAsync(() -> loadSegment(segment.date), segmentLoader);
+                }
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, String date) {
+            if (current != exhausted) {
+                // 其他线程已经切换过了
+                return;
+            }
+            Segment segment = null;
+            CompletableFuture<Segment> future = next;
+            next = null;
+            if (future != null) {
+                try {
+                    segment = future.join();
+                } catch (Exception e) {
+                    log.warn("预取号段失败, keyPrefix: {}", keyPrefix, e);
+                }
+            }
+            if (segment == null || !segment.date.equals(date)) {
+                segment = loadSegment(date);
+            }
+            current = segment;
+        }
+
+        private Segment loadSegment(String date) {
+            int step = nextStep();
+            // INCRBY icr:keyPrefix:date step，返回值为本段最大序列号
+            Long max = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date), step);
+            if (max == null) {
+                throw new IllegalStateException("获取号段失败");
+            }
+            return new Segment(date, max, step);
+        }
+
+        /**
+         * 号段消耗快于期望时长则翻倍，慢于两倍期望时长则减半
+         */
+        private int nextStep() {
+            long now = System.currentTimeMillis();
+            long elapsed = now - lastLoadTime;
+            lastLoadTime = now;
+            long expected = idWorkerProperties.getSegmentDuration().toMillis();
+            int newStep = step;
+            if (elapsed < expected) {
+                newStep = Math.min(newStep * 2, idWorkerProperties.getMaxStep());
+            } else if (elapsed > expected * 2) {
+                newStep = Math.max(newStep / 2, idWorkerProperties.getMinStep());
+            }
+            step = newStep;
+            return newStep;
+        }
+    }
 }
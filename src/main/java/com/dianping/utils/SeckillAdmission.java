@@ -0,0 +1,209 @@
+package com.dianping.utils;
+
+import com.dianping.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.dianping.utils.RedisConstants.SECKILL_LIMIT_KEY;
+import static com.dianping.utils.RedisConstants.SECKILL_ORDER_STREAMS_KEY;
+import static com.dianping.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+
+/**
+ * @Description: 秒杀准入控制，在执行秒杀脚本之前拦截多余的请求
+ * 1.订单stream积压超过阈值时直接拒绝（降载）；
+ * 2.本地令牌桶：每秒放行的请求数按剩余库存计算，库存越少放行越少；
+ * 3.全局令牌桶 seckill:limit:{voucherId}：各节点按批领取令牌，限制全部节点的总请求数，不是每个请求都访问Redis
+ * @Author: zhao
+ * Created: 2025/5/15 - 20:40
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    /** 订单消息的消费者组 */
+    private static final String ORDER_GROUP = "g1";
+    /** 超过该时长没有请求的优惠券，不再刷新库存 */
+    private static final long IDLE_MILLIS = 60_000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties seckillProperties;
+    private final SeckillKeys seckillKeys;
+
+    /** 各优惠券的本地令牌桶 */
+    private final Map<Long, Bucket> buckets = new ConcurrentHashMap<>();
+    /** 订单消息是否积压 */
+    private volatile boolean overloaded;
+
+    public SeckillAdmission(StringRedisTemplate stringRedisTemplate,
+                            SeckillProperties seckillProperties,
+                            SeckillKeys seckillKeys) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillProperties = seckillProperties;
+        this.seckillKeys = seckillKeys;
+    }
+
+    /**
+     * 是否放行本次秒杀请求
+     * @param voucherId 优惠券 ID
+     * @return boolean false表示系统繁忙，应让用户稍后重试
+     */
+    public boolean tryAdmit(Long voucherId) {
+        // 1.订单积压，降载
+        if (overloaded) {
+            return false;
+        }
+        Bucket bucket = buckets.computeIfAbsent(voucherId, this::newBucket);
+        bucket.lastAccess = System.currentTimeMillis();
+        // 2.本地令牌桶
+        if (!bucket.tryAcquire()) {
+            return false;
+        }
+        // 3.全局令牌，本地领到的用完后再向Redis领取一批
+        return bucket.tryAcquireGlobal(voucherId);
+    }
+
+    /**
+     * 刷新各优惠券的剩余库存和订单积压
+     */
+    @Scheduled(fixedDelayString = "#{@seckillProperties.admission.refreshInterval.toMillis()}")
+    public void refresh() {
+        SeckillProperties.Admission config = seckillProperties.getAdmission();
+        if (!config.isEnabled()) {
+            return;
+        }
+        try {
+            // 1.剩余库存 MGET seckill:stock:{voucherId}:0 ...
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<Long, Bucket>> iterator = buckets.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Long, Bucket> entry = iterator.next();
+                if (now - entry.getValue().lastAccess > IDLE_MILLIS) {
+                    iterator.remove();
+                    continue;
+                }
+                entry.getValue().resize(remainingStock(entry.getKey()));
+            }
+            // 2.订单积压 = 已投递未确认 + 未投递的消息数
+            long lag = 0;
+            for (String stream : orderStreams()) {
+                Long streamLag = stringRedisTemplate.execute(
+                        STREAM_LAG_SCRIPT,
+                        Collections.singletonList(stream),
+                        ORDER_GROUP,
+                        String.valueOf(config.getMaxLag() + 1)
+                );
+                lag += streamLag == null ? 0 : streamLag;
+            }
+            boolean overloaded = lag > config.getMaxLag();
+            if (overloaded != this.overloaded) {
+                log.warn("订单消息积压{}条，{}降载", lag, overloaded ? "开始" : "停止");
+            }
+            this.overloaded = overloaded;
+        } catch (Exception e) {
+            log.error("刷新秒杀准入状态异常", e);
+        }
+    }
+
+    private Bucket newBucket(Long voucherId) {
+        Bucket bucket = new Bucket();
+        bucket.resize(remainingStock(voucherId));
+        // 新建的桶是满的
+        bucket.tokens = bucket.rate;
+        return bucket;
+    }
+
+    private long remainingStock(Long voucherId) {
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(seckillKeys.stockKeys(voucherId));
+        long remaining = 0;
+        if (stocks != null) {
+            for (String stock : stocks) {
+                remaining += stock == null ? 0 : Math.max(0, Long.parseLong(stock));
+            }
+        }
+        return remaining;
+    }
+
+    private List<String> orderStreams() {
+        List<String> streams = new ArrayList<>();
+        streams.add(SECKILL_ORDER_STREAM_KEY);
+        Set<String> members = stringRedisTemplate.opsForSet().members(SECKILL_ORDER_STREAMS_KEY);
+        if (members != null) {
+            streams.addAll(members);
+        }
+        return streams;
+    }
+
+    /**
+     * 单个优惠券的令牌桶：本地按时间补充令牌，另外缓存一批从Redis领取的全局令牌
+     */
+    private class Bucket {
+        /** 每秒放行的请求数 = max(最小值, 剩余库存 * 倍数)，桶容量与之相同 */
+        private volatile double rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        /** 从Redis领取、尚未使用的全局令牌 */
+        private int globalPermits;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private void resize(long remainingStock) {
+            SeckillProperties.Admission config = seckillProperties.getAdmission();
+            rate = Math.max(config.getMinRate(), remainingStock * config.getStockFactor());
+        }
+
+        private synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        private synchronized boolean tryAcquireGlobal(Long voucherId) {
+            if (globalPermits > 0) {
+                globalPermits--;
+                return true;
+            }
+            // 全局速率与本地相同，按批领取 EVAL seckill-rate-limit.lua
+            Long granted = stringRedisTemplate.execute(
+                    RATE_LIMIT_SCRIPT,
+                    Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                    String.valueOf(rate),
+                    String.valueOf(rate),
+                    String.valueOf(seckillProperties.getAdmission().getPermitBatch())
+            );
+            if (granted == null || granted == 0) {
+                return false;
+            }
+            globalPermits = granted.intValue() - 1;
+            return true;
+        }
+    }
+
+    // 全局令牌桶的Lua脚本
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("seckill-rate-limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    // 统计消费者组积压的Lua脚本
+    private static final DefaultRedisScript<Long> STREAM_LAG_SCRIPT;
+
+    static {
+        STREAM_LAG_SCRIPT = new DefaultRedisScript<>();
+        STREAM_LAG_SCRIPT.setLocation(new ClassPathResource("stream-lag.lua"));
+        STREAM_LAG_SCRIPT.setResultType(Long.class);
+    }
+}
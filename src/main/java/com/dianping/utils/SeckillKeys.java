@@ -0,0 +1,283 @@
+package com.dianping.utils;
+
+import com.dianping.config.SeckillProperties;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.dianping.utils.RedisConstants.*;
+
+/**
+ * @Description: 秒杀相关的Redis key，库存按分片拆分为多个子key；
+ * 集群模式下每个分片使用自己的hash tag，例如 seckill:stock:{v123:1}、stream.orders:{v123:1}，
+ * 同一分片的key（秒杀脚本的key）落在同一个slot，不同分片分散到不同slot；分片间借库存因此跨slot，分两步完成
+ * @Author: zhao
+ * Created: 2025/5/8 - 20:40
+ */
+@Component
+public class SeckillKeys {
+
+    /** 分块位图模式下，用户id低16位为块内编号，其余高位为块号 */
+    private static final int BUYER_CHUNK_BITS = 16;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties seckillProperties;
+
+    /**
+     * 优惠券的分片数，未记录时缓存默认的 1 个分片；写入分片记录时广播清除各节点的缓存
+     */
+    private final Map<Long, Integer> shardCountCache = new ConcurrentHashMap<>();
+
+    public SeckillKeys(StringRedisTemplate stringRedisTemplate,
+                       SeckillProperties seckillProperties,
+                       RedisMessageListenerContainer redisMessageListenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillProperties = seckillProperties;
+        // 订阅分片数变更广播，清除本地缓存
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> shardCountCache.remove(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SECKILL_SHARDS_CHANNEL)
+        );
+    }
+
+    /**
+     * 查询优惠券的库存分片数，未记录时按 1 个分片处理（兼容分片前创建的优惠券）
+     * @param voucherId 优惠券 ID
+     * @return int
+     */
+    public int shardCount(Long voucherId) {
+        Integer cached = shardCountCache.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        Object value = stringRedisTemplate.opsForHash().get(SECKILL_SHARDS_KEY, voucherId.toString());
+        int shards = value == null ? 1 : Integer.parseInt(value.toString());
+        shardCountCache.put(voucherId, shards);
+        return shards;
+    }
+
+    /**
+     * 保存优惠券的库存分片数 HSET seckill:shards voucherId n，并广播清除各节点缓存的分片数
+     * @param voucherId 优惠券 ID
+     * @param shards    分片数
+     */
+    public void saveShardCount(Long voucherId, int shards) {
+        stringRedisTemplate.opsForHash().put(SECKILL_SHARDS_KEY, voucherId.toString(), String.valueOf(shards));
+        shardCountCache.put(voucherId, shards);
+        stringRedisTemplate.convertAndSend(SECKILL_SHARDS_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 删除优惠券的库存分片数 HDEL seckill:shards voucherId，并广播清除各节点缓存的分片数
+     * @param voucherId 优惠券 ID
+     */
+    public void removeShardCount(Long voucherId) {
+        stringRedisTemplate.opsForHash().delete(SECKILL_SHARDS_KEY, voucherId.toString());
+        shardCountCache.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SHARDS_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 用户所属的分片，同一用户总是落在同一分片，一人一单只需在该分片判断
+     * @param userId 用户 ID
+     * @param shards 分片数
+     * @return int
+     */
+    public int homeShard(Long userId, int shards) {
+        return Math.floorMod(Long.hashCode(userId), shards);
+    }
+
+    /**
+     * 库存分片key，单机单分片时与原来的 seckill:stock:{voucherId} 一致
+     */
+    public String stockKey(Long voucherId, int shard, int shards) {
+        return SECKILL_STOCK_KEY + suffix(voucherId, shard, shards);
+    }
+
+    /**
+     * 下单用户分片key，单机单分片时与原来的 seckill:order:{voucherId} 一致
+     */
+    public String orderKey(Long voucherId, int shard, int shards) {
+        return SECKILL_ORDER_KEY + suffix(voucherId, shard, shards);
+    }
+
+    /**
+     * 秒杀脚本使用的下单用户key：[用户集合或块的整数集合, 块的位图, 块登记集合]
+     * set模式三个key相同，均为 seckill:order:{voucherId}；
+     * bitmap模式为 seckill:order:{voucherId}:{块号}、seckill:order:{voucherId}:{块号}:bits、seckill:order:{voucherId}:chunks
+     * @param voucherId 优惠券 ID
+     * @param shard     分片
+     * @param shards    分片数
+     * @param userId    用户 ID
+     * @return {@link List }<{@link String }>
+     */
+    public List<String> buyerKeys(Long voucherId, int shard, int shards, Long userId) {
+        String orderKey = orderKey(voucherId, shard, shards);
+        if (!seckillProperties.isBuyerBitmapEnabled()) {
+            return List.of(orderKey, orderKey, orderKey);
+        }
+        String chunkKey = orderKey + ":" + (userId >>> BUYER_CHUNK_BITS);
+        return List.of(chunkKey, bitmapKey(chunkKey), orderKey + ":chunks");
+    }
+
+    /**
+     * 秒杀脚本中用户的成员值：set模式为用户id，bitmap模式为块内编号
+     * @param userId 用户 ID
+     * @return {@link String }
+     */
+    public String buyerMember(Long userId) {
+        if (!seckillProperties.isBuyerBitmapEnabled()) {
+            return userId.toString();
+        }
+        return String.valueOf(userId & ((1L << BUYER_CHUNK_BITS) - 1));
+    }
+
+    /**
+     * 优惠券全部的下单用户key，包括bitmap模式下登记的所有块，用于清理
+     * @param voucherId 优惠券 ID
+     * @return {@link List }<{@link String }>
+     */
+    public List<String> allBuyerKeys(Long voucherId) {
+        List<String> keys = new ArrayList<>();
+        for (String orderKey : orderKeys(voucherId)) {
+            keys.add(orderKey);
+            String chunksKey = chunksKey(orderKey);
+            Set<String> chunks = stringRedisTemplate.opsForSet().members(chunksKey);
+            if (chunks == null || chunks.isEmpty()) {
+                continue;
+            }
+            for (String chunkKey : chunks) {
+                keys.add(chunkKey);
+                keys.add(bitmapKey(chunkKey));
+            }
+            keys.add(chunksKey);
+        }
+        return keys;
+    }
+
+    /**
+     * bitmap模式下块的位图key seckill:order:{voucherId}:{块号}:bits
+     */
+    public String bitmapKey(String chunkKey) {
+        return chunkKey + ":bits";
+    }
+
+    /**
+     * bitmap模式下登记全部块的集合key seckill:order:{voucherId}:chunks
+     */
+    public String chunksKey(String orderKey) {
+        return orderKey + ":chunks";
+    }
+
+    /**
+     * bitmap模式下由块key和块内编号还原用户id
+     * @param chunkKey 块key seckill:order:{voucherId}:{块号}
+     * @param index    块内编号
+     * @return long
+     */
+    public long chunkUserId(String chunkKey, long index) {
+        long chunk = Long.parseLong(chunkKey.substring(chunkKey.lastIndexOf(':') + 1));
+        return chunk << BUYER_CHUNK_BITS | index;
+    }
+
+    /**
+     * 秒杀券信息（开始、结束时间和库存）key，单机模式各分片共用 seckill:voucher:{voucherId}；
+     * 集群模式每个分片一份，与该分片的库存key同slot
+     */
+    public String voucherKey(Long voucherId, int shard, int shards) {
+        if (!seckillProperties.isClusterEnabled()) {
+            return SECKILL_VOUCHER_KEY + voucherId;
+        }
+        return SECKILL_VOUCHER_KEY + suffix(voucherId, shard, shards);
+    }
+
+    /**
+     * 订单stream，单机模式共用 stream.orders；集群模式每个优惠券（分片）一个，与该分片的库存key同slot
+     */
+    public String streamKey(Long voucherId, int shard, int shards) {
+        if (!seckillProperties.isClusterEnabled()) {
+            return SECKILL_ORDER_STREAM_KEY;
+        }
+        return SECKILL_ORDER_STREAM_KEY + ":" + suffix(voucherId, shard, shards);
+    }
+
+    /**
+     * 优惠券全部分片的订单stream
+     * @param voucherId 优惠券 ID
+     * @return {@link List }<{@link String }>
+     */
+    public List<String> streamKeys(Long voucherId) {
+        int shards = shardCount(voucherId);
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            String key = streamKey(voucherId, i, shards);
+            if (!keys.contains(key)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 优惠券全部分片的秒杀券信息key
+     * @param voucherId 优惠券 ID
+     * @return {@link List }<{@link String }>
+     */
+    public List<String> voucherKeys(Long voucherId) {
+        int shards = shardCount(voucherId);
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            String key = voucherKey(voucherId, i, shards);
+            if (!keys.contains(key)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 优惠券全部分片的下单用户key
+     * @param voucherId 优惠券 ID
+     * @return {@link List }<{@link String }>
+     */
+    public List<String> orderKeys(Long voucherId) {
+        int shards = shardCount(voucherId);
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(orderKey(voucherId, i, shards));
+        }
+        return keys;
+    }
+
+    /**
+     * key后缀：集群模式为每个分片的hash tag {v123} / {v123:2}，单机模式为 123 / 123:2
+     */
+    private String suffix(Long voucherId, int shard, int shards) {
+        if (seckillProperties.isClusterEnabled()) {
+            return shards == 1 ? "{v" + voucherId + "}" : "{v" + voucherId + ":" + shard + "}";
+        }
+        return shards == 1 ? voucherId.toString() : voucherId + ":" + shard;
+    }
+
+    /**
+     * 优惠券全部库存分片key
+     * @param voucherId 优惠券 ID
+     * @return {@link List }<{@link String }>
+     */
+    public List<String> stockKeys(Long voucherId) {
+        int shards = shardCount(voucherId);
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(stockKey(voucherId, i, shards));
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,154 @@
+package com.dianping.utils;
+
+import com.dianping.config.SeckillProperties;
+import com.dianping.dto.OrderStatusDTO;
+import com.dianping.entity.VoucherOrder;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.dianping.utils.RedisConstants.SECKILL_STATUS_KEY;
+
+/**
+ * @Description: 秒杀订单处理状态，供客户端轮询，不访问数据库
+ * 订单id的高32位是下单时间，按下单时间每10分钟一个hash桶 seckill:status:{bucket}，field为订单id，整桶过期；
+ * 值 0:用户id 表示排队中，1:用户id 表示已落库，2:用户id:原因 表示下单失败；
+ * 没有记录或不属于当前用户的订单一律视为未知，不能用伪造的订单id探测他人订单
+ * @Author: zhao
+ * Created: 2025/5/11 - 10:30
+ */
+@Component
+public class SeckillOrderStatus {
+
+    /** 每个hash桶覆盖的时间(s) */
+    private static final long BUCKET_SECONDS = 600;
+    /** 订单id中序列号的位数 */
+    private static final int COUNT_BITS = 32;
+
+    private static final String QUEUED = "0";
+    private static final String PERSISTED = "1";
+    private static final String FAILED = "2";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties seckillProperties;
+
+    public SeckillOrderStatus(StringRedisTemplate stringRedisTemplate, SeckillProperties seckillProperties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillProperties = seckillProperties;
+    }
+
+    /**
+     * 记录订单排队中，下单脚本成功后调用；订单已落库或失败时不覆盖
+     * @param orderIds 订单 ID
+     * @param userId   下单用户 ID
+     */
+    public void queued(Collection<Long> orderIds, Long userId) {
+        Map<String, List<String>> buckets = new HashMap<>();
+        for (Long orderId : orderIds) {
+            List<String> args = buckets.computeIfAbsent(key(orderId), k -> new ArrayList<>());
+            args.add(orderId.toString());
+            args.add(QUEUED + ":" + userId);
+        }
+        buckets.forEach((key, args) -> record(key, "", args));
+    }
+
+    /**
+     * 记录订单已落库，同一批订单一般落在同一个桶
+     * @param voucherOrders 已落库的订单
+     */
+    public void persisted(Collection<VoucherOrder> voucherOrders) {
+        Map<String, Map<String, String>> buckets = new HashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            buckets.computeIfAbsent(key(voucherOrder.getId()), k -> new HashMap<>())
+                   .put(voucherOrder.getId().toString(), PERSISTED + ":" + voucherOrder.getUserId());
+        }
+        buckets.forEach((key, values) -> {
+            stringRedisTemplate.opsForHash().putAll(key, values);
+            expire(key);
+        });
+    }
+
+    /**
+     * 记录订单下单失败，只覆盖排队中的记录，已落库或已失败时不覆盖
+     * @param orderId 订单 ID
+     * @param userId  下单用户 ID
+     * @param reason  失败原因
+     * @return boolean 是否首次记录，消息重复投递时为false
+     */
+    public boolean failed(Long orderId, Long userId, String reason) {
+        List<String> args = new ArrayList<>(2);
+        args.add(orderId.toString());
+        args.add(FAILED + ":" + userId + ":" + reason);
+        return record(key(orderId), QUEUED + ":", args) > 0;
+    }
+
+    /**
+     * 查询订单处理状态，只返回当前用户自己的订单
+     * @param orderId 订单 ID
+     * @param userId  当前用户 ID
+     * @return {@link OrderStatusDTO }
+     */
+    public OrderStatusDTO query(Long orderId, Long userId) {
+        // 1.HGET seckill:status:{bucket} orderId
+        Object value = stringRedisTemplate.opsForHash().get(key(orderId), orderId.toString());
+        if (value == null) {
+            // 从未记录过，或状态已过期
+            return new OrderStatusDTO(orderId, OrderStatusDTO.UNKNOWN, null);
+        }
+        // 2.状态:用户id[:原因]，不是当前用户的订单按未知处理
+        String[] parts = value.toString().split(":", 3);
+        if (parts.length < 2 || !parts[1].equals(userId.toString())) {
+            return new OrderStatusDTO(orderId, OrderStatusDTO.UNKNOWN, null);
+        }
+        switch (parts[0]) {
+            case QUEUED:
+                return new OrderStatusDTO(orderId, OrderStatusDTO.QUEUED, null);
+            case PERSISTED:
+                return new OrderStatusDTO(orderId, OrderStatusDTO.PERSISTED, null);
+            case FAILED:
+                return new OrderStatusDTO(orderId, OrderStatusDTO.FAILED, parts.length > 2 ? parts[2] : null);
+            default:
+                return new OrderStatusDTO(orderId, OrderStatusDTO.UNKNOWN, null);
+        }
+    }
+
+    private long record(String key, String overwritable, List<String> values) {
+        List<String> args = new ArrayList<>(values.size() + 2);
+        args.add(String.valueOf(ttl()));
+        args.add(overwritable);
+        args.addAll(values);
+        Long recorded = stringRedisTemplate.execute(STATUS_SCRIPT, Collections.singletonList(key), args.toArray());
+        return recorded == null ? 0 : recorded;
+    }
+
+    private String key(Long orderId) {
+        return SECKILL_STATUS_KEY + (orderId >>> COUNT_BITS) / BUCKET_SECONDS;
+    }
+
+    private void expire(String key) {
+        stringRedisTemplate.expire(key, ttl(), TimeUnit.SECONDS);
+    }
+
+    private long ttl() {
+        // 桶内最晚的订单也要保留 ttl
+        return seckillProperties.getOrderStatusTtl().getSeconds() + BUCKET_SECONDS;
+    }
+
+    // 记录订单状态，不覆盖已有的终态
+    private static final DefaultRedisScript<Long> STATUS_SCRIPT;
+
+    static {
+        STATUS_SCRIPT = new DefaultRedisScript<>();
+        STATUS_SCRIPT.setLocation(new ClassPathResource("seckill-status.lua"));
+        STATUS_SCRIPT.setResultType(Long.class);
+    }
+}
@@ -0,0 +1,533 @@
+package com.dianping.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.dianping.config.SeckillProperties;
+import com.dianping.dto.ReconcileReport;
+import com.dianping.entity.SeckillVoucher;
+import com.dianping.entity.VoucherOrder;
+import com.dianping.mapper.SeckillVoucherMapper;
+import com.dianping.mapper.VoucherOrderMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static com.dianping.utils.RedisConstants.*;
+
+/**
+ * @Description: 秒杀券Redis与数据库的对账
+ * 1.库存：两侧各自满足 库存 + 下单用户数 = 总库存（下单、取消都在各自一侧原子地同时修改两者），
+ * 比较两侧之和即可发现库存偏差，不受处理中订单的影响；
+ * 2.下单用户：数据库按主键分页读取订单，按批用管道查询Redis；Redis用 SSCAN 按批扫描下单用户，按批查询数据库。
+ * 全程只持有一批数据，每页一个短查询，可以核对千万级订单；与线上流量并发执行，差异先记为疑似，连续两次核对都存在才修复
+ * @Author: zhao
+ * Created: 2025/5/17 - 20:30
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    /** 疑似差异的成员前缀：r 数据库有订单、Redis没有下单记录；d Redis有下单记录、数据库没有订单 */
+    private static final String MISSING_IN_REDIS = "r:";
+    private static final String MISSING_IN_DB = "d:";
+    /** 已取消的订单状态 */
+    private static final int ORDER_STATUS_CANCELLED = 4;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties seckillProperties;
+    private final SeckillKeys seckillKeys;
+    private final VoucherOrderMapper voucherOrderMapper;
+    private final SeckillVoucherMapper seckillVoucherMapper;
+    private final RedissonClient redissonClient;
+    /** 只读事务：库存和订单数在同一快照中读取 */
+    private final TransactionTemplate readOnlyTransaction;
+
+    public SeckillReconciler(StringRedisTemplate stringRedisTemplate,
+                             SeckillProperties seckillProperties,
+                             SeckillKeys seckillKeys,
+                             VoucherOrderMapper voucherOrderMapper,
+                             SeckillVoucherMapper seckillVoucherMapper,
+                             RedissonClient redissonClient,
+                             PlatformTransactionManager transactionManager) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillProperties = seckillProperties;
+        this.seckillKeys = seckillKeys;
+        this.voucherOrderMapper = voucherOrderMapper;
+        this.seckillVoucherMapper = seckillVoucherMapper;
+        this.redissonClient = redissonClient;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.readOnlyTransaction.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+    }
+
+    /**
+     * 定时核对全部已预热的秒杀券，多个节点只有一个执行
+     */
+    @Scheduled(fixedDelayString = "#{@seckillProperties.reconcile.interval.toMillis()}")
+    public void scheduledReconcile() {
+        SeckillProperties.Reconcile config = seckillProperties.getReconcile();
+        if (!config.isEnabled()) {
+            return;
+        }
+        try {
+            reconcile(null, config.isRepair());
+        } catch (Exception e) {
+            log.error("秒杀对账异常", e);
+        }
+    }
+
+    /**
+     * 核对秒杀券的库存和下单用户
+     * @param voucherId 优惠券 ID，为空时核对全部已预热的秒杀券
+     * @param repair    是否修复连续两次核对都存在的差异
+     * @return {@link List }<{@link ReconcileReport }> 其他节点正在对账时返回null
+     */
+    public List<ReconcileReport> reconcile(Long voucherId, boolean repair) {
+        RLock lock = redissonClient.getLock("lock:seckill:reconcile");
+        if (!lock.tryLock()) {
+            return null;
+        }
+        try {
+            // 1.对账范围：已预热、尚未清理的秒杀券 ZRANGE seckill:preheated 0 -1
+            Collection<String> ids = voucherId != null
+                    ? Collections.singletonList(voucherId.toString())
+                    : stringRedisTemplate.opsForZSet().range(SECKILL_PREHEATED_KEY, 0, -1);
+            List<ReconcileReport> reports = new ArrayList<>();
+            if (ids == null) {
+                return reports;
+            }
+            for (String id : ids) {
+                ReconcileReport report = reconcileVoucher(Long.valueOf(id), repair);
+                if (report != null) {
+                    reports.add(report);
+                }
+            }
+            return reports;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReconcileReport reconcileVoucher(Long voucherId, boolean repair) {
+        int shards = seckillKeys.shardCount(voucherId);
+        ReconcileReport report = new ReconcileReport();
+        report.setVoucherId(voucherId);
+        // 1.Redis各分片的库存和下单用户数，每个分片一次原子读取
+        boolean preheated = false;
+        String mode = seckillProperties.isBuyerBitmapEnabled() ? "bitmap" : "set";
+        for (int shard = 0; shard < shards; shard++) {
+            String orderKey = seckillKeys.orderKey(voucherId, shard, shards);
+            List<?> counts = stringRedisTemplate.execute(
+                    RECONCILE_COUNT_SCRIPT,
+                    Arrays.asList(
+                            seckillKeys.stockKey(voucherId, shard, shards),
+                            seckillProperties.isBuyerBitmapEnabled() ? seckillKeys.chunksKey(orderKey) : orderKey
+                    ),
+                    mode
+            );
+            preheated |= "1".equals(counts.get(0).toString());
+            report.setRedisStock(report.getRedisStock() + Long.parseLong(counts.get(1).toString()));
+            report.setRedisBuyers(report.getRedisBuyers() + Long.parseLong(counts.get(2).toString()));
+        }
+        if (!preheated) {
+            // 未预热或已清理，Redis中没有可核对的数据
+            return null;
+        }
+        // 2.数据库的库存和未取消订单数，同一快照
+        readOnlyTransaction.executeWithoutResult(status -> {
+            SeckillVoucher voucher = seckillVoucherMapper.selectById(voucherId);
+            report.setDbStock(voucher == null ? 0 : voucher.getStock());
+            report.setDbOrders(voucherOrderMapper.selectCount(new QueryWrapper<VoucherOrder>()
+                    .eq("voucher_id", voucherId)
+                    .ne("status", ORDER_STATUS_CANCELLED)));
+        });
+        report.setDrift(report.getRedisStock() + report.getRedisBuyers() - report.getDbStock() - report.getDbOrders());
+
+        // 3.逐个核对下单用户，本次发现的差异写入新的疑似集合，与上次的疑似集合比较
+        String suspectKey = SECKILL_RECONCILE_KEY + "{" + voucherId + "}";
+        String nextSuspectKey = suspectKey + ":next";
+        stringRedisTemplate.delete(nextSuspectKey);
+        Reconciliation reconciliation = new Reconciliation(voucherId, shards, report, repair, suspectKey, nextSuspectKey);
+        reconciliation.findMissingInRedis();
+        reconciliation.findMissingInDb();
+        // 本次的疑似集合替换上次的 RENAME seckill:reconcile:{voucherId}:next seckill:reconcile:{voucherId}
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(nextSuspectKey))) {
+            stringRedisTemplate.rename(nextSuspectKey, suspectKey);
+            stringRedisTemplate.expire(suspectKey, seckillProperties.getReconcile().getInterval().multipliedBy(3));
+        } else {
+            stringRedisTemplate.delete(suspectKey);
+        }
+
+        // 4.库存偏差，连续两次相同才修复：以数据库为准调整 0 号分片的库存
+        repairDrift(report, repair);
+        if (report.getDrift() != 0 || report.getMissingInRedis() > 0 || report.getMissingInDb() > 0) {
+            log.warn("秒杀对账存在差异: {}", report);
+        } else {
+            log.info("秒杀对账一致, voucherId: {}", voucherId);
+        }
+        return report;
+    }
+
+    private void repairDrift(ReconcileReport report, boolean repair) {
+        String field = report.getVoucherId().toString();
+        long drift = report.getDrift();
+        Object last = stringRedisTemplate.opsForHash().get(SECKILL_RECONCILE_DRIFT_KEY, field);
+        if (drift == 0) {
+            stringRedisTemplate.opsForHash().delete(SECKILL_RECONCILE_DRIFT_KEY, field);
+            return;
+        }
+        // 租约模式下各节点租走的库存不在Redis中，偏差无法区分，只报告
+        boolean confirmed = last != null && Long.parseLong(last.toString()) == drift;
+        if (repair && confirmed && !seckillProperties.isStockLeaseEnabled()) {
+            adjustStock(report.getVoucherId(), -drift);
+            stringRedisTemplate.opsForHash().delete(SECKILL_RECONCILE_DRIFT_KEY, field);
+            report.setRepaired(report.getRepaired() + 1);
+            log.warn("修复Redis库存偏差, voucherId: {}, drift: {}", report.getVoucherId(), drift);
+            return;
+        }
+        stringRedisTemplate.opsForHash().put(SECKILL_RECONCILE_DRIFT_KEY, field, String.valueOf(drift));
+    }
+
+    /**
+     * 以数据库为准调整Redis库存：补充的库存加到 0 号分片；多出的库存依次从有库存的分片扣减，不足时由 0 号分片承担
+     * 秒杀数据已清理时不写入
+     * @param voucherId 优惠券 ID
+     * @param delta     调整量
+     */
+    private void adjustStock(Long voucherId, long delta) {
+        int shards = seckillKeys.shardCount(voucherId);
+        for (int shard = shards - 1; shard > 0 && delta < 0; shard--) {
+            String stock = stringRedisTemplate.opsForValue().get(seckillKeys.stockKey(voucherId, shard, shards));
+            long taken = stock == null ? 0 : Math.min(-delta, Math.max(0, Long.parseLong(stock)));
+            if (taken == 0) {
+                continue;
+            }
+            stringRedisTemplate.execute(
+                    DRIFT_REPAIR_SCRIPT,
+                    Collections.singletonList(seckillKeys.stockKey(voucherId, shard, shards)),
+                    String.valueOf(-taken)
+            );
+            delta += taken;
+        }
+        if (delta != 0) {
+            // INCRBY seckill:stock:{voucherId}:0 delta
+            stringRedisTemplate.execute(
+                    DRIFT_REPAIR_SCRIPT,
+                    Collections.singletonList(seckillKeys.stockKey(voucherId, 0, shards)),
+                    String.valueOf(delta)
+            );
+        }
+    }
+
+    /**
+     * 单个秒杀券的下单用户核对
+     */
+    private class Reconciliation {
+        private final Long voucherId;
+        private final int shards;
+        private final ReconcileReport report;
+        private final boolean repair;
+        private final String suspectKey;
+        private final String nextSuspectKey;
+        private final int batchSize = Math.max(1, seckillProperties.getReconcile().getBatchSize());
+
+        private Reconciliation(Long voucherId, int shards, ReconcileReport report, boolean repair,
+                               String suspectKey, String nextSuspectKey) {
+            this.voucherId = voucherId;
+            this.shards = shards;
+            this.report = report;
+            this.repair = repair;
+            this.suspectKey = suspectKey;
+            this.nextSuspectKey = nextSuspectKey;
+        }
+
+        /**
+         * 数据库 -> Redis：按主键分页读取订单的下单用户，每页一个短查询，不长时间持有事务和连接；按批用管道查询Redis下单记录
+         * SELECT id, user_id FROM tb_voucher_order WHERE voucher_id = ? AND status <> 4 AND id > ? ORDER BY id LIMIT n
+         */
+        private void findMissingInRedis() {
+            long lastId = 0;
+            while (true) {
+                List<VoucherOrder> orders = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                        .select("id", "user_id")
+                        .eq("voucher_id", voucherId)
+                        .ne("status", ORDER_STATUS_CANCELLED)
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + batchSize));
+                if (orders.isEmpty()) {
+                    return;
+                }
+                List<Long> batch = new ArrayList<>(orders.size());
+                for (VoucherOrder order : orders) {
+                    batch.add(order.getUserId());
+                }
+                checkRedisBuyers(batch);
+                if (orders.size() < batchSize) {
+                    return;
+                }
+                lastId = orders.get(orders.size() - 1).getId();
+            }
+        }
+
+        /**
+         * 管道查询一批用户的下单记录：set模式 SISMEMBER；bitmap模式 SISMEMBER 块的整数集合 + GETBIT 块的位图
+         */
+        private void checkRedisBuyers(List<Long> userIds) {
+            if (userIds.isEmpty()) {
+                return;
+            }
+            boolean bitmap = seckillProperties.isBuyerBitmapEnabled();
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long userId : userIds) {
+                    List<String> buyerKeys = seckillKeys.buyerKeys(voucherId, seckillKeys.homeShard(userId, shards), shards, userId);
+                    byte[] member = bytes(seckillKeys.buyerMember(userId));
+                    connection.setCommands().sIsMember(bytes(buyerKeys.get(0)), member);
+                    if (bitmap) {
+                        connection.stringCommands().getBit(bytes(buyerKeys.get(1)), Long.parseLong(seckillKeys.buyerMember(userId)));
+                    }
+                }
+                return null;
+            });
+            int step = bitmap ? 2 : 1;
+            List<Long> missing = new ArrayList<>();
+            for (int i = 0; i < userIds.size(); i++) {
+                boolean found = Boolean.TRUE.equals(results.get(i * step))
+                        || bitmap && Boolean.TRUE.equals(results.get(i * step + 1));
+                if (!found) {
+                    missing.add(userIds.get(i));
+                }
+            }
+            report.setMissingInRedis(report.getMissingInRedis() + missing.size());
+            for (Long userId : suspect(MISSING_IN_REDIS, missing)) {
+                if (repair && restoreBuyer(userId)) {
+                    report.setRepaired(report.getRepaired() + 1);
+                }
+            }
+        }
+
+        /**
+         * Redis -> 数据库：按分片 SSCAN 下单用户，按批查询数据库订单
+         */
+        private void findMissingInDb() {
+            List<Long> batch = new ArrayList<>(batchSize);
+            for (int shard = 0; shard < shards; shard++) {
+                String orderKey = seckillKeys.orderKey(voucherId, shard, shards);
+                if (!seckillProperties.isBuyerBitmapEnabled()) {
+                    scan(orderKey, member -> add(batch, Long.parseLong(member)));
+                    continue;
+                }
+                // bitmap模式：遍历登记的块，已转为位图的块读取整个位图（每块最多8KB），其余 SSCAN 块的整数集合
+                scan(seckillKeys.chunksKey(orderKey), chunkKey -> {
+                    byte[] bits = stringRedisTemplate.execute(
+                            (RedisCallback<byte[]>) connection -> connection.stringCommands().get(bytes(seckillKeys.bitmapKey(chunkKey))));
+                    if (bits == null) {
+                        scan(chunkKey, index -> add(batch, seckillKeys.chunkUserId(chunkKey, Long.parseLong(index))));
+                        return;
+                    }
+                    for (int i = 0; i < bits.length * 8; i++) {
+                        // 位图按高位在前存储
+                        if ((bits[i >>> 3] & (0x80 >>> (i & 7))) != 0) {
+                            add(batch, seckillKeys.chunkUserId(chunkKey, i));
+                        }
+                    }
+                });
+            }
+            checkDbBuyers(batch);
+        }
+
+        private void add(List<Long> batch, long userId) {
+            batch.add(userId);
+            if (batch.size() == batchSize) {
+                checkDbBuyers(batch);
+                batch.clear();
+            }
+        }
+
+        /**
+         * 查询一批用户的订单 SELECT user_id FROM tb_voucher_order WHERE voucher_id = ? AND status <> 4 AND user_id IN (...)
+         */
+        private void checkDbBuyers(List<Long> userIds) {
+            if (userIds.isEmpty()) {
+                return;
+            }
+            // 先于查询数据库判断订单消息是否已全部处理：之前写入的订单已落库，查询不到的才是真正丢失的订单
+            boolean releasable = repair && ordersSettled();
+            Set<Long> found = new HashSet<>();
+            for (Object userId : voucherOrderMapper.selectObjs(new QueryWrapper<VoucherOrder>()
+                    .select("user_id")
+                    .eq("voucher_id", voucherId)
+                    .ne("status", ORDER_STATUS_CANCELLED)
+                    .in("user_id", userIds))) {
+                found.add(Long.valueOf(userId.toString()));
+            }
+            List<Long> missing = new ArrayList<>();
+            for (Long userId : userIds) {
+                if (!found.contains(userId)) {
+                    missing.add(userId);
+                }
+            }
+            report.setMissingInDb(report.getMissingInDb() + missing.size());
+            List<Long> confirmed = suspect(MISSING_IN_DB, missing);
+            if (confirmed.isEmpty()) {
+                return;
+            }
+            for (Long userId : confirmed) {
+                if (releasable && releaseBuyer(userId)) {
+                    report.setRepaired(report.getRepaired() + 1);
+                }
+            }
+        }
+
+        /**
+         * 订单消息是否已全部处理：死信队列为空，且优惠券的订单stream没有未投递、已投递未确认的消息
+         * 消费者长时间停止时订单仍在stream或pending列表中，之后还会落库，此时不能释放下单记录
+         */
+        private boolean ordersSettled() {
+            // 1.死信队列中的订单重放后仍会落库 XLEN stream.orders.dlq
+            Long deadLetters = stringRedisTemplate.opsForStream().size(SECKILL_ORDER_DLQ_KEY);
+            if (deadLetters != null && deadLetters > 0) {
+                return false;
+            }
+            // 2.订单stream已消费完
+            for (String stream : seckillKeys.streamKeys(voucherId)) {
+                Long drained = stringRedisTemplate.execute(STREAM_DRAINED_SCRIPT, Collections.singletonList(stream), "0");
+                if (drained == null || drained == 0) {
+                    log.info("订单消息尚未处理完，暂不释放下单记录, voucherId: {}, stream: {}", voucherId, stream);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 记录一批疑似差异，返回上次核对时也存在的用户（排除处理中、取消中的订单）
+         * 一次管道：SADD 本次的疑似集合，SISMEMBER 上次的疑似集合
+         */
+        private List<Long> suspect(String type, List<Long> userIds) {
+            if (userIds.isEmpty()) {
+                return Collections.emptyList();
+            }
+            byte[][] members = new byte[userIds.size()][];
+            for (int i = 0; i < userIds.size(); i++) {
+                members[i] = bytes(type + userIds.get(i));
+            }
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.setCommands().sAdd(bytes(nextSuspectKey), members);
+                for (byte[] member : members) {
+                    connection.setCommands().sIsMember(bytes(suspectKey), member);
+                }
+                return null;
+            });
+            List<Long> confirmed = new ArrayList<>();
+            for (int i = 0; i < userIds.size(); i++) {
+                if (Boolean.TRUE.equals(results.get(i + 1))) {
+                    confirmed.add(userIds.get(i));
+                    log.warn("秒杀对账确认差异, voucherId: {}, userId: {}, {}", voucherId, userIds.get(i),
+                            MISSING_IN_REDIS.equals(type) ? "Redis缺少下单记录" : "数据库缺少订单");
+                }
+            }
+            return confirmed;
+        }
+
+        /**
+         * 补回下单记录并扣减一个库存，防止用户重复下单
+         */
+        private boolean restoreBuyer(Long userId) {
+            int home = seckillKeys.homeShard(userId, shards);
+            List<String> buyerKeys = seckillKeys.buyerKeys(voucherId, home, shards, userId);
+            Long restored = stringRedisTemplate.execute(
+                    RESTORE_BUYER_SCRIPT,
+                    Arrays.asList(seckillKeys.stockKey(voucherId, home, shards), buyerKeys.get(0), buyerKeys.get(1), buyerKeys.get(2)),
+                    seckillKeys.buyerMember(userId)
+            );
+            return restored != null && restored == 1;
+        }
+
+        /**
+         * 订单已丢失，释放下单记录并退回一个库存，与取消订单相同
+         */
+        private boolean releaseBuyer(Long userId) {
+            int home = seckillKeys.homeShard(userId, shards);
+            List<String> buyerKeys = seckillKeys.buyerKeys(voucherId, home, shards, userId);
+            Long released = stringRedisTemplate.execute(
+                    RELEASE_BUYER_SCRIPT,
+                    Arrays.asList(seckillKeys.stockKey(voucherId, home, shards), buyerKeys.get(0), buyerKeys.get(1)),
+                    seckillKeys.buyerMember(userId)
+            );
+            return released != null && released == 1;
+        }
+
+        /**
+         * SSCAN 遍历集合，每次取 batchSize 个
+         */
+        private void scan(String key, Consumer<String> action) {
+            ScanOptions options = ScanOptions.scanOptions().count(batchSize).build();
+            try (org.springframework.data.redis.core.Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(key, options)) {
+                cursor.forEachRemaining(action);
+            }
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 读取分片库存和下单用户数的Lua脚本
+    private static final DefaultRedisScript<List> RECONCILE_COUNT_SCRIPT;
+
+    static {
+        RECONCILE_COUNT_SCRIPT = new DefaultRedisScript<>();
+        RECONCILE_COUNT_SCRIPT.setLocation(new ClassPathResource("seckill-reconcile-count.lua"));
+        RECONCILE_COUNT_SCRIPT.setResultType(List.class);
+    }
+
+    // 补回下单记录的Lua脚本
+    private static final DefaultRedisScript<Long> RESTORE_BUYER_SCRIPT;
+
+    static {
+        RESTORE_BUYER_SCRIPT = new DefaultRedisScript<>();
+        RESTORE_BUYER_SCRIPT.setLocation(new ClassPathResource("seckill-reconcile-buyer.lua"));
+        RESTORE_BUYER_SCRIPT.setResultType(Long.class);
+    }
+
+    // 释放下单记录的Lua脚本，与取消订单相同
+    private static final DefaultRedisScript<Long> RELEASE_BUYER_SCRIPT;
+
+    static {
+        RELEASE_BUYER_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_BUYER_SCRIPT.setLocation(new ClassPathResource("seckill-cancel.lua"));
+        RELEASE_BUYER_SCRIPT.setResultType(Long.class);
+    }
+
+    // 判断订单stream是否已消费完的Lua脚本
+    private static final DefaultRedisScript<Long> STREAM_DRAINED_SCRIPT;
+
+    static {
+        STREAM_DRAINED_SCRIPT = new DefaultRedisScript<>();
+        STREAM_DRAINED_SCRIPT.setLocation(new ClassPathResource("stream-drained.lua"));
+        STREAM_DRAINED_SCRIPT.setResultType(Long.class);
+    }
+
+    // 调整库存的Lua脚本，与归还租约相同：库存key存在时 INCRBY
+    private static final DefaultRedisScript<Long> DRIFT_REPAIR_SCRIPT;
+
+    static {
+        DRIFT_REPAIR_SCRIPT = new DefaultRedisScript<>();
+        DRIFT_REPAIR_SCRIPT.setLocation(new ClassPathResource("seckill-lease-return.lua"));
+        DRIFT_REPAIR_SCRIPT.setResultType(Long.class);
+    }
+}
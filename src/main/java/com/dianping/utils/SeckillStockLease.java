@@ -0,0 +1,284 @@
+package com.dianping.utils;
+
+import com.dianping.config.SeckillProperties;
+import com.dianping.service.IVoucherOrderService;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Description: 节点本地的秒杀库存租约
+ * 从Redis库存分片中原子地租一段库存到本地计数器，下单时CAS扣减，售罄判断不离开JVM；剩余不多时异步续租，
+ * 秒杀结束或节点关闭时把未售出的库存归还Redis。库存只会在Redis和各节点的租约之间转移，不会超卖
+ * @Author: zhao
+ * Created: 2025/5/13 - 20:30
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties seckillProperties;
+    private final SeckillKeys seckillKeys;
+    /** 下单服务依赖本类，延迟注入避免循环依赖 */
+    private final IVoucherOrderService voucherOrderService;
+
+    /** 各优惠券在本节点的租约 */
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    /** 异步续租的线程 */
+    private final ExecutorService leaseLoader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "stock-lease-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SeckillStockLease(StringRedisTemplate stringRedisTemplate,
+                             SeckillProperties seckillProperties,
+                             SeckillKeys seckillKeys,
+                             @Lazy IVoucherOrderService voucherOrderService) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillProperties = seckillProperties;
+        this.seckillKeys = seckillKeys;
+        this.voucherOrderService = voucherOrderService;
+    }
+
+    /**
+     * 从本地租约扣减一个库存，不访问Redis
+     * @param voucherId 优惠券 ID
+     * @return {@link Lease } 扣减库存的租约，退回时传入；本地租约没有剩余时返回null
+     */
+    public Lease tryAcquire(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        return lease != null && take(voucherId, lease) ? lease : null;
+    }
+
+    /**
+     * 扣减一个库存，本地租约用完时同步从Redis续租
+     * @param voucherId 优惠券 ID
+     * @return {@link Lease } 扣减库存的租约，退回时传入；Redis中也没有库存时返回null
+     */
+    public Lease acquire(Long voucherId) {
+        Lease acquired = tryAcquire(voucherId);
+        if (acquired != null) {
+            return acquired;
+        }
+        Lease lease = leases.computeIfAbsent(voucherId, k -> new Lease());
+        synchronized (lease) {
+            // 租约已关闭（秒杀结束），不再续租，交给秒杀脚本判断
+            if (lease.closed) {
+                return null;
+            }
+            // 其他线程可能已经续租过了
+            if (take(voucherId, lease)) {
+                return lease;
+            }
+            int leased = leaseFromRedis(voucherId, lease);
+            if (leased == 0) {
+                return null;
+            }
+            // 续租到的库存留一个给本次下单
+            lease.remaining.addAndGet(leased - 1);
+            return lease;
+        }
+    }
+
+    /**
+     * 退回一个库存到扣减它的租约（已扣减但未能下单，如重复下单）
+     * 租约可能已在秒杀结束时关闭并移除，此时剩余库存已归还，退回的库存直接还给Redis
+     * @param voucherId 优惠券 ID
+     * @param lease     扣减库存的租约，{@link #tryAcquire}、{@link #acquire} 的返回值
+     */
+    public void release(Long voucherId, Lease lease) {
+        synchronized (lease) {
+            if (!lease.closed) {
+                lease.remaining.incrementAndGet();
+                return;
+            }
+        }
+        returnStock(voucherId, 1);
+    }
+
+    /**
+     * CAS扣减租约的一个库存，剩余不多时异步续租
+     */
+    private boolean take(Long voucherId, Lease lease) {
+        int remaining;
+        do {
+            remaining = lease.remaining.get();
+            if (remaining <= 0) {
+                return false;
+            }
+        } while (!lease.remaining.compareAndSet(remaining, remaining - 1));
+        // 剩余不多，异步续租
+        if (remaining - 1 < seckillProperties.getStockLeaseSize() * seckillProperties.getStockLeaseRefillRatio()) {
+            refillAsync(voucherId, lease);
+        }
+        return true;
+    }
+
+    /**
+     * 归还已结束秒杀的租约
+     */
+    @Scheduled(fixedDelayString = "#{@seckillProperties.preheatInterval.toMillis()}")
+    public void returnExpiredLeases() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Long, Lease>> iterator = leases.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Lease> entry = iterator.next();
+            Lease lease = entry.getValue();
+            if (lease.endTime > now) {
+                continue;
+            }
+            // 持有租约的锁再移除并关闭，与续租互斥，关闭后不会再有库存租到已移除的租约中
+            synchronized (lease) {
+                iterator.remove();
+                closeLease(entry.getKey(), lease);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        leaseLoader.shutdownNow();
+        // 节点关闭，归还全部未售出的库存
+        leases.forEach((voucherId, lease) -> {
+            synchronized (lease) {
+                closeLease(voucherId, lease);
+            }
+        });
+        leases.clear();
+    }
+
+    private void refillAsync(Long voucherId, Lease lease) {
+        if (!lease.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        leaseLoader.execute(() -> {
+            try {
+                synchronized (lease) {
+                    // 租约已关闭时不再续租，否则租到的库存无人归还
+                    if (!lease.closed) {
+                        lease.remaining.addAndGet(leaseFromRedis(voucherId, lease));
+                    }
+                }
+            } catch (Exception e) {
+                log.warn("续租库存失败, voucherId: {}", voucherId, e);
+            } finally {
+                lease.refilling.set(false);
+            }
+        });
+    }
+
+    /**
+     * 从库存分片租用库存，从随机分片开始依次尝试，避免各节点都从同一分片租
+     * @param voucherId 优惠券 ID
+     * @param lease     租约
+     * @return int 租到的库存数
+     */
+    private int leaseFromRedis(Long voucherId, Lease lease) {
+        int shards = seckillKeys.shardCount(voucherId);
+        int start = ThreadLocalRandom.current().nextInt(shards);
+        for (int i = 0; i < shards; i++) {
+            // 每次租该分片剩余库存的一半，最多 stockLeaseSize 个
+            Long leased = stringRedisTemplate.execute(
+                    STOCK_LEASE_SCRIPT,
+                    Collections.singletonList(seckillKeys.stockKey(voucherId, (start + i) % shards, shards)),
+                    String.valueOf(seckillProperties.getStockLeaseSize())
+            );
+            if (leased != null && leased > 0) {
+                if (lease.endTime == Long.MAX_VALUE) {
+                    lease.endTime = endTime(voucherId, shards);
+                }
+                return leased.intValue();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 秒杀结束时间 HGET seckill:voucher:{voucherId} end，查不到时按未结束处理，等节点关闭时归还
+     */
+    private long endTime(Long voucherId, int shards) {
+        Object end = stringRedisTemplate.opsForHash().get(seckillKeys.voucherKey(voucherId, 0, shards), "end");
+        return end == null ? Long.MAX_VALUE : Long.parseLong(end.toString());
+    }
+
+    /**
+     * 关闭租约并归还剩余库存，调用方需持有租约的锁
+     */
+    private void closeLease(Long voucherId, Lease lease) {
+        lease.closed = true;
+        returnStock(voucherId, lease.remaining.getAndSet(0));
+    }
+
+    /**
+     * 归还库存到Redis，归还成功后清除售罄标记：租约中的库存已被视为售出，各节点可能已标记售罄
+     */
+    private void returnStock(Long voucherId, int remaining) {
+        if (remaining <= 0) {
+            return;
+        }
+        int shards = seckillKeys.shardCount(voucherId);
+        try {
+            Long returned = stringRedisTemplate.execute(
+                    LEASE_RETURN_SCRIPT,
+                    Collections.singletonList(seckillKeys.stockKey(voucherId, 0, shards)),
+                    String.valueOf(remaining)
+            );
+            if (returned == null || returned == 0) {
+                return;
+            }
+            voucherOrderService.clearSoldOut(voucherId);
+            log.info("归还库存租约, voucherId: {}, stock: {}", voucherId, remaining);
+        } catch (Exception e) {
+            log.error("归还库存租约失败, voucherId: {}, stock: {}", voucherId, remaining, e);
+        }
+    }
+
+    /**
+     * 单个优惠券的本地租约
+     */
+    public static class Lease {
+        /** 本地剩余库存 */
+        private final AtomicInteger remaining = new AtomicInteger();
+        /** 是否正在异步续租 */
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        /** 秒杀结束时间，之后归还剩余库存 */
+        private volatile long endTime = Long.MAX_VALUE;
+        /** 是否已关闭（已归还剩余库存），关闭后不再续租 */
+        private volatile boolean closed;
+    }
+
+    // 租用库存的Lua脚本，与从兄弟分片借库存相同：借出剩余的一半，至多ARGV[1]个
+    private static final DefaultRedisScript<Long> STOCK_LEASE_SCRIPT;
+
+    static {
+        STOCK_LEASE_SCRIPT = new DefaultRedisScript<>();
+        STOCK_LEASE_SCRIPT.setLocation(new ClassPathResource("seckill-borrow.lua"));
+        STOCK_LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    // 归还库存的Lua脚本
+    private static final DefaultRedisScript<Long> LEASE_RETURN_SCRIPT;
+
+    static {
+        LEASE_RETURN_SCRIPT = new DefaultRedisScript<>();
+        LEASE_RETURN_SCRIPT.setLocation(new ClassPathResource("seckill-lease-return.lua"));
+        LEASE_RETURN_SCRIPT.setResultType(Long.class);
+    }
+}
@@ -0,0 +1,67 @@
+package com.dianping.utils;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * @Description: 进程内的请求合并（single flight）：同一个key同时只有一个请求执行加载，
+ * 其他并发请求等待同一个 CompletableFuture，加载完成时被唤醒并共享结果（包括异常），不轮询、不重复加载
+ * @Author: zhao
+ * Created: 2025/5/21 - 20:10
+ */
+public class SingleFlight<V> {
+
+    /** 正在执行的加载，完成后立即移除，之后的请求重新加载 */
+    private final Map<String, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * 执行加载，同一个key的并发请求只执行一次
+     * @param key    key
+     * @param loader 加载，只在发起加载的线程中执行
+     * @return {@link V } 加载结果
+     */
+    public V execute(String key, Supplier<V> loader) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            // 已有请求在加载，等待结果
+            return await(existing);
+        }
+        try {
+            V value = loader.get();
+            flight.complete(value);
+            return value;
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * 正在加载的key的数量
+     */
+    public int inFlight() {
+        return flights.size();
+    }
+
+    private V await(CompletableFuture<V> flight) {
+        try {
+            return flight.join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
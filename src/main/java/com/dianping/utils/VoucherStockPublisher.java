@@ -0,0 +1,318 @@
+package com.dianping.utils;
+
+import com.dianping.config.SeckillProperties;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.dianping.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * @Description: 秒杀券实时库存推送（SSE）
+ * 每个节点只订阅一次库存key的键空间通知 __keyspace@*__:seckill:stock:*，收到通知只标记优惠券有变化，
+ * 定时合并推送给关注该优惠券的全部客户端；SseEmitter 异步响应，空闲的连接不占用Tomcat线程。
+ * 每个客户端待推送的库存只保留各优惠券的最新值，由推送线程池逐个客户端发送：慢客户端积压时旧的库存被覆盖，
+ * 只占用一个推送线程，单次发送超时的客户端被断开，不影响其他客户端。
+ * 需要Redis开启键空间通知：notify-keyspace-events 至少包含 K$（或 KA）
+ * @Author: zhao
+ * Created: 2025/5/16 - 20:20
+ */
+@Slf4j
+@Component
+public class VoucherStockPublisher {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties seckillProperties;
+    private final SeckillKeys seckillKeys;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /** 关注各优惠券库存的客户端 */
+    private final Map<Long, Set<Subscriber>> watchers = new ConcurrentHashMap<>();
+    /** 全部客户端，用于检查发送超时 */
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    /** 库存有变化、等待推送的优惠券 */
+    private final Set<Long> changedVouchers = ConcurrentHashMap.newKeySet();
+    /** 各优惠券上次推送的库存，没有变化不推送 */
+    private final Map<Long, Integer> lastStocks = new ConcurrentHashMap<>();
+    /** 推送SSE的线程池，不占用定时任务线程；同一客户端同时只在一个线程中发送，按顺序收到库存 */
+    private final ExecutorService sseSenders;
+
+    public VoucherStockPublisher(StringRedisTemplate stringRedisTemplate,
+                                 SeckillProperties seckillProperties,
+                                 SeckillKeys seckillKeys,
+                                 RedisMessageListenerContainer redisMessageListenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillProperties = seckillProperties;
+        this.seckillKeys = seckillKeys;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.sseSenders = Executors.newFixedThreadPool(Math.max(1, seckillProperties.getStockStreamSenderThreads()), r -> {
+            Thread thread = new Thread(r, "stock-sse-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    private void init() {
+        // 整个节点共用一个订阅 PSUBSCRIBE __keyspace@*__:seckill:stock:*
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onStockChanged(new String(message.getChannel(), StandardCharsets.UTF_8)),
+                new PatternTopic("__keyspace@*__:" + SECKILL_STOCK_KEY + "*")
+        );
+        checkKeyspaceEvents();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        sseSenders.shutdownNow();
+    }
+
+    /**
+     * 订阅优惠券的实时库存，连接建立后立即推送一次当前库存
+     * @param voucherIds 优惠券 ID
+     * @return {@link SseEmitter }
+     */
+    public SseEmitter subscribe(Collection<Long> voucherIds) {
+        SseEmitter emitter = new SseEmitter(seckillProperties.getStockStreamTimeout().toMillis());
+        Subscriber subscriber = new Subscriber(emitter);
+        subscribers.add(subscriber);
+        for (Long voucherId : voucherIds) {
+            watchers.computeIfAbsent(voucherId, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        }
+        Runnable unsubscribe = () -> unsubscribe(voucherIds, subscriber);
+        emitter.onCompletion(unsubscribe);
+        emitter.onTimeout(unsubscribe);
+        emitter.onError(e -> unsubscribe.run());
+        // 当前库存
+        stocks(voucherIds).forEach((voucherId, stock) -> offer(subscriber, voucherId, stock));
+        return emitter;
+    }
+
+    /**
+     * 合并推送间隔内有变化的库存，每个优惠券只查询、推送一次；查询在定时任务线程，发送交给推送线程
+     */
+    @Scheduled(fixedDelayString = "#{@seckillProperties.stockStreamInterval.toMillis()}")
+    public void publish() {
+        closeStalledSubscribers();
+        if (changedVouchers.isEmpty()) {
+            return;
+        }
+        List<Long> voucherIds = new ArrayList<>(changedVouchers);
+        changedVouchers.removeAll(voucherIds);
+        try {
+            stocks(voucherIds).forEach((voucherId, stock) -> {
+                if (stock.equals(lastStocks.put(voucherId, stock))) {
+                    return;
+                }
+                Set<Subscriber> watching = watchers.get(voucherId);
+                if (watching != null) {
+                    watching.forEach(subscriber -> offer(subscriber, voucherId, stock));
+                }
+            });
+        } catch (Exception e) {
+            log.error("推送库存异常", e);
+        }
+    }
+
+    /**
+     * 键空间通知：频道为 __keyspace@0__:seckill:stock:{voucherId}[:{shard}]，集群模式下为 seckill:stock:{v123[:shard]}
+     */
+    private void onStockChanged(String channel) {
+        String suffix = channel.substring(channel.indexOf(SECKILL_STOCK_KEY) + SECKILL_STOCK_KEY.length());
+        if (suffix.startsWith("{v")) {
+            suffix = suffix.substring(2).replace("}", "");
+        }
+        int end = suffix.indexOf(':');
+        try {
+            Long voucherId = Long.valueOf(end < 0 ? suffix : suffix.substring(0, end));
+            // 只记录有客户端关注的优惠券
+            if (watchers.containsKey(voucherId)) {
+                changedVouchers.add(voucherId);
+            }
+        } catch (NumberFormatException e) {
+            log.debug("忽略无法识别的库存key: {}", channel);
+        }
+    }
+
+    private void unsubscribe(Collection<Long> voucherIds, Subscriber subscriber) {
+        subscriber.closed = true;
+        subscribers.remove(subscriber);
+        for (Long voucherId : voucherIds) {
+            watchers.computeIfPresent(voucherId, (k, watching) -> {
+                watching.remove(subscriber);
+                if (watching.isEmpty()) {
+                    lastStocks.remove(voucherId);
+                    return null;
+                }
+                return watching;
+            });
+        }
+    }
+
+    /**
+     * 加入客户端待推送的库存，覆盖该优惠券还没发出的旧库存；客户端没有在发送时交给推送线程池
+     */
+    private void offer(Subscriber subscriber, Long voucherId, Integer stock) {
+        if (subscriber.closed) {
+            return;
+        }
+        subscriber.pending.put(voucherId, stock);
+        schedule(subscriber);
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (!subscriber.scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            sseSenders.execute(() -> drain(subscriber));
+        } catch (RejectedExecutionException e) {
+            // 节点关闭中
+            subscriber.scheduled.set(false);
+        }
+    }
+
+    /**
+     * 发送客户端待推送的全部库存，发送期间新加入的库存在本次或下一次发送
+     */
+    private void drain(Subscriber subscriber) {
+        try {
+            while (!subscriber.closed && !subscriber.pending.isEmpty()) {
+                for (Long voucherId : subscriber.pending.keySet()) {
+                    Integer stock = subscriber.pending.remove(voucherId);
+                    if (stock != null && !subscriber.closed) {
+                        send(subscriber, voucherId, stock);
+                    }
+                }
+            }
+        } finally {
+            subscriber.scheduled.set(false);
+        }
+        // 释放标记前又加入了库存
+        if (!subscriber.closed && !subscriber.pending.isEmpty()) {
+            schedule(subscriber);
+        }
+    }
+
+    private void send(Subscriber subscriber, Long voucherId, Integer stock) {
+        subscriber.sendingSince = System.currentTimeMillis();
+        try {
+            subscriber.emitter.send(SseEmitter.event().name("stock").data(Map.of("voucherId", voucherId, "stock", stock)));
+        } catch (IOException | IllegalStateException e) {
+            // 客户端已断开
+            close(subscriber, e);
+        } finally {
+            subscriber.sendingSince = 0;
+        }
+    }
+
+    /**
+     * 断开单次发送超过 stockStreamSendTimeout 的客户端：连接关闭后阻塞的发送返回，释放推送线程
+     */
+    private void closeStalledSubscribers() {
+        long deadline = System.currentTimeMillis() - seckillProperties.getStockStreamSendTimeout().toMillis();
+        for (Subscriber subscriber : subscribers) {
+            long sendingSince = subscriber.sendingSince;
+            if (sendingSince > 0 && sendingSince < deadline) {
+                log.warn("推送库存超时，断开客户端");
+                close(subscriber, new TimeoutException("推送库存超时"));
+            }
+        }
+    }
+
+    private void close(Subscriber subscriber, Throwable e) {
+        subscriber.closed = true;
+        subscriber.pending.clear();
+        subscribers.remove(subscriber);
+        subscriber.emitter.completeWithError(e);
+    }
+
+    /**
+     * 查询优惠券的库存（各分片之和），全部分片一次 MGET；未预热的优惠券不返回
+     */
+    private Map<Long, Integer> stocks(Collection<Long> voucherIds) {
+        List<String> keys = new ArrayList<>();
+        List<Integer> shardCounts = new ArrayList<>();
+        for (Long voucherId : voucherIds) {
+            List<String> stockKeys = seckillKeys.stockKeys(voucherId);
+            keys.addAll(stockKeys);
+            shardCounts.add(stockKeys.size());
+        }
+        Map<Long, Integer> stocks = new LinkedHashMap<>();
+        List<String> values = keys.isEmpty() ? null : stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return stocks;
+        }
+        int index = 0;
+        int i = 0;
+        for (Long voucherId : voucherIds) {
+            int stock = 0;
+            boolean found = false;
+            for (int j = 0; j < shardCounts.get(i); j++, index++) {
+                String value = values.get(index);
+                if (value != null) {
+                    stock += Math.max(0, Integer.parseInt(value));
+                    found = true;
+                }
+            }
+            if (found) {
+                stocks.put(voucherId, stock);
+            }
+            i++;
+        }
+        return stocks;
+    }
+
+    /**
+     * 订阅库存的客户端
+     */
+    private static class Subscriber {
+        private final SseEmitter emitter;
+        /** 待推送的库存，每个优惠券只保留最新值 */
+        private final Map<Long, Integer> pending = new ConcurrentHashMap<>();
+        /** 是否已交给推送线程池 */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /** 当前这次发送的开始时间(ms)，0表示没有在发送 */
+        private volatile long sendingSince;
+        /** 是否已断开 */
+        private volatile boolean closed;
+
+        private Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+    }
+
+    /**
+     * 检查Redis是否开启了库存变化需要的键空间通知，没有开启时只能收到连接时的库存
+     */
+    private void checkKeyspaceEvents() {
+        try {
+            Properties config = stringRedisTemplate.execute(
+                    (RedisCallback<Properties>) connection ->
+                            connection.serverCommands().getConfig("notify-keyspace-events"));
+            String events = config == null ? "" : config.getProperty("notify-keyspace-events", "");
+            if (!events.contains("K") || !(events.contains("$") || events.contains("A"))) {
+                log.warn("Redis未开启键空间通知(notify-keyspace-events={})，实时库存推送不可用，请配置为 K$ 或 KA", events);
+            }
+        } catch (Exception e) {
+            log.debug("无法读取Redis配置notify-keyspace-events", e);
+        }
+    }
+}
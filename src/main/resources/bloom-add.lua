@@ -0,0 +1,21 @@
+-- 布隆过滤器新增id，同时写入重建中的位图，重建完成时合并，重建期间新增的id不会丢失
+-- KEYS[1]：位图
+-- KEYS[2]：元数据 hash：bits、hashes，重建期间另有 pending_bits、pending_hashes
+-- KEYS[3]：重建期间新增id的位图
+-- ARGV[1]、ARGV[2]：id哈希值的低32位 h1 和高32位 h2，第i个位置 = (h1 + i * h2) % bits
+local h1 = tonumber(ARGV[1])
+local h2 = tonumber(ARGV[2])
+local meta = redis.call('hmget', KEYS[2], 'bits', 'hashes', 'pending_bits', 'pending_hashes')
+local function setbits(key, bits, hashes)
+    for i = 0, hashes - 1 do
+        redis.call('setbit', key, (h1 + i * h2) % bits, 1)
+    end
+end
+-- 还没有构建完成的位图不写入，避免被当作完整的过滤器加载
+if (meta[1]) then
+    setbits(KEYS[1], tonumber(meta[1]), tonumber(meta[2]))
+end
+if (meta[3]) then
+    setbits(KEYS[3], tonumber(meta[3]), tonumber(meta[4]))
+end
+return 0
@@ -0,0 +1,13 @@
+-- 布隆过滤器重建完成：合并重建期间新增的id，原子地替换位图和元数据
+-- KEYS[1]：新构建的位图
+-- KEYS[2]：重建期间新增id的位图
+-- KEYS[3]：位图
+-- KEYS[4]：元数据
+-- ARGV[1]：bits，ARGV[2]：hashes，ARGV[3]：版本
+if (redis.call('exists', KEYS[2]) == 1) then
+    redis.call('bitop', 'OR', KEYS[1], KEYS[1], KEYS[2])
+end
+redis.call('rename', KEYS[1], KEYS[3])
+redis.call('del', KEYS[2], KEYS[4])
+redis.call('hset', KEYS[4], 'bits', ARGV[1], 'hashes', ARGV[2], 'version', ARGV[3])
+return 0
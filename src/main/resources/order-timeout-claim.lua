@@ -0,0 +1,11 @@
+-- 认领即将到期的订单超时任务
+-- KEYS[1]：订单超时的zset order:timeout，member为订单id，score为到期时间（毫秒）
+-- ARGV[1]：认领到期时间不晚于该值的订单（now + 预读时长）
+-- ARGV[2]：最多认领的数量
+-- ARGV[3]：认领后的新score，在此之前其他节点不会再认领；节点宕机未完成时，到时由其他节点重新认领
+local items = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, ARGV[2])
+for i = 1, #items, 2 do
+    redis.call('zadd', KEYS[1], ARGV[3], items[i])
+end
+-- 返回 [订单id, 原到期时间, ...]
+return items
@@ -0,0 +1,8 @@
+-- 续期已认领的订单超时任务，处理一批订单前调用，保证处理完之前其他节点不会重新认领
+-- KEYS[1]：订单超时的zset order:timeout
+-- ARGV[1]：新的认领到期时间（毫秒）
+-- ARGV[2...]：订单id，已删除（已处理完成）的订单不再写入
+for i = 2, #ARGV do
+    redis.call('zadd', KEYS[1], 'XX', ARGV[1], ARGV[i])
+end
+return #ARGV - 1
@@ -0,0 +1,122 @@
+-- 批量秒杀：一个用户一次抢购多张秒杀券，全部有资格才下单，否则都不下单
+-- 1.参数列表
+-- 1.1.用户id
+local userId = ARGV[1]
+-- 1.2.订单id的时间戳部分（秒），与 RedisIdWorker 一致
+local timestamp = tonumber(ARGV[2])
+-- 1.3.下单用户的存储方式 set / bitmap
+local buyerMode = ARGV[3]
+-- 1.4.bitmap模式下用户在块内的编号（用户id低16位）
+local buyerIndex = ARGV[4]
+-- 1.5.bitmap模式下块内整数集合转为位图的阈值
+local bitmapThreshold = tonumber(ARGV[5])
+-- 1.6.优惠券id列表 ARGV[6] ...
+local count = #ARGV - 5
+
+-- 2.数据key，每张优惠券5个：库存key、下单用户key、位图key、块登记key、秒杀券信息key（含义同 seckill.lua）；
+-- 最后是订单stream和订单id的自增key
+local function keyOf(i, offset)
+    return KEYS[(i - 1) * 5 + offset]
+end
+local streamKey = KEYS[count * 5 + 1]
+local icrKey = KEYS[count * 5 + 2]
+
+-- 判断用户是否已下单
+local function isBuyer(i)
+    if (buyerMode ~= 'bitmap') then
+        return redis.call('sismember', keyOf(i, 2), userId) == 1
+    end
+    if (redis.call('exists', keyOf(i, 3)) == 1) then
+        return redis.call('getbit', keyOf(i, 3), buyerIndex) == 1
+    end
+    return redis.call('sismember', keyOf(i, 2), buyerIndex) == 1
+end
+
+-- 记录下单用户
+local function addBuyer(i)
+    local orderKey = keyOf(i, 2)
+    local bitmapKey = keyOf(i, 3)
+    if (buyerMode ~= 'bitmap') then
+        redis.call('sadd', orderKey, userId)
+        return
+    end
+    if (redis.call('exists', bitmapKey) == 1) then
+        redis.call('setbit', bitmapKey, buyerIndex, 1)
+        return
+    end
+    redis.call('sadd', orderKey, buyerIndex)
+    local size = redis.call('scard', orderKey)
+    if (size == 1) then
+        redis.call('sadd', keyOf(i, 4), orderKey)
+    elseif (size > bitmapThreshold) then
+        for _, index in ipairs(redis.call('smembers', orderKey)) do
+            redis.call('setbit', bitmapKey, index, 1)
+        end
+        redis.call('del', orderKey)
+    end
+end
+
+-- 按 RedisIdWorker 的格式生成订单id：timestamp << 32 | seq，按10^7进制分段计算（见 seckill.lua）
+local function toId(seq)
+    local t1 = math.floor(timestamp / 10000000)
+    local t0 = timestamp % 10000000
+    local p0 = t0 * 4967296 + seq
+    local p1 = t0 * 429 + t1 * 4967296 + math.floor(p0 / 10000000)
+    p0 = p0 % 10000000
+    local p2 = t1 * 429 + math.floor(p1 / 10000000)
+    p1 = p1 % 10000000
+    if (p2 > 0) then
+        return string.format('%d%07d%07d', p2, p1, p0)
+    end
+    if (p1 > 0) then
+        return string.format('%d%07d', p1, p0)
+    end
+    return tostring(p0)
+end
+
+-- 3.逐张校验资格，任意一张不满足即返回 {错误码, 第几张}
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+for i = 1, count do
+    -- 3.1.秒杀时间
+    local window = redis.call('hmget', keyOf(i, 5), 'begin', 'end')
+    local beginTime = tonumber(window[1])
+    local endTime = tonumber(window[2])
+    if (beginTime == nil or endTime == nil) then
+        -- 尚未预热（或已清理）
+        return { 5, i }
+    end
+    if (now < beginTime) then
+        return { 3, i }
+    end
+    if (now > endTime) then
+        return { 4, i }
+    end
+    -- 3.2.库存
+    local stock = tonumber(redis.call('get', keyOf(i, 1)))
+    if (stock == nil or stock <= 0) then
+        return { 1, i }
+    end
+    -- 3.3.一人一单
+    if (isBuyer(i)) then
+        return { 2, i }
+    end
+end
+
+-- 4.全部满足，逐张扣库存、记录下单用户
+for i = 1, count do
+    redis.call('incrby', keyOf(i, 1), -1)
+    addBuyer(i)
+end
+-- 5.一次生成全部订单id INCRBY icrKey count
+local last = redis.call('incrby', icrKey, count)
+local result = { 0 }
+local lines = {}
+for i = 1, count do
+    local orderId = toId(last - count + i)
+    result[i + 1] = orderId
+    lines[i] = ARGV[5 + i] .. ':' .. orderId
+end
+-- 6.一条消息包含全部订单 XADD stream.orders * userId xx lines voucherId:orderId,...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'lines', table.concat(lines, ','))
+return result
@@ -0,0 +1,16 @@
+-- 从兄弟分片借出库存，借出数量为该分片剩余库存的一半（至少1个，至多ARGV[1]个）；节点租用库存时也使用该脚本
+-- KEYS[1]：兄弟分片的库存key
+-- KEYS[2]：借入的库存key（用户所属分片），与KEYS[1]在同一slot；节点租用库存、集群模式跨slot借库存时不传
+-- ARGV[1]：最多借出的数量
+local stock = tonumber(redis.call('get', KEYS[1]))
+if (stock == nil or stock <= 0) then
+    -- 兄弟分片也没有库存
+    return 0
+end
+local count = math.min(math.max(1, math.floor(stock / 2)), tonumber(ARGV[1]))
+redis.call('decrby', KEYS[1], count)
+if (KEYS[2] ~= nil) then
+    -- 同一脚本内转入所属分片，借出与借入不会只完成一半
+    redis.call('incrby', KEYS[2], count)
+end
+return count
@@ -0,0 +1,16 @@
+-- 订单取消后归还秒杀库存，并移除一人一单记录，用户可以重新下单
+-- KEYS[1]：用户所属分片的库存key
+-- KEYS[2]：下单用户key，set模式为集合，bitmap模式为块的整数集合
+-- KEYS[3]：bitmap模式下块的位图key，set模式与KEYS[2]相同
+-- ARGV[1]：用户的成员值，set模式为用户id，bitmap模式为块内编号
+if (redis.call('exists', KEYS[1]) == 0) then
+    -- 秒杀数据已清理（或未预热），库存只退回数据库
+    return 0
+end
+redis.call('incrby', KEYS[1], 1)
+if (KEYS[3] ~= KEYS[2] and redis.call('exists', KEYS[3]) == 1) then
+    redis.call('setbit', KEYS[3], ARGV[1], 0)
+else
+    redis.call('srem', KEYS[2], ARGV[1])
+end
+return 1
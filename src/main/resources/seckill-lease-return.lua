@@ -0,0 +1,8 @@
+-- 归还节点租约中未售出的库存
+-- KEYS[1]：库存key
+-- ARGV[1]：归还的数量
+if (redis.call('exists', KEYS[1]) == 0) then
+    -- 秒杀数据已清理，不再归还，避免留下没有过期时间的库存key
+    return 0
+end
+return redis.call('incrby', KEYS[1], ARGV[1])
@@ -0,0 +1,21 @@
+-- 秒杀全局限流：令牌桶，各节点按批领取令牌
+-- KEYS[1]：令牌桶 seckill:limit:{voucherId}，hash字段 tokens、time
+-- ARGV[1]：每秒生成的令牌数
+-- ARGV[2]：桶容量
+-- ARGV[3]：本次领取的令牌数
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local requested = tonumber(ARGV[3])
+-- 使用Redis服务器时间，各节点的时钟偏差不影响
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local bucket = redis.call('hmget', KEYS[1], 'tokens', 'time')
+local tokens = tonumber(bucket[1]) or capacity
+local last = tonumber(bucket[2]) or now
+-- 按流逝的时间补充令牌
+tokens = math.min(capacity, tokens + math.max(0, now - last) * rate / 1000)
+local granted = math.min(requested, math.floor(tokens))
+redis.call('hset', KEYS[1], 'tokens', tostring(tokens - granted), 'time', now)
+-- 桶填满后即可过期
+redis.call('pexpire', KEYS[1], math.ceil(capacity / rate * 1000) + 1000)
+return granted
@@ -0,0 +1,24 @@
+-- 对账：补回Redis中丢失的下单用户，同时扣减一个库存，保持 库存 + 下单用户数 不变
+-- KEYS[1]：用户所属分片的库存key
+-- KEYS[2]：下单用户key，set模式为集合，bitmap模式为块的整数集合
+-- KEYS[3]：bitmap模式下块的位图key，set模式与KEYS[2]相同
+-- KEYS[4]：bitmap模式下块登记集合，set模式与KEYS[2]相同
+-- ARGV[1]：用户的成员值，set模式为用户id，bitmap模式为块内编号
+-- 返回 1 已补回，0 用户已存在或秒杀数据已清理
+if (redis.call('exists', KEYS[1]) == 0) then
+    return 0
+end
+if (KEYS[3] ~= KEYS[2] and redis.call('exists', KEYS[3]) == 1) then
+    if (redis.call('setbit', KEYS[3], ARGV[1], 1) == 1) then
+        return 0
+    end
+else
+    if (redis.call('sadd', KEYS[2], ARGV[1]) == 0) then
+        return 0
+    end
+    if (KEYS[4] ~= KEYS[2] and redis.call('scard', KEYS[2]) == 1) then
+        redis.call('sadd', KEYS[4], KEYS[2])
+    end
+end
+redis.call('incrby', KEYS[1], -1)
+return 1
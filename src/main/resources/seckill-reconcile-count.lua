@@ -0,0 +1,25 @@
+-- 对账：一次原子地读取一个分片的库存和下单用户数
+-- KEYS[1]：库存分片key
+-- KEYS[2]：set模式为下单用户集合，bitmap模式为块登记集合
+-- ARGV[1]：下单用户的存储方式 set / bitmap
+-- 返回 {库存key是否存在, 库存, 下单用户数}
+local stock = tonumber(redis.call('get', KEYS[1]))
+local exists = 1
+if (stock == nil) then
+    exists = 0
+    stock = 0
+end
+if (ARGV[1] ~= 'bitmap') then
+    return { exists, stock, redis.call('scard', KEYS[2]) }
+end
+-- bitmap模式：已转为位图的块统计位数，其余统计整数集合大小
+local buyers = 0
+for _, chunkKey in ipairs(redis.call('smembers', KEYS[2])) do
+    local bitmapKey = chunkKey .. ':bits'
+    if (redis.call('exists', bitmapKey) == 1) then
+        buyers = buyers + redis.call('bitcount', bitmapKey)
+    else
+        buyers = buyers + redis.call('scard', chunkKey)
+    end
+end
+return { exists, stock, buyers }
@@ -0,0 +1,16 @@
+-- 记录秒杀订单处理状态，已有的终态（已落库、下单失败）不被覆盖
+-- KEYS[1]：状态hash桶 seckill:status:{bucket}
+-- ARGV[1]：桶的过期时间(s)
+-- ARGV[2]：可以覆盖的状态前缀，为空时只在没有记录时写入
+-- ARGV[3...]：订单id、状态值，成对出现
+local n = 0
+for i = 3, #ARGV, 2 do
+    local current = redis.call('hget', KEYS[1], ARGV[i])
+    if (not current or (ARGV[2] ~= '' and string.sub(current, 1, #ARGV[2]) == ARGV[2])) then
+        redis.call('hset', KEYS[1], ARGV[i], ARGV[i + 1])
+        n = n + 1
+    end
+end
+redis.call('expire', KEYS[1], ARGV[1])
+-- 返回写入的订单数
+return n
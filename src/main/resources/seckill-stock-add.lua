@@ -0,0 +1,14 @@
+-- 补充已预热秒杀券的Redis库存；未预热时不写入，由预热从数据库加载（已包含补充的库存）
+-- KEYS[1]：0号分片的库存key
+-- KEYS[2...]：秒杀券信息key，与库存key在同一slot（单机模式各分片共用一个；集群模式只传0号分片的）
+-- ARGV[1]：补充的数量
+if (redis.call('exists', KEYS[1]) == 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], ARGV[1])
+for i = 2, #KEYS do
+    if (redis.call('exists', KEYS[i]) == 1) then
+        redis.call('hincrby', KEYS[i], 'stock', ARGV[1])
+    end
+end
+return 1
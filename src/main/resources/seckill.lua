@@ -3,30 +3,135 @@
 local voucherId = ARGV[1]
 -- 1.2.用户id
 local userId = ARGV[2]
--- 1.3.订单id
+-- 1.3.订单id，为空时由脚本生成
 local orderId = ARGV[3]
+-- 1.4.订单id的时间戳部分（秒），与 RedisIdWorker 一致
+local timestamp = tonumber(ARGV[4])
+-- 1.5.下单用户的存储方式 set / bitmap
+local buyerMode = ARGV[5]
+-- 1.6.bitmap模式下用户在块内的编号（用户id低16位）
+local buyerIndex = ARGV[6]
+-- 1.7.bitmap模式下块内整数集合转为位图的阈值
+local bitmapThreshold = tonumber(ARGV[7])
+-- 1.8.库存是否已从节点租约中扣减，为1时脚本不再判断、扣减库存
+local stockLeased = ARGV[8] == '1'
 
--- 2.数据key
+-- 2.数据key，由调用方按用户所属分片传入；集群模式下带有相同的hash tag，位于同一个slot
 -- 2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
+local stockKey = KEYS[1]
+-- 2.2.下单用户key：set模式为集合 seckill:order:{voucherId}，保存用户id；
+-- bitmap模式按用户id高位分块，每块先用整数集合保存低16位（稀疏），超过阈值后转为位图（稠密），类似 Roaring Bitmap
+local orderKey = KEYS[2]
+-- 2.3.订单stream
+local streamKey = KEYS[3]
+-- 2.4.优惠券信息 seckill:voucher:{voucherId}，hash字段 begin、end（毫秒时间戳）、stock
+local voucherKey = KEYS[4]
+-- 2.5.bitmap模式下该块的位图key，set模式传入与orderKey相同的key
+local bitmapKey = KEYS[5]
+-- 2.6.bitmap模式下记录已有分块的集合，用于清理，set模式传入与orderKey相同的key
+local chunksKey = KEYS[6]
+-- 2.7.订单id的自增key icr:order:yyyy:MM:dd，脚本生成订单id时才传入
+local icrKey = KEYS[7]
+
+-- 判断用户是否已下单
+local function isBuyer()
+    if (buyerMode ~= 'bitmap') then
+        return redis.call('sismember', orderKey, userId) == 1
+    end
+    if (redis.call('exists', bitmapKey) == 1) then
+        return redis.call('getbit', bitmapKey, buyerIndex) == 1
+    end
+    return redis.call('sismember', orderKey, buyerIndex) == 1
+end
+
+-- 记录下单用户
+local function addBuyer()
+    if (buyerMode ~= 'bitmap') then
+        redis.call('sadd', orderKey, userId)
+        return
+    end
+    if (redis.call('exists', bitmapKey) == 1) then
+        redis.call('setbit', bitmapKey, buyerIndex, 1)
+        return
+    end
+    redis.call('sadd', orderKey, buyerIndex)
+    local size = redis.call('scard', orderKey)
+    if (size == 1) then
+        -- 新的分块，登记块号
+        redis.call('sadd', chunksKey, orderKey)
+    elseif (size > bitmapThreshold) then
+        -- 超过阈值，整数集合转为位图
+        for _, index in ipairs(redis.call('smembers', orderKey)) do
+            redis.call('setbit', bitmapKey, index, 1)
+        end
+        redis.call('del', orderKey)
+    end
+end
+
+-- 按 RedisIdWorker 的格式生成订单id：timestamp << 32 | count
+-- Lua的number是double，超过2^53会丢失精度，因此按10^7进制分段计算后拼接成字符串
+local function nextId()
+    local count = redis.call('incr', icrKey)
+    local t1 = math.floor(timestamp / 10000000)
+    local t0 = timestamp % 10000000
+    -- 2^32 = 429 * 10^7 + 4967296
+    local p0 = t0 * 4967296 + count
+    local p1 = t0 * 429 + t1 * 4967296 + math.floor(p0 / 10000000)
+    p0 = p0 % 10000000
+    local p2 = t1 * 429 + math.floor(p1 / 10000000)
+    p1 = p1 % 10000000
+    if (p2 > 0) then
+        return string.format('%d%07d%07d', p2, p1, p0)
+    end
+    if (p1 > 0) then
+        return string.format('%d%07d', p1, p0)
+    end
+    return tostring(p0)
+end
 
 -- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey
-if (tonumber (redis.call('get', stockKey)) <= 0) then
-    -- 3.2.库存不足，返回1
-    return 1
-end
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
-if (redis.call('sismember', orderKey, userId) == 1) then
-    -- 3.3.存在，说明是重复下单，返回2
-    return 2
-end
--- 3.4.扣库存 incrby stockKey -1
-redis.call('incrby', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId
-redis.call('sadd', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
+-- 3.1.判断秒杀时间 HMGET voucherKey begin end
+local window = redis.call('hmget', voucherKey, 'begin', 'end')
+local beginTime = tonumber(window[1])
+local endTime = tonumber(window[2])
+if (beginTime == nil or endTime == nil) then
+    -- 尚未预热（或已清理）的优惠券，返回5，不能当作售罄
+    return { 5 }
+end
+-- 使用Redis服务器时间，各应用节点的时钟偏差不影响判断
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if (now < beginTime) then
+    -- 3.2.秒杀尚未开始，返回3
+    return { 3 }
+end
+if (now > endTime) then
+    -- 3.3.秒杀已经结束，返回4
+    return { 4 }
+end
+-- 3.4.判断库存是否充足 get stockKey，库存已在节点租约中扣减时跳过
+if (not stockLeased) then
+    local stock = tonumber(redis.call('get', stockKey))
+    if (stock == nil or stock <= 0) then
+        -- 3.5.库存不足，返回1
+        return { 1 }
+    end
+end
+-- 3.6.判断用户是否下单 SISMEMBER orderKey userId / GETBIT bitmapKey index
+if (isBuyer()) then
+    -- 3.7.存在，说明是重复下单，返回2
+    return { 2 }
+end
+-- 3.8.扣库存 incrby stockKey -1
+if (not stockLeased) then
+    redis.call('incrby', stockKey, -1)
+end
+-- 3.9.下单（保存用户）SADD orderKey userId / SETBIT bitmapKey index 1
+addBuyer()
+-- 3.10.生成订单id，只有下单成功才会消耗序列号
+if (orderId == '') then
+    orderId = nextId()
+end
+-- 3.11.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return { 0, orderId }
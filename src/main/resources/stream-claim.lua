@@ -0,0 +1,7 @@
+-- 认领消费者组中空闲超时的pending消息（通常属于已宕机的消费者）
+-- KEYS[1]：stream的key
+-- ARGV[1]：消费者组，ARGV[2]：认领到的消费者，ARGV[3]：最小空闲时间(ms)，ARGV[4]：起始id，ARGV[5]：单次认领数量
+-- XAUTOCLAIM key group consumer min-idle-time start COUNT count
+local result = redis.call('XAUTOCLAIM', KEYS[1], ARGV[1], ARGV[2], ARGV[3], ARGV[4], 'COUNT', ARGV[5])
+-- 返回下一次扫描的起始id 以及本次认领的消息数
+return { result[1], #result[2] }
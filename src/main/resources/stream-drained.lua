@@ -0,0 +1,28 @@
+-- 判断订单stream是否已消费完：各消费者组都没有pending消息，也没有未投递的消息
+-- KEYS[1]：订单stream
+-- ARGV[1]：为1时还要求消息已全部归档删除（开启归档时，未归档的消息不能随stream删除）
+if (redis.call('exists', KEYS[1]) == 0) then
+    return 1
+end
+local groups = redis.call('xinfo', 'groups', KEYS[1])
+-- 还没有消费者组时消息都未投递
+if (#groups == 0 and redis.call('xlen', KEYS[1]) > 0) then
+    return 0
+end
+for _, group in ipairs(groups) do
+    local info = {}
+    for i = 1, #group, 2 do
+        info[group[i]] = group[i + 1]
+    end
+    if (tonumber(info['pending']) > 0) then
+        return 0
+    end
+    -- last-delivered-id 之后还有消息
+    if (#redis.call('xrange', KEYS[1], '(' .. info['last-delivered-id'], '+', 'COUNT', 1) > 0) then
+        return 0
+    end
+end
+if (ARGV[1] == '1' and redis.call('xlen', KEYS[1]) > 0) then
+    return 0
+end
+return 1
@@ -0,0 +1,23 @@
+-- 消费者组的积压：已投递未确认 + 未投递的消息数，未投递部分最多统计ARGV[2]条
+-- KEYS[1]：订单stream
+-- ARGV[1]：消费者组
+-- ARGV[2]：统计上限
+if (redis.call('exists', KEYS[1]) == 0) then
+    return 0
+end
+for _, group in ipairs(redis.call('xinfo', 'groups', KEYS[1])) do
+    local info = {}
+    for i = 1, #group, 2 do
+        info[group[i]] = group[i + 1]
+    end
+    if (info['name'] == ARGV[1]) then
+        local pending = tonumber(info['pending'])
+        -- Redis 7 直接返回lag
+        local lag = tonumber(info['lag'])
+        if (lag == nil) then
+            lag = #redis.call('xrange', KEYS[1], '(' .. info['last-delivered-id'], '+', 'COUNT', ARGV[2])
+        end
+        return pending + lag
+    end
+end
+return 0
@@ -0,0 +1,7 @@
+-- 删除已归档的订单消息
+-- KEYS[1]：订单stream
+-- ARGV[1]：保留的最小消息id，之前的消息均已归档
+if (redis.call('exists', KEYS[1]) == 0) then
+    return 0
+end
+return redis.call('xtrim', KEYS[1], 'MINID', ARGV[1])
@@ -0,0 +1,108 @@
+import com.dianping.DianPingApplication;
+import com.dianping.dto.OrderStatusDTO;
+import com.dianping.dto.Result;
+import com.dianping.dto.UserDTO;
+import com.dianping.entity.Voucher;
+import com.dianping.service.IVoucherOrderService;
+import com.dianping.service.IVoucherService;
+import com.dianping.utils.SeckillKeys;
+import com.dianping.utils.SeckillOrderStatus;
+import com.dianping.utils.UserHolder;
+import jakarta.annotation.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.framework.AopProxyUtils;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Description: 秒杀订单取消后再次下单
+ * @Author: zhao
+ * Created: 2025/6/14 - 10:20
+ */
+
+@SpringBootTest(classes = DianPingApplication.class)
+public class VoucherOrderCancelTests {
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private SeckillKeys seckillKeys;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    @Test
+    void testCancelThenRebuy() throws InterruptedException {
+        // 1.添加库存为2的秒杀券
+        Voucher voucher = new Voucher().setShopId(1L)
+                                       .setTitle("取消后再次下单")
+                                       .setPayValue(100L)
+                                       .setActualValue(200L)
+                                       .setType(1)
+                                       .setStock(2)
+                                       .setBeginTime(LocalDateTime.now().minusHours(1))
+                                       .setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        Long voucherId = voucher.getId();
+        UserDTO user = new UserDTO();
+        user.setId(System.nanoTime() & 0xFFFFFFL);
+        UserHolder.saveUser(user);
+
+        // 2.下单并等待落库
+        Long firstOrderId = seckill(voucherId);
+        assertEquals(OrderStatusDTO.PERSISTED, awaitStatus(firstOrderId).getStatus());
+        // 其他用户查询不到这个订单，伪造的订单id也查询不到
+        assertEquals(OrderStatusDTO.UNKNOWN, seckillOrderStatus.query(firstOrderId, user.getId() + 1).getStatus());
+        assertEquals(OrderStatusDTO.UNKNOWN, seckillOrderStatus.query(firstOrderId + 1, user.getId()).getStatus());
+
+        // 3.超时取消：数据库订单改为已取消，Redis退回库存并移除一人一单记录
+        Object target = AopProxyUtils.getSingletonTarget(voucherOrderService);
+        ReflectionTestUtils.invokeMethod(target, "cancelTimeoutOrders", Collections.singletonList(firstOrderId));
+        assertEquals(4, voucherOrderService.getById(firstOrderId).getStatus());
+
+        // 4.再次下单，不能被已取消的订单判定为重复下单
+        Long secondOrderId = seckill(voucherId);
+        assertNotEquals(firstOrderId, secondOrderId);
+        assertEquals(OrderStatusDTO.PERSISTED, awaitStatus(secondOrderId).getStatus());
+        assertEquals(1, voucherOrderService.getById(secondOrderId).getStatus());
+
+        // 5.Redis与数据库库存一致，只卖出一张
+        long redisStock = 0;
+        for (String stockKey : seckillKeys.stockKeys(voucherId)) {
+            String stock = stringRedisTemplate.opsForValue().get(stockKey);
+            redisStock += stock == null ? 0 : Long.parseLong(stock);
+        }
+        assertEquals(1, redisStock);
+    }
+
+    private Long seckill(Long voucherId) {
+        Result result = voucherOrderService.seckillVoucherV3(voucherId);
+        assertTrue(result.getSuccess(), result.getErrorMsg());
+        return (Long) result.getData();
+    }
+
+    private OrderStatusDTO awaitStatus(Long orderId) throws InterruptedException {
+        OrderStatusDTO status = seckillOrderStatus.query(orderId, UserHolder.getUser().getId());
+        for (int i = 0; i < 100 && OrderStatusDTO.QUEUED.equals(status.getStatus()); i++) {
+            Thread.sleep(100);
+            status = seckillOrderStatus.query(orderId, UserHolder.getUser().getId());
+        }
+        return status;
+    }
+}
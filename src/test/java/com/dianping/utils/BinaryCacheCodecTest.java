@@ -0,0 +1,162 @@
+package com.dianping.utils;
+
+import com.dianping.dto.UserDTO;
+import com.dianping.entity.Blog;
+import com.dianping.entity.Shop;
+import com.dianping.entity.ShopType;
+import com.dianping.entity.Voucher;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Description: 二进制编解码的往返、LZ4压缩，以及未注册类型和原有JSON缓存的兼容
+ * @Author: zhao
+ * Created: 2025/6/15 - 12:10
+ */
+class BinaryCacheCodecTest {
+
+    /** 与 application.yml 的默认压缩阈值相同 */
+    private static final int COMPRESS_THRESHOLD = 1024;
+    /** JSON中的时间精确到毫秒 */
+    private static final LocalDateTime TIME = LocalDateTime.of(2025, 5, 22, 20, 40, 1);
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec(COMPRESS_THRESHOLD);
+    private final JsonCacheCodec json = new JsonCacheCodec();
+
+    @Test
+    void shopRoundTrip() {
+        Shop shop = shop();
+        shop.setCreateTime(TIME.withNano(123_456_789));
+        shop.setDistance(1234.5);
+        byte[] bytes = codec.encode(shop);
+        assertEquals(BinaryCacheCodec.SCHEMA_VERSION, bytes[0]);
+        assertEquals(shop, codec.decode(bytes, Shop.class));
+        assertTrue(bytes.length < json.encode(shop).length);
+    }
+
+    @Test
+    void nullFieldsRoundTrip() {
+        Shop shop = new Shop().setId(1L).setName("");
+        assertEquals(shop, codec.decode(codec.encode(shop), Shop.class));
+        Blog blog = new Blog().setId(-1L).setIsLike(false).setLiked(0);
+        assertEquals(blog, codec.decode(codec.encode(blog), Blog.class));
+    }
+
+    @Test
+    void registeredTypesRoundTrip() {
+        ShopType shopType = new ShopType().setId(1L).setName("美食").setIcon("/types/ms.png").setSort(1)
+                                          .setCreateTime(TIME).setUpdateTime(TIME);
+        assertEquals(shopType, codec.decode(codec.encode(shopType), ShopType.class));
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        assertEquals(user, codec.decode(codec.encode(user), UserDTO.class));
+    }
+
+    @Test
+    void largeValueIsCompressed() {
+        Blog blog = blog();
+        byte[] bytes = codec.encode(blog);
+        byte[] uncompressed = new BinaryCacheCodec(0).encode(blog);
+        // 标志位：LZ4压缩
+        assertEquals(1, bytes[1] & 1);
+        assertEquals(0, uncompressed[1] & 1);
+        assertTrue(bytes.length < uncompressed.length);
+        assertEquals(blog, codec.decode(bytes, Blog.class));
+        // 不压缩的编码也能被开启压缩的节点读取
+        assertEquals(blog, codec.decode(uncompressed, Blog.class));
+    }
+
+    @Test
+    void expireRoundTrip() {
+        LocalDateTime expireTime = TIME.plusMinutes(30);
+        RedisData redisData = codec.decodeWithExpire(codec.encodeWithExpire(blog(), expireTime), Blog.class);
+        assertEquals(expireTime, redisData.getExpireTime());
+        assertEquals(blog(), redisData.getData());
+        // 缓存的空值
+        RedisData empty = codec.decodeWithExpire(codec.encodeWithExpire(null, expireTime), Shop.class);
+        assertEquals(expireTime, empty.getExpireTime());
+        assertNull(empty.getData());
+    }
+
+    @Test
+    void expireFlagMismatchDecodesNull() {
+        assertNull(codec.decode(codec.encodeWithExpire(shop(), TIME), Shop.class));
+        assertNull(codec.decodeWithExpire(codec.encode(shop()), Shop.class));
+    }
+
+    @Test
+    void unregisteredTypeFallsBackToJson() {
+        Voucher voucher = new Voucher().setId(1L).setShopId(1L).setTitle("50元代金券").setPayValue(4750L)
+                                       .setActualValue(5000L).setType(0).setCreateTime(TIME);
+        byte[] bytes = codec.encode(voucher);
+        assertEquals('{', bytes[0]);
+        assertEquals(voucher, codec.decode(bytes, Voucher.class));
+        RedisData redisData = codec.decodeWithExpire(codec.encodeWithExpire(voucher, TIME), Voucher.class);
+        assertEquals(TIME, redisData.getExpireTime());
+        assertEquals(voucher, redisData.getData());
+    }
+
+    @Test
+    void readsExistingJsonCache() {
+        // 切换到二进制编解码前写入的JSON缓存仍可读取
+        Shop shop = shop();
+        assertEquals(shop, codec.decode(json.encode(shop), Shop.class));
+        RedisData redisData = codec.decodeWithExpire(json.encodeWithExpire(shop, TIME), Shop.class);
+        assertEquals(TIME, redisData.getExpireTime());
+        assertEquals(shop, redisData.getData());
+    }
+
+    @Test
+    void corruptedValueDecodesNull() {
+        byte[] bytes = codec.encode(blog());
+        // LZ4负载被截断
+        byte[] truncated = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertNull(codec.decode(truncated, Blog.class));
+        // 格式版本对但类型没有注册
+        assertNull(codec.decode(codec.encode(shop()), Voucher.class));
+        // 既不是当前格式，也不是JSON
+        assertNull(codec.decode(new byte[]{9, 9, 9}, Shop.class));
+    }
+
+    private static Shop shop() {
+        return new Shop().setId(1L)
+                         .setName("103茶餐厅")
+                         .setTypeId(1L)
+                         .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                         .setArea("大关")
+                         .setAddress("金华路锦昌文华苑29号")
+                         .setX(120.149192)
+                         .setY(30.316078)
+                         .setAvgPrice(80L)
+                         .setSold(4215)
+                         .setComments(3035)
+                         .setScore(37)
+                         .setOpenHours("10:00-22:00")
+                         .setCreateTime(TIME)
+                         .setUpdateTime(TIME);
+    }
+
+    private static Blog blog() {
+        return new Blog().setId(4L)
+                         .setShopId(4L)
+                         .setUserId(2L)
+                         .setIcon("/imgs/icons/kkjtbcr.jpg")
+                         .setName("可可今天不吃肉")
+                         .setIsLike(true)
+                         .setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩")
+                         .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg")
+                         .setContent("生活就是一半烟火·一半诗意<br/>手执烟火谋生活·心怀诗意以谋爱·<br/>".repeat(20))
+                         .setLiked(13)
+                         .setComments(104)
+                         .setCreateTime(TIME)
+                         .setUpdateTime(TIME);
+    }
+}
@@ -0,0 +1,100 @@
+package com.dianping.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Description: 布隆过滤器的位图与 bloom-add.lua 用 SETBIT 写入的位图一致
+ * @Author: zhao
+ * Created: 2025/6/15 - 10:10
+ */
+class BloomFilterTest {
+
+    private static final long BITS = 10_000;
+    private static final int HASHES = 7;
+
+    @Test
+    void toBytesMatchesLuaSetbit() {
+        BloomFilter filter = new BloomFilter(BITS, HASHES);
+        byte[] redis = new byte[(int) (filter.bits() / 8)];
+        for (long id = 1; id <= 200; id++) {
+            filter.put(id);
+            luaAdd(redis, filter.bits(), filter.hashes(), id);
+        }
+        assertArrayEquals(redis, filter.toBytes());
+    }
+
+    @Test
+    void fromBytesContainsLuaAddedIds() {
+        long bits = new BloomFilter(BITS, HASHES).bits();
+        byte[] redis = new byte[(int) (bits / 8)];
+        // 订单id量级的大id，h1 + i * h2 超过2^32，Lua中按浮点数计算仍然精确
+        long base = 1L << 40;
+        for (long id = base; id < base + 100; id++) {
+            luaAdd(redis, bits, HASHES, id);
+        }
+        BloomFilter filter = BloomFilter.fromBytes(bits, HASHES, redis);
+        for (long id = base; id < base + 100; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+    }
+
+    @Test
+    void fromBytesTreatsShortBitmapAsZero() {
+        // Redis的位图只写到最高的1位所在字节
+        BloomFilter filter = BloomFilter.fromBytes(BITS, HASHES, new byte[]{(byte) 0x80});
+        byte[] bytes = filter.toBytes();
+        assertEquals((byte) 0x80, bytes[0]);
+        for (int i = 1; i < bytes.length; i++) {
+            assertEquals(0, bytes[i]);
+        }
+        assertFalse(BloomFilter.fromBytes(BITS, HASHES, null).mightContain(1));
+    }
+
+    @Test
+    void falsePositiveRateWithinBound() {
+        BloomFilter filter = BloomFilter.create(10_000, 0.01);
+        for (long id = 1; id <= 10_000; id++) {
+            filter.put(id);
+        }
+        for (long id = 1; id <= 10_000; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+        int falsePositives = 0;
+        for (long id = 10_001; id <= 110_000; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        // 误判率1%，留出余量
+        assertTrue(falsePositives < 2_000, "false positives: " + falsePositives);
+    }
+
+    @Test
+    void mergeIsBitwiseOr() {
+        BloomFilter a = new BloomFilter(BITS, HASHES);
+        BloomFilter b = new BloomFilter(BITS, HASHES);
+        a.put(1);
+        b.put(2);
+        a.merge(b.toBytes());
+        assertTrue(a.mightContain(1));
+        assertTrue(a.mightContain(2));
+    }
+
+    /**
+     * 按 bloom-add.lua 写入：Lua的数字是双精度浮点数，SETBIT 的第offset位是第offset/8个字节的高位起第offset%8位
+     */
+    private static void luaAdd(byte[] redis, long bits, int hashes, long id) {
+        long hash = BloomFilter.hash(id);
+        double h1 = BloomFilter.h1(hash);
+        double h2 = BloomFilter.h2(hash);
+        for (int i = 0; i < hashes; i++) {
+            long offset = (long) ((h1 + i * h2) % bits);
+            redis[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.dianping.utils;
+
+import com.dianping.config.CacheProperties;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.dianping.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @Description: 删除缓存时通知其他节点清除一级缓存
+ * @Author: zhao
+ * Created: 2025/6/15 - 09:40
+ */
+class CacheClientTest {
+
+    private static final String KEY = "cache:shop:1";
+
+    @Test
+    void deletePublishesWithoutLocalCache() {
+        StringRedisTemplate stringRedisTemplate = deleteWith(false);
+        verify(stringRedisTemplate).delete(KEY);
+        // 本节点未开启一级缓存，其他节点可能开启了，仍要通知
+        verify(stringRedisTemplate).convertAndSend(CACHE_INVALIDATE_CHANNEL, KEY);
+    }
+
+    @Test
+    void deletePublishesWithLocalCache() {
+        StringRedisTemplate stringRedisTemplate = deleteWith(true);
+        verify(stringRedisTemplate).delete(KEY);
+        verify(stringRedisTemplate).convertAndSend(CACHE_INVALIDATE_CHANNEL, KEY);
+    }
+
+    private StringRedisTemplate deleteWith(boolean localEnabled) {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setLocalEnabled(localEnabled);
+        CacheClient cacheClient = new CacheClient(stringRedisTemplate, cacheProperties,
+                mock(RedisMessageListenerContainer.class), mock(IdBloomFilters.class),
+                mock(RedissonClient.class), mock(CacheCodec.class));
+        cacheClient.delete(KEY);
+        return stringRedisTemplate;
+    }
+}
@@ -0,0 +1,172 @@
+package com.dianping.utils;
+
+import com.dianping.dto.UserDTO;
+import com.dianping.entity.Blog;
+import com.dianping.entity.Shop;
+import com.dianping.entity.ShopType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description: 缓存值编解码基准测试：JSON vs 二进制（含LZ4压缩），编码、解码耗时，以及写入Redis后每个实体占用的字节数
+ * 运行 main 方法先输出各实体的大小对比（需要本地Redis(localhost:6379)统计 MEMORY USAGE，连接失败时只输出编码长度），再运行JMH
+ * @Author: zhao
+ * Created: 2025/5/22 - 21:10
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CacheCodecBenchmark {
+
+    private static final DefaultRedisScript<Long> MEMORY_USAGE_SCRIPT = new DefaultRedisScript<>(
+            "return redis.call('memory', 'usage', KEYS[1], 'SAMPLES', '0')",
+            Long.class
+    );
+
+    @Param({"shop", "blog", "logical"})
+    public String entity;
+
+    @Param({"json", "binary"})
+    public String codecName;
+
+    private CacheCodec codec;
+    private Object value;
+    private byte[] encoded;
+    private Class<?> type;
+
+    @Setup
+    public void setup() {
+        codec = "json".equals(codecName) ? new JsonCacheCodec() : new BinaryCacheCodec(1024);
+        value = "blog".equals(entity) ? blog() : shop();
+        type = value.getClass();
+        encoded = "logical".equals(entity) ? codec.encodeWithExpire(value, expireTime()) : codec.encode(value);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return "logical".equals(entity) ? codec.encodeWithExpire(value, expireTime()) : codec.encode(value);
+    }
+
+    @Benchmark
+    public Object decode() {
+        return "logical".equals(entity) ? codec.decodeWithExpire(encoded, type) : codec.decode(encoded, type);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        printSizes();
+        Options options = new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    /**
+     * 各实体两种编码的长度，以及写入Redis后 MEMORY USAGE 统计的内存
+     */
+    private static void printSizes() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("Shop", shop());
+        values.put("ShopType", new ShopType().setId(1L).setName("美食").setIcon("/types/ms.png").setSort(1)
+                                             .setCreateTime(LocalDateTime.of(2021, 12, 22, 20, 17, 42))
+                                             .setUpdateTime(LocalDateTime.of(2021, 12, 23, 11, 24, 31)));
+        values.put("Blog", blog());
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("user_4bca3x7");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        values.put("UserDTO", user);
+
+        CacheCodec json = new JsonCacheCodec();
+        CacheCodec binary = new BinaryCacheCodec(1024);
+        CacheCodec uncompressed = new BinaryCacheCodec(0);
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(
+                new RedisStandaloneConfiguration("localhost", 6379)
+        );
+        connectionFactory.afterPropertiesSet();
+        StringRedisTemplate stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        boolean redis = true;
+        try {
+            stringRedisTemplate.hasKey("bench:codec");
+        } catch (Exception e) {
+            redis = false;
+        }
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            print(stringRedisTemplate, redis, entry.getKey(), Map.of(
+                    "json", json.encode(entry.getValue()),
+                    "binary", uncompressed.encode(entry.getValue()),
+                    "binary+lz4", binary.encode(entry.getValue())
+            ));
+        }
+        print(stringRedisTemplate, redis, "RedisData<Shop>", Map.of(
+                "json", json.encodeWithExpire(shop(), expireTime()),
+                "binary", uncompressed.encodeWithExpire(shop(), expireTime()),
+                "binary+lz4", binary.encodeWithExpire(shop(), expireTime())
+        ));
+        connectionFactory.destroy();
+    }
+
+    private static void print(StringRedisTemplate stringRedisTemplate, boolean redis, String name, Map<String, byte[]> encoded) {
+        StringBuilder line = new StringBuilder(String.format("%-16s", name));
+        for (String codec : new String[]{"json", "binary", "binary+lz4"}) {
+            byte[] bytes = encoded.get(codec);
+            line.append(String.format("  %s=%,6d bytes", codec, bytes.length));
+            if (redis) {
+                String key = "bench:codec:" + codec;
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                        connection.stringCommands().set(rawKey, bytes));
+                Long usage = stringRedisTemplate.execute(MEMORY_USAGE_SCRIPT, Collections.singletonList(key));
+                line.append(String.format(" (redis %,6d)", usage));
+                stringRedisTemplate.delete(key);
+            }
+        }
+        System.out.println(line);
+    }
+
+    private static Shop shop() {
+        return new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                         .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg,https://qcloud.dpfile.com/pc/IOf6VX3qaBgFXFVgp75w-KKJmWZjFc8GXDU8g9bQC6YGCpAmG00QbfT4vCCBj7njuzFvxlbkWx5uwqY2qcjixFEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg")
+                         .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                         .setX(120.149192).setY(30.316078)
+                         .setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37)
+                         .setOpenHours("10:00-22:00")
+                         .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                         .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    private static Blog blog() {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            content.append("生活就是一半烟火·一半诗意<br/>手执烟火谋生活·心怀诗意以谋爱·<br/>当然<br/>男朋友给不了的浪漫要学会自己给🍒<br/>");
+        }
+        return new Blog().setId(4L).setShopId(4L).setUserId(2L)
+                         .setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩")
+                         .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg,/imgs/blogs/2/6/b0756279-65da-4f2d-b62a-33f74b06454a.jpg")
+                         .setContent(content.toString())
+                         .setLiked(1).setComments(104)
+                         .setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1))
+                         .setUpdateTime(LocalDateTime.of(2022, 3, 10, 14, 26, 34));
+    }
+
+    private static LocalDateTime expireTime() {
+        return LocalDateTime.of(2025, 5, 22, 21, 30, 0);
+    }
+}
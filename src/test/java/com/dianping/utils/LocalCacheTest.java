@@ -0,0 +1,108 @@
+package com.dianping.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Description: 本地缓存的过期、按条目数和权重淘汰
+ * @Author: zhao
+ * Created: 2025/6/15 - 10:40
+ */
+class LocalCacheTest {
+
+    private static final long TTL = 60_000;
+
+    @Test
+    void getReturnsValueAndCachedNull() {
+        LocalCache<String> cache = new LocalCache<>(10, 1000);
+        cache.put("a", "1", 1, TTL);
+        cache.put("empty", null, 0, TTL);
+        assertEquals("1", cache.get("a").getValue());
+        // 缓存的空值：条目存在，值为null
+        assertNotNull(cache.get("empty"));
+        assertNull(cache.get("empty").getValue());
+        assertNull(cache.get("missing"));
+    }
+
+    @Test
+    void expiredEntryIsRemoved() throws InterruptedException {
+        LocalCache<String> cache = new LocalCache<>(10, 1000);
+        cache.put("a", "1", 5, 1);
+        Thread.sleep(5);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedOverSize() throws InterruptedException {
+        // 条目数不超过采样数时，采样覆盖全部条目，淘汰的就是最久未访问的
+        LocalCache<String> cache = new LocalCache<>(3, 1000);
+        cache.put("a", "1", 1, TTL);
+        Thread.sleep(1);
+        cache.put("b", "2", 1, TTL);
+        Thread.sleep(1);
+        cache.put("c", "3", 1, TTL);
+        Thread.sleep(1);
+        cache.get("a");
+        Thread.sleep(1);
+        cache.put("d", "4", 1, TTL);
+        assertEquals(3, cache.size());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+    }
+
+    @Test
+    void evictsExpiredBeforeLive() throws InterruptedException {
+        LocalCache<String> cache = new LocalCache<>(2, 1000);
+        cache.put("live", "1", 1, TTL);
+        Thread.sleep(1);
+        cache.put("expiring", "2", 1, 1);
+        Thread.sleep(5);
+        cache.put("new", "3", 1, TTL);
+        assertNotNull(cache.get("live"));
+        assertNotNull(cache.get("new"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void evictsOverWeight() {
+        LocalCache<String> cache = new LocalCache<>(100, 100);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, "v", 30, TTL);
+            assertTrue(cache.weight() <= 100);
+        }
+        assertEquals(3, cache.size());
+        assertEquals(90, cache.weight());
+    }
+
+    @Test
+    void weightTracksOverwriteAndInvalidate() {
+        LocalCache<String> cache = new LocalCache<>(10, 1000);
+        cache.put("a", "1", 10, TTL);
+        cache.put("b", "2", 20, TTL);
+        cache.put("a", "3", 5, TTL);
+        assertEquals(25, cache.weight());
+        cache.invalidate("b");
+        assertEquals(5, cache.weight());
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    void oversizedEntryIsNotCached() {
+        LocalCache<String> cache = new LocalCache<>(10, 100);
+        cache.put("a", "small", 10, TTL);
+        // 超过总权重的新值不缓存，旧值也要清除，不能读到旧数据
+        cache.put("a", "large", 101, TTL);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.weight());
+    }
+}
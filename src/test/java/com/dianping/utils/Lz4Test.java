@@ -0,0 +1,91 @@
+package com.dianping.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Description: LZ4块格式的压缩与解压
+ * @Author: zhao
+ * Created: 2025/6/15 - 11:40
+ */
+class Lz4Test {
+
+    @Test
+    void roundTripShortInputs() {
+        // 不足13个字节时只写入字面量
+        for (int length = 0; length <= 20; length++) {
+            byte[] src = new byte[length];
+            Arrays.fill(src, (byte) 'a');
+            assertRoundTrip(src);
+        }
+    }
+
+    @Test
+    void roundTripRepetitiveText() {
+        String text = "{\"id\":1,\"name\":\"103茶餐厅\",\"area\":\"大关\",\"address\":\"金华路锦昌文华苑29号\"}";
+        byte[] src = text.repeat(50).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = assertRoundTrip(src);
+        assertTrue(compressed.length < src.length / 10, "compressed: " + compressed.length);
+    }
+
+    @Test
+    void roundTripLongRuns() {
+        // 字面量和匹配长度都超过 15 + 255，需要多个长度扩展字节；单字节重复的匹配与输出重叠
+        byte[] src = new byte[5000];
+        Random random = new Random(42);
+        for (int i = 0; i < 600; i++) {
+            src[i] = (byte) random.nextInt();
+        }
+        Arrays.fill(src, 600, 4000, (byte) 7);
+        for (int i = 4000; i < src.length; i++) {
+            src[i] = src[i - 4000];
+        }
+        assertRoundTrip(src);
+    }
+
+    @Test
+    void roundTripIncompressible() {
+        byte[] src = new byte[4096];
+        new Random(7).nextBytes(src);
+        byte[] compressed = assertRoundTrip(src);
+        // 最坏情况只增加少量字节
+        assertTrue(compressed.length <= src.length + src.length / 255 + 16);
+    }
+
+    @Test
+    void decompressWithOffset() {
+        byte[] src = "seckill:stock:".repeat(20).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = Lz4.compress(src);
+        byte[] framed = new byte[compressed.length + 3];
+        System.arraycopy(compressed, 0, framed, 3, compressed.length);
+        assertArrayEquals(src, Lz4.decompress(framed, 3, compressed.length, src.length));
+    }
+
+    @Test
+    void corruptedInputIsRejected() {
+        byte[] src = "seckill:stock:".repeat(20).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = Lz4.compress(src);
+        // 原始长度不一致
+        assertThrows(IllegalArgumentException.class,
+                () -> Lz4.decompress(compressed, 0, compressed.length, src.length + 1));
+        // 截断
+        assertThrows(IllegalArgumentException.class,
+                () -> Lz4.decompress(Arrays.copyOf(compressed, compressed.length / 2), 0, compressed.length / 2, src.length));
+        // 匹配偏移超出已解压的数据：token 0x00 后紧跟偏移 0xFFFF
+        byte[] badOffset = {0x00, (byte) 0xFF, (byte) 0xFF, 0x00};
+        assertThrows(IllegalArgumentException.class, () -> Lz4.decompress(badOffset, 0, badOffset.length, 8));
+    }
+
+    private static byte[] assertRoundTrip(byte[] src) {
+        byte[] compressed = Lz4.compress(src);
+        assertArrayEquals(src, Lz4.decompress(compressed, 0, compressed.length, src.length));
+        return compressed;
+    }
+}
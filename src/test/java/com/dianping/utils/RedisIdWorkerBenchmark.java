@@ -0,0 +1,70 @@
+package com.dianping.utils;
+
+import com.dianping.config.IdWorkerProperties;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description: RedisIdWorker 基准测试：每次INCR vs 号段模式，需要本地Redis(localhost:6379)
+ * 运行 main 方法，或 java -cp target/test-classes:... com.dianping.utils.RedisIdWorkerBenchmark
+ * @Author: zhao
+ * Created: 2025/5/10 - 16:20
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Threads(16)
+@Fork(1)
+public class RedisIdWorkerBenchmark {
+
+    private LettuceConnectionFactory connectionFactory;
+    private RedisIdWorker incrWorker;
+    private RedisIdWorker segmentWorker;
+
+    @Setup
+    public void setup() {
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("localhost", 6379));
+        connectionFactory.afterPropertiesSet();
+        StringRedisTemplate stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+
+        incrWorker = new RedisIdWorker(stringRedisTemplate, new IdWorkerProperties());
+
+        IdWorkerProperties segmentProperties = new IdWorkerProperties();
+        segmentProperties.setSegmentEnabled(true);
+        segmentWorker = new RedisIdWorker(stringRedisTemplate, segmentProperties);
+    }
+
+    @TearDown
+    public void tearDown() {
+        incrWorker.destroy();
+        segmentWorker.destroy();
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public long incr() {
+        return incrWorker.nextId("bench");
+    }
+
+    @Benchmark
+    public long segment() {
+        return segmentWorker.nextId("bench");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RedisIdWorkerBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
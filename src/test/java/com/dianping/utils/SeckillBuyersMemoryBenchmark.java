@@ -0,0 +1,156 @@
+package com.dianping.utils;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * @Description: 下单用户存储的内存对比：用户集合 SADD/SISMEMBER vs 分块位图，需要本地Redis(localhost:6379)
+ * 按秒杀脚本的规则写入同样的用户，再用 MEMORY USAGE 统计各key占用的内存
+ * @Author: zhao
+ * Created: 2025/5/12 - 21:10
+ */
+public class SeckillBuyersMemoryBenchmark {
+
+    private static final int CHUNK_BITS = 16;
+    private static final int BITMAP_THRESHOLD = 512;
+    private static final int PIPELINE_SIZE = 10000;
+    private static final DefaultRedisScript<Long> MEMORY_USAGE_SCRIPT = new DefaultRedisScript<>(
+            "return redis.call('memory', 'usage', KEYS[1], 'SAMPLES', '0')",
+            Long.class
+    );
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public SeckillBuyersMemoryBenchmark(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public static void main(String[] args) {
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(
+                new RedisStandaloneConfiguration("localhost", 6379)
+        );
+        connectionFactory.afterPropertiesSet();
+        SeckillBuyersMemoryBenchmark benchmark = new SeckillBuyersMemoryBenchmark(new StringRedisTemplate(connectionFactory));
+
+        Random random = new Random(42);
+        // 1.连续的用户id，如自增主键
+        benchmark.compare("dense 1M", range(1, 1_000_000));
+        // 2.大范围内随机分布的用户id
+        benchmark.compare("sparse 100k", randomIds(random, 100_000, 1L << 40));
+        // 3.集中在少数号段的用户id，如分库分表后各库的号段
+        List<Long> clustered = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            long base = (random.nextLong() & Long.MAX_VALUE) % (1L << 40);
+            clustered.addAll(randomIds(random, 10_000, 200_000).stream().map(id -> base + id).toList());
+        }
+        benchmark.compare("clustered 200k", clustered);
+        connectionFactory.destroy();
+    }
+
+    private void compare(String name, Collection<Long> userIds) {
+        String prefix = "bench:buyers:";
+        deleteByPrefix(prefix);
+        Set<Long> unique = new LinkedHashSet<>(userIds);
+
+        // 1.用户集合 SADD seckill:order:{voucherId} userId
+        String setKey = prefix + "set";
+        pipeline(unique, (connection, userId) ->
+                connection.setCommands().sAdd(bytes(setKey), bytes(userId.toString())));
+        long setMemory = memoryUsage(Collections.singletonList(setKey));
+
+        // 2.分块位图：块内不超过阈值用整数集合，超过后转为位图
+        Map<Long, List<Long>> chunks = new HashMap<>();
+        for (Long userId : unique) {
+            chunks.computeIfAbsent(userId >>> CHUNK_BITS, k -> new ArrayList<>()).add(userId & ((1L << CHUNK_BITS) - 1));
+        }
+        List<String> bitmapKeys = new ArrayList<>();
+        String chunksKey = prefix + "bitmap:chunks";
+        bitmapKeys.add(chunksKey);
+        List<Map.Entry<Long, List<Long>>> entries = new ArrayList<>(chunks.entrySet());
+        pipeline(entries, (connection, entry) -> {
+            String chunkKey = prefix + "bitmap:" + entry.getKey();
+            connection.setCommands().sAdd(bytes(chunksKey), bytes(chunkKey));
+            if (entry.getValue().size() > BITMAP_THRESHOLD) {
+                for (Long index : entry.getValue()) {
+                    connection.stringCommands().setBit(bytes(chunkKey + ":bits"), index, true);
+                }
+            } else {
+                byte[][] members = entry.getValue().stream().map(i -> bytes(i.toString())).toArray(byte[][]::new);
+                connection.setCommands().sAdd(bytes(chunkKey), members);
+            }
+        });
+        for (Map.Entry<Long, List<Long>> entry : entries) {
+            String chunkKey = prefix + "bitmap:" + entry.getKey();
+            bitmapKeys.add(entry.getValue().size() > BITMAP_THRESHOLD ? chunkKey + ":bits" : chunkKey);
+        }
+        long bitmapMemory = memoryUsage(bitmapKeys);
+
+        System.out.printf("%-16s users=%-9d set=%,12d bytes  bitmap=%,12d bytes (%d chunks)  ratio=%.1fx%n",
+                          name, unique.size(), setMemory, bitmapMemory, chunks.size(),
+                          (double) setMemory / bitmapMemory);
+        deleteByPrefix(prefix);
+    }
+
+    private <T> void pipeline(Collection<T> items, PipelineWriter<T> writer) {
+        List<T> list = new ArrayList<>(items);
+        for (int from = 0; from < list.size(); from += PIPELINE_SIZE) {
+            List<T> page = list.subList(from, Math.min(from + PIPELINE_SIZE, list.size()));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (T item : page) {
+                    writer.write(connection, item);
+                }
+                return null;
+            });
+        }
+    }
+
+    private long memoryUsage(List<String> keys) {
+        long total = 0;
+        for (String key : keys) {
+            // MEMORY USAGE key SAMPLES 0
+            Long usage = stringRedisTemplate.execute(MEMORY_USAGE_SCRIPT, Collections.singletonList(key));
+            if (usage != null) {
+                total += usage;
+            }
+        }
+        return total;
+    }
+
+    private void deleteByPrefix(String prefix) {
+        Set<String> keys = stringRedisTemplate.keys(prefix + "*");
+        if (keys != null && !keys.isEmpty()) {
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> ids = new ArrayList<>();
+        for (long id = from; id <= to; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private static List<Long> randomIds(Random random, int count, long bound) {
+        List<Long> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add((random.nextLong() & Long.MAX_VALUE) % bound);
+        }
+        return ids;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private interface PipelineWriter<T> {
+        void write(RedisConnection connection, T item);
+    }
+}
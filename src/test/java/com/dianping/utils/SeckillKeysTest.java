@@ -0,0 +1,178 @@
+package com.dianping.utils;
+
+import com.dianping.config.SeckillProperties;
+import io.lettuce.core.cluster.SlotHash;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.dianping.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @Description: 库存分片、集群hash tag与下单用户分块位图的key映射
+ * @Author: zhao
+ * Created: 2025/6/15 - 15:00
+ */
+class SeckillKeysTest {
+
+    private static final Long VOUCHER_ID = 12L;
+
+    private final StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+    private final RedisMessageListenerContainer listenerContainer = mock(RedisMessageListenerContainer.class);
+    private final SeckillProperties seckillProperties = new SeckillProperties();
+    private HashOperations<String, Object, Object> hashOperations;
+
+    @Test
+    void singleShardKeepsLegacyKeys() {
+        SeckillKeys seckillKeys = seckillKeys(null);
+        assertEquals(1, seckillKeys.shardCount(VOUCHER_ID));
+        assertEquals(List.of("seckill:stock:12"), seckillKeys.stockKeys(VOUCHER_ID));
+        assertEquals(List.of("seckill:order:12"), seckillKeys.orderKeys(VOUCHER_ID));
+        assertEquals(List.of("seckill:voucher:12"), seckillKeys.voucherKeys(VOUCHER_ID));
+        assertEquals(List.of("stream.orders"), seckillKeys.streamKeys(VOUCHER_ID));
+    }
+
+    @Test
+    void standaloneShardsShareVoucherAndStream() {
+        SeckillKeys seckillKeys = seckillKeys("3");
+        assertEquals(List.of("seckill:stock:12:0", "seckill:stock:12:1", "seckill:stock:12:2"), seckillKeys.stockKeys(VOUCHER_ID));
+        assertEquals(List.of("seckill:order:12:0", "seckill:order:12:1", "seckill:order:12:2"), seckillKeys.orderKeys(VOUCHER_ID));
+        assertEquals(List.of("seckill:voucher:12"), seckillKeys.voucherKeys(VOUCHER_ID));
+        assertEquals(List.of("stream.orders"), seckillKeys.streamKeys(VOUCHER_ID));
+    }
+
+    @Test
+    void clusterShardsUseOwnSlots() {
+        seckillProperties.setClusterEnabled(true);
+        seckillProperties.setBuyerBitmapEnabled(true);
+        SeckillKeys seckillKeys = seckillKeys("4");
+        Set<Integer> slots = new HashSet<>();
+        for (int shard = 0; shard < 4; shard++) {
+            // 秒杀脚本用到的同一分片的key都在同一个slot
+            int slot = SlotHash.getSlot(seckillKeys.stockKey(VOUCHER_ID, shard, 4));
+            List<String> scriptKeys = new ArrayList<>(seckillKeys.buyerKeys(VOUCHER_ID, shard, 4, 70_000L));
+            scriptKeys.add(seckillKeys.orderKey(VOUCHER_ID, shard, 4));
+            scriptKeys.add(seckillKeys.voucherKey(VOUCHER_ID, shard, 4));
+            scriptKeys.add(seckillKeys.streamKey(VOUCHER_ID, shard, 4));
+            for (String key : scriptKeys) {
+                assertEquals(slot, SlotHash.getSlot(key), key);
+            }
+            slots.add(slot);
+        }
+        // 不同分片的hash tag不同
+        assertEquals("seckill:stock:{v12:3}", seckillKeys.stockKey(VOUCHER_ID, 3, 4));
+        assertEquals(4, seckillKeys.voucherKeys(VOUCHER_ID).size());
+        assertEquals(4, seckillKeys.streamKeys(VOUCHER_ID).size());
+        assertTrue(slots.size() > 1);
+    }
+
+    @Test
+    void clusterSingleShardUsesVoucherTag() {
+        seckillProperties.setClusterEnabled(true);
+        SeckillKeys seckillKeys = seckillKeys(null);
+        assertEquals("seckill:stock:{v12}", seckillKeys.stockKey(VOUCHER_ID, 0, 1));
+        assertEquals("stream.orders:{v12}", seckillKeys.streamKey(VOUCHER_ID, 0, 1));
+    }
+
+    @Test
+    void homeShardIsStableAndInRange() {
+        SeckillKeys seckillKeys = seckillKeys(null);
+        int[] counts = new int[8];
+        for (long userId = -1000; userId < 100_000; userId++) {
+            int shard = seckillKeys.homeShard(userId, 8);
+            assertTrue(shard >= 0 && shard < 8);
+            assertEquals(shard, seckillKeys.homeShard(userId, 8));
+            counts[shard]++;
+        }
+        // 连续的用户id均匀分布
+        for (int count : counts) {
+            assertTrue(count > 101_000 / 8 * 0.9, "shard count " + count);
+        }
+        assertEquals(0, seckillKeys.homeShard(Long.MIN_VALUE, 1));
+    }
+
+    @Test
+    void setModeUsesUserId() {
+        SeckillKeys seckillKeys = seckillKeys(null);
+        String orderKey = "seckill:order:12";
+        assertEquals(List.of(orderKey, orderKey, orderKey), seckillKeys.buyerKeys(VOUCHER_ID, 0, 1, 70_000L));
+        assertEquals("70000", seckillKeys.buyerMember(70_000L));
+    }
+
+    @Test
+    void bitmapModeChunksByHighBits() {
+        seckillProperties.setBuyerBitmapEnabled(true);
+        SeckillKeys seckillKeys = seckillKeys(null);
+        // 低16位为块内编号，其余高位为块号
+        assertEquals(List.of("seckill:order:12:0", "seckill:order:12:0:bits", "seckill:order:12:chunks"),
+                seckillKeys.buyerKeys(VOUCHER_ID, 0, 1, 65_535L));
+        assertEquals(List.of("seckill:order:12:1", "seckill:order:12:1:bits", "seckill:order:12:chunks"),
+                seckillKeys.buyerKeys(VOUCHER_ID, 0, 1, 65_536L));
+        assertEquals("65535", seckillKeys.buyerMember(65_535L));
+        assertEquals("0", seckillKeys.buyerMember(65_536L));
+        // 由块key和块内编号还原用户id
+        for (long userId : new long[]{0, 1, 65_535, 65_536, 70_000, 1L << 40, Long.MAX_VALUE}) {
+            String chunkKey = seckillKeys.buyerKeys(VOUCHER_ID, 0, 1, userId).get(0);
+            assertEquals(userId, seckillKeys.chunkUserId(chunkKey, Long.parseLong(seckillKeys.buyerMember(userId))));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void allBuyerKeysIncludesRegisteredChunks() {
+        seckillProperties.setBuyerBitmapEnabled(true);
+        SeckillKeys seckillKeys = seckillKeys(null);
+        SetOperations<String, String> setOperations = mock(SetOperations.class);
+        when(stringRedisTemplate.opsForSet()).thenReturn(setOperations);
+        when(setOperations.members("seckill:order:12:chunks")).thenReturn(Set.of("seckill:order:12:1"));
+        assertEquals(List.of("seckill:order:12", "seckill:order:12:1", "seckill:order:12:1:bits", "seckill:order:12:chunks"),
+                seckillKeys.allBuyerKeys(VOUCHER_ID));
+    }
+
+    @Test
+    void shardCountIsCachedUntilBroadcast() {
+        SeckillKeys seckillKeys = seckillKeys("2");
+        ArgumentCaptor<MessageListener> listener = ArgumentCaptor.forClass(MessageListener.class);
+        verify(listenerContainer).addMessageListener(listener.capture(), any(Topic.class));
+        assertEquals(2, seckillKeys.shardCount(VOUCHER_ID));
+        assertEquals(2, seckillKeys.shardCount(VOUCHER_ID));
+        verify(hashOperations, times(1)).get(SECKILL_SHARDS_KEY, VOUCHER_ID.toString());
+
+        // 其他节点修改了分片数，收到广播后重新读取
+        when(hashOperations.get(SECKILL_SHARDS_KEY, VOUCHER_ID.toString())).thenReturn("4");
+        Message message = mock(Message.class);
+        when(message.getBody()).thenReturn(VOUCHER_ID.toString().getBytes(StandardCharsets.UTF_8));
+        listener.getValue().onMessage(message, null);
+        assertEquals(4, seckillKeys.shardCount(VOUCHER_ID));
+    }
+
+    /**
+     * @param shards seckill:shards 中记录的分片数，null表示未记录
+     */
+    @SuppressWarnings("unchecked")
+    private SeckillKeys seckillKeys(String shards) {
+        hashOperations = mock(HashOperations.class);
+        when(stringRedisTemplate.<Object, Object>opsForHash()).thenReturn(hashOperations);
+        when(hashOperations.get(SECKILL_SHARDS_KEY, VOUCHER_ID.toString())).thenReturn(shards);
+        return new SeckillKeys(stringRedisTemplate, seckillProperties, listenerContainer);
+    }
+}
@@ -0,0 +1,104 @@
+package com.dianping.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Description: 秒杀脚本按10^7进制分段生成的订单id与 RedisIdWorker 的 timestamp << 32 | count 一致
+ * Lua的number是double，这里用double逐行复现脚本的计算
+ * @Author: zhao
+ * Created: 2025/6/15 - 14:20
+ */
+class SeckillOrderIdTest {
+
+    /** 时间戳最多31位，id为正数 */
+    private static final long MAX_TIMESTAMP = (1L << 31) - 1;
+    /** 当天序列号最多32位 */
+    private static final long MAX_COUNT = (1L << 32) - 1;
+
+    @Test
+    void matchesRedisIdWorkerAtBoundaries() {
+        long now = new RedisIdWorker(null, null).timestamp(LocalDateTime.now());
+        long[] timestamps = {0, 1, 9_999_999, 10_000_000, now, MAX_TIMESTAMP};
+        long[] counts = {1, 9_999_999, 10_000_000, 4_967_296, 5_032_704, MAX_COUNT};
+        for (long timestamp : timestamps) {
+            for (long count : counts) {
+                assertEquals(String.valueOf(timestamp << 32 | count), luaId(timestamp, count),
+                        "timestamp=" + timestamp + ", count=" + count);
+            }
+        }
+    }
+
+    @Test
+    void dropsLeadingZeroLimbs() {
+        // 高位分段为0时不补零
+        assertEquals("1", luaId(0, 1));
+        assertEquals(String.valueOf(MAX_COUNT), luaId(0, MAX_COUNT));
+        assertEquals(String.valueOf(1L << 32 | 1), luaId(1, 1));
+    }
+
+    @Test
+    void matchesRedisIdWorkerRandomly() {
+        Random random = new Random(6);
+        for (int i = 0; i < 100_000; i++) {
+            long timestamp = random.nextLong() & MAX_TIMESTAMP;
+            long count = 1 + (random.nextLong() & MAX_COUNT) % MAX_COUNT;
+            assertEquals(String.valueOf(timestamp << 32 | count), luaId(timestamp, count));
+        }
+    }
+
+    @Test
+    void scriptsShareLimbMath() throws IOException {
+        // 批量秒杀脚本复制了同样的计算，两处必须一致
+        String single = limbMath("seckill.lua");
+        String batch = limbMath("seckill-batch.lua").replace("seq", "count");
+        assertEquals(single, batch);
+        assertTrue(single.contains("local p0 = t0 * 4967296 + count"));
+        assertTrue(single.contains("local p1 = t0 * 429 + t1 * 4967296 + math.floor(p0 / 10000000)"));
+        assertTrue(single.contains("local p2 = t1 * 429 + math.floor(p1 / 10000000)"));
+    }
+
+    /**
+     * seckill.lua 的 nextId：2^32 = 429 * 10^7 + 4967296，每段10^7，计算过程不超过2^53
+     */
+    private static String luaId(double timestamp, double count) {
+        double t1 = Math.floor(timestamp / 10000000);
+        double t0 = mod(timestamp, 10000000);
+        double p0 = t0 * 4967296 + count;
+        double p1 = t0 * 429 + t1 * 4967296 + Math.floor(p0 / 10000000);
+        p0 = mod(p0, 10000000);
+        double p2 = t1 * 429 + Math.floor(p1 / 10000000);
+        p1 = mod(p1, 10000000);
+        if (p2 > 0) {
+            return String.format("%d%07d%07d", (long) p2, (long) p1, (long) p0);
+        }
+        if (p1 > 0) {
+            return String.format("%d%07d", (long) p1, (long) p0);
+        }
+        return String.valueOf((long) p0);
+    }
+
+    /**
+     * Lua 5.1 的取模 a - floor(a / b) * b
+     */
+    private static double mod(double a, double b) {
+        return a - Math.floor(a / b) * b;
+    }
+
+    private static String limbMath(String script) throws IOException {
+        String source = new ClassPathResource(script).getContentAsString(StandardCharsets.UTF_8);
+        int begin = source.indexOf("local t1 =");
+        int end = source.indexOf("return tostring(p0)", begin);
+        assertTrue(begin >= 0 && end > begin, script);
+        // 去掉注释，只比较代码
+        return source.substring(begin, end).replaceAll("--[^\\n]*", "").replaceAll("\\s+", " ");
+    }
+}
@@ -0,0 +1,104 @@
+package com.dianping.utils;
+
+import com.dianping.config.SeckillProperties;
+import com.dianping.service.IVoucherOrderService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @Description: 节点库存租约的扣减、退回与秒杀结束后的归还
+ * @Author: zhao
+ * Created: 2025/6/14 - 15:40
+ */
+class SeckillStockLeaseTest {
+
+    private static final Long VOUCHER_ID = 1L;
+    private static final List<String> STOCK_KEY = Collections.singletonList("seckill:stock:1");
+
+    private StringRedisTemplate stringRedisTemplate;
+    private HashOperations<String, Object, Object> hashOperations;
+    private IVoucherOrderService voucherOrderService;
+    private SeckillStockLease seckillStockLease;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        hashOperations = mock(HashOperations.class);
+        voucherOrderService = mock(IVoucherOrderService.class);
+        SeckillKeys seckillKeys = mock(SeckillKeys.class);
+        when(seckillKeys.shardCount(VOUCHER_ID)).thenReturn(1);
+        when(seckillKeys.stockKey(eq(VOUCHER_ID), anyInt(), eq(1))).thenReturn(STOCK_KEY.get(0));
+        when(seckillKeys.voucherKey(eq(VOUCHER_ID), anyInt(), eq(1))).thenReturn("seckill:voucher:1");
+        when(stringRedisTemplate.<Object, Object>opsForHash()).thenReturn(hashOperations);
+        // 租用脚本租到10个库存，归还脚本返回归还后的库存
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), anyString())).thenReturn(10L);
+        SeckillProperties seckillProperties = new SeckillProperties();
+        seckillProperties.setStockLeaseSize(20);
+        seckillProperties.setStockLeaseRefillRatio(0);
+        seckillStockLease = new SeckillStockLease(stringRedisTemplate, seckillProperties, seckillKeys, voucherOrderService);
+    }
+
+    @AfterEach
+    void tearDown() {
+        seckillStockLease.destroy();
+    }
+
+    @Test
+    void releaseReturnsToLease() {
+        when(hashOperations.get("seckill:voucher:1", "end")).thenReturn(String.valueOf(System.currentTimeMillis() + 60_000));
+        SeckillStockLease.Lease lease = seckillStockLease.acquire(VOUCHER_ID);
+        assertNotNull(lease);
+        // 租到10个，本次扣减1个，剩余9个只在本地扣减
+        for (int i = 0; i < 9; i++) {
+            assertSame(lease, seckillStockLease.tryAcquire(VOUCHER_ID));
+        }
+        assertNull(seckillStockLease.tryAcquire(VOUCHER_ID));
+        // 退回的库存可以再次扣减，不访问Redis
+        seckillStockLease.release(VOUCHER_ID, lease);
+        assertSame(lease, seckillStockLease.tryAcquire(VOUCHER_ID));
+        verify(stringRedisTemplate, times(1)).execute(any(RedisScript.class), anyList(), anyString());
+    }
+
+    @Test
+    void releaseAfterExpiryReturnsToRedis() {
+        // 秒杀已结束
+        when(hashOperations.get("seckill:voucher:1", "end")).thenReturn(String.valueOf(System.currentTimeMillis() - 1));
+        SeckillStockLease.Lease lease = seckillStockLease.acquire(VOUCHER_ID);
+        assertNotNull(lease);
+
+        // 1.归还到期的租约：剩余9个还给Redis，租约被移除
+        seckillStockLease.returnExpiredLeases();
+        verify(stringRedisTemplate).execute(any(RedisScript.class), eq(STOCK_KEY), eq("9"));
+        assertNull(seckillStockLease.tryAcquire(VOUCHER_ID));
+
+        // 2.之后才退回的库存按扣减它的租约处理，直接 INCRBY 还给Redis，不会丢失
+        seckillStockLease.release(VOUCHER_ID, lease);
+        verify(stringRedisTemplate).execute(any(RedisScript.class), eq(STOCK_KEY), eq("1"));
+        verify(voucherOrderService, times(2)).clearSoldOut(VOUCHER_ID);
+
+        // 3.节点关闭时不会重复归还：只有租用、归还9个、退回1个三次调用
+        seckillStockLease.destroy();
+        verify(stringRedisTemplate, times(3)).execute(any(RedisScript.class), anyList(), anyString());
+    }
+}
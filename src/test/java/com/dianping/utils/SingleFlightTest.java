@@ -0,0 +1,142 @@
+package com.dianping.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Description: 请求合并：并发请求只加载一次，共享结果和异常
+ * @Author: zhao
+ * Created: 2025/6/15 - 11:10
+ */
+class SingleFlightTest {
+
+    private static final int WAITERS = 8;
+
+    @Test
+    void concurrentCallsLoadOnce() throws InterruptedException {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> results = new ArrayList<>();
+
+        // 1.发起加载的请求阻塞在加载中
+        Thread leader = start(() -> record(results, singleFlight.execute("shop:1", () -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            await(release);
+            return "shop";
+        })));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        // 2.其他请求等待同一个加载
+        List<Thread> waiters = new ArrayList<>();
+        for (int i = 0; i < WAITERS; i++) {
+            waiters.add(start(() -> record(results, singleFlight.execute("shop:1", () -> {
+                loads.incrementAndGet();
+                return "reloaded";
+            }))));
+        }
+        awaitWaiting(waiters);
+        assertEquals(1, singleFlight.inFlight());
+
+        // 3.加载完成，全部请求拿到同一个结果
+        release.countDown();
+        join(leader);
+        waiters.forEach(SingleFlightTest::join);
+        assertEquals(1, loads.get());
+        assertEquals(WAITERS + 1, results.size());
+        results.forEach(result -> assertEquals("shop", result));
+        assertEquals(0, singleFlight.inFlight());
+    }
+
+    @Test
+    void waitersShareException() throws InterruptedException {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        IllegalStateException failure = new IllegalStateException("db down");
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<Throwable> leaderError = new AtomicReference<>();
+        AtomicReference<Throwable> waiterError = new AtomicReference<>();
+
+        Thread leader = start(() -> leaderError.set(assertThrows(IllegalStateException.class,
+                () -> singleFlight.execute("shop:1", () -> {
+                    loading.countDown();
+                    await(release);
+                    throw failure;
+                }))));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        Thread waiter = start(() -> waiterError.set(assertThrows(IllegalStateException.class,
+                () -> singleFlight.execute("shop:1", () -> "reloaded"))));
+        awaitWaiting(List.of(waiter));
+
+        release.countDown();
+        join(leader);
+        join(waiter);
+        // 等待的请求收到原始异常，而不是包装后的 CompletionException
+        assertSame(failure, leaderError.get());
+        assertSame(failure, waiterError.get());
+        // 失败后不保留，下一次请求重新加载
+        assertEquals(0, singleFlight.inFlight());
+        assertEquals("reloaded", singleFlight.execute("shop:1", () -> "reloaded"));
+    }
+
+    @Test
+    void differentKeysLoadSeparately() {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        // 加载中再请求其他key，不等待当前的加载
+        String value = singleFlight.execute("shop:1", () -> "shop1:" + singleFlight.execute("shop:2", () -> "shop2"));
+        assertEquals("shop1:shop2", value);
+        assertEquals(0, singleFlight.inFlight());
+    }
+
+    private static synchronized void record(List<String> results, String result) {
+        results.add(result);
+    }
+
+    private static Thread start(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * 等待线程都阻塞在 CompletableFuture.join
+     */
+    private static void awaitWaiting(List<Thread> threads) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Thread thread : threads) {
+            while (thread.getState() != Thread.State.WAITING) {
+                assertTrue(System.currentTimeMillis() < deadline, "waiter did not block");
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}